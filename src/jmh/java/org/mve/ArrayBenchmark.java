@@ -0,0 +1,105 @@
+package org.mve;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Byte, bulk and integer transfers through the ring, offset so that some of them wrap around
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArrayBenchmark
+{
+	@Param({"16", "1024", "65536"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean direct;
+
+	private Array array;
+	private byte[] bytes;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup()
+	{
+		this.array = new Array(this.size * 2, this.direct);
+		this.bytes = new byte[this.size];
+		this.buffer = this.direct ? ByteBuffer.allocateDirect(this.size) : ByteBuffer.allocate(this.size);
+		// Start off the store boundary so bulk copies take both segments now and then
+		this.array.put(new byte[3]);
+		this.array.get(new byte[3]);
+	}
+
+	@Benchmark
+	public int single()
+	{
+		int sum = 0;
+		for (int i = 0; i < this.size; i++)
+			this.array.put(i);
+		for (int i = 0; i < this.size; i++)
+			sum += this.array.get();
+		return sum;
+	}
+
+	@Benchmark
+	public int bulk()
+	{
+		this.array.put(this.bytes);
+		this.array.get(this.bytes);
+		return this.array.position();
+	}
+
+	@Benchmark
+	public int buffer()
+	{
+		this.buffer.clear();
+		this.array.put(this.buffer);
+		this.buffer.clear();
+		this.array.get(this.buffer);
+		return this.buffer.position();
+	}
+
+	// Growth of a pooled array holding data, which copies it into a larger store, then the store goes back
+	@Benchmark
+	public int expand()
+	{
+		Array array = new Array(BufferPool.SHARED, this.direct);
+		array.put(this.bytes);
+		array.expand(this.size * 4);
+		int capacity = array.capacity();
+		array.get(this.bytes);
+		array.recycle();
+		return capacity;
+	}
+
+	@Benchmark
+	public long integers()
+	{
+		long sum = 0;
+		for (int i = 0; i < this.size; i += 14)
+		{
+			this.array.integer(i, 2);
+			this.array.integer(i, 4);
+			this.array.integer(i, 8);
+			sum += this.array.integer(2);
+			sum += this.array.integer(4);
+			sum += this.array.integer(8);
+		}
+		return sum;
+	}
+}
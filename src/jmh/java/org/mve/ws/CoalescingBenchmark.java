@@ -0,0 +1,134 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Small messages from several threads over one loopback connection, writes / messages is the syscalls per message
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class CoalescingBenchmark
+{
+	@Param({"immediate", "bytes", "delay"})
+	public String policy;
+
+	@Param({"50"})
+	public int size;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Writes
+	{
+		public long messages;
+		// Channel writes of the whole connection, counted by the first thread only
+		public long writes;
+		private long start;
+		private boolean first;
+
+		@Setup(Level.Iteration)
+		public void reset(CoalescingBenchmark benchmark, ThreadParams params)
+		{
+			this.messages = 0;
+			this.writes = 0;
+			this.first = params.getThreadIndex() == 0;
+			this.start = benchmark.metrics.getWrites();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Payload
+	{
+		private ByteBuffer buf;
+
+		@Setup
+		public void setup(CoalescingBenchmark benchmark)
+		{
+			this.buf = ByteBuffer.allocate(benchmark.size);
+		}
+	}
+
+	private WebSocketEventLoop loop;
+	private WebSocketServer server;
+	private WebSocket socket;
+	// Of the sending connection only, the peer records elsewhere
+	private final WebSocketMetrics metrics = new WebSocketMetrics();
+	private Thread reader;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		this.loop = new WebSocketEventLoop();
+		this.server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), this.loop, accepted::offer);
+		this.socket = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) this.server.address()).getPort());
+		if (!this.socket.finish())
+			throw new IllegalStateException("Connection failed");
+		while (accepted.isEmpty())
+			Thread.sleep(1);
+		WebSocket peer = accepted.poll();
+		this.socket.metrics(this.metrics);
+		switch (this.policy)
+		{
+			case "bytes":
+				this.socket.policy(new FlushPolicy(16384, 1, TimeUnit.MILLISECONDS));
+				break;
+			case "delay":
+				this.socket.policy(FlushPolicy.delay(100, TimeUnit.MICROSECONDS));
+				break;
+			default:
+				this.socket.policy(FlushPolicy.IMMEDIATE);
+		}
+		// The peer discards everything so the senders never stall
+		this.reader = new Thread(() ->
+		{
+			ByteBuffer sink = ByteBuffer.allocate(65536);
+			while (true)
+			{
+				sink.clear();
+				if (peer.read(sink) < 0) return;
+			}
+		}, "CoalescingBenchmarkReader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.socket.close();
+		this.server.close();
+		this.loop.close();
+	}
+
+	@Benchmark
+	public void send(Payload payload, Writes writes)
+	{
+		payload.buf.clear();
+		this.socket.write(payload.buf);
+		writes.messages++;
+		if (writes.first) writes.writes = this.metrics.getWrites() - writes.start;
+	}
+}
@@ -0,0 +1,120 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+// CPU cost of compressing JSON messages against the bytes it saves
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeflateBenchmark
+{
+	@Param({"128", "1024", "16384", "262144"})
+	public int size;
+
+	@Param({"1", "6", "9"})
+	public int level;
+
+	@Param({"true", "false"})
+	public boolean takeover;
+
+	// Reported next to the score, saved / input is the compression gain per message
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Bytes
+	{
+		public long input;
+		public long saved;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			this.input = 0;
+			this.saved = 0;
+		}
+	}
+
+	private final byte[][] messages = new byte[16][];
+	private byte[] output;
+	private Deflater deflater;
+	private int next = 0;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(0);
+		for (int i = 0; i < this.messages.length; i++)
+		{
+			StringBuilder json = new StringBuilder("[");
+			while (json.length() < this.size)
+			{
+				json.append("{\"id\":").append(random.nextInt(1000000));
+				json.append(",\"symbol\":\"").append((char) ('A' + random.nextInt(26))).append((char) ('A' + random.nextInt(26))).append('"');
+				json.append(",\"price\":").append(random.nextInt(100000) / 100.0);
+				json.append(",\"side\":\"").append(random.nextBoolean() ? "buy" : "sell").append("\"},");
+			}
+			this.messages[i] = json.substring(0, this.size).getBytes(StandardCharsets.US_ASCII);
+		}
+		this.output = new byte[this.size + 64];
+		this.deflater = new Deflater(this.level, true);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.deflater.end();
+	}
+
+	// Compresses one message the way WebSocket does, sync flush without the tail
+	@Benchmark
+	public int deflate(Bytes bytes)
+	{
+		byte[] message = this.messages[this.next];
+		this.next = (this.next + 1) & (this.messages.length - 1);
+		if (!this.takeover) this.deflater.reset();
+		this.deflater.setInput(message);
+		int length = 0;
+		int n;
+		do
+		{
+			n = this.deflater.deflate(this.output, 0, this.output.length, Deflater.SYNC_FLUSH);
+			length += n;
+		}
+		while (n == this.output.length);
+		length -= Deflate.TAIL.length;
+		bytes.input += message.length;
+		bytes.saved += message.length - length;
+		return length;
+	}
+
+	// Baseline for the copy an uncompressed message costs
+	@Benchmark
+	public byte[] copy(Bytes bytes)
+	{
+		byte[] message = this.messages[this.next];
+		this.next = (this.next + 1) & (this.messages.length - 1);
+		System.arraycopy(message, 0, this.output, 0, message.length);
+		bytes.input += message.length;
+		return this.output;
+	}
+}
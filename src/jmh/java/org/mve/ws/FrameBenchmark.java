@@ -0,0 +1,122 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Frame headers written by either role, and whole frames decoded from the inbound buffer without syscalls.
+// The lengths cover the 7-bit, 16-bit and 64-bit length forms
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark
+{
+	// Frames decoded per invocation
+	public static final int FRAMES = 64;
+
+	@Param({"0", "125", "4096", "70000"})
+	public int length;
+
+	@Param({"stream", "message"})
+	public String mode;
+
+	@Param({"true", "false"})
+	public boolean metrics;
+
+	private WebSocketEventLoop loop;
+	private WebSocketServer server;
+	private WebSocket socket;
+	private WebSocket peer;
+	private final MaskingKey key = new MaskingKey();
+	private final ByteBuffer header = ByteBuffer.allocate(14);
+	private ByteBuffer frames;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		this.loop = new WebSocketEventLoop();
+		this.server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), this.loop, accepted::offer);
+		this.socket = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) this.server.address()).getPort());
+		if (!this.socket.finish())
+			throw new IllegalStateException("Connection failed");
+		while (accepted.isEmpty())
+			Thread.sleep(1);
+		this.peer = accepted.poll();
+		WebSocketMetrics metrics = this.metrics ? WebSocketMetrics.SHARED : null;
+		this.socket.metrics(metrics);
+		this.peer.metrics(metrics);
+		// Nothing comes from the channel, receive() stops once the inbound buffer is empty
+		this.socket.blocking(false);
+		if ("stream".equals(this.mode)) this.socket.stream((socket, opcode, chunk, last) -> {});
+		else this.socket.handler((socket, message) -> message.release());
+
+		// Server frames, unmasked as the client expects them
+		this.frames = ByteBuffer.allocate((this.length + 14) * FrameBenchmark.FRAMES);
+		byte[] payload = new byte[this.length];
+		for (int i = 0; i < FrameBenchmark.FRAMES; i++)
+		{
+			this.peer.header(this.frames, this.key, WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.length);
+			this.frames.put(payload);
+		}
+		this.frames.flip();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.socket.reset();
+		this.server.close();
+		this.loop.close();
+	}
+
+	// Masked, with a fresh key from the connection's SecureRandom
+	@Benchmark
+	public ByteBuffer encodeClient()
+	{
+		this.header.clear();
+		this.socket.header(this.header, this.key, WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.length);
+		return this.header;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeServer()
+	{
+		this.header.clear();
+		this.peer.header(this.header, this.key, WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.length);
+		return this.header;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FrameBenchmark.FRAMES)
+	public int decode()
+	{
+		this.frames.rewind();
+		int steps = 0;
+		while (this.frames.hasRemaining())
+		{
+			this.socket.inbound(this.frames);
+			while (this.socket.receive())
+				steps++;
+		}
+		return steps;
+	}
+}
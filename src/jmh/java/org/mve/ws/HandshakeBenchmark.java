@@ -0,0 +1,80 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Finding the end of the HTTP header and parsing it in place, and the accept key the server answers with
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark
+{
+	private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+	private final Handshake handshake = new Handshake();
+	private final ByteBuffer request = HandshakeBenchmark.buffer(
+		"GET /chat HTTP/1.1\r\n" +
+		"Host: server.example.com\r\n" +
+		"Upgrade: websocket\r\n" +
+		"Connection: keep-alive, Upgrade\r\n" +
+		"Sec-WebSocket-Key: " + HandshakeBenchmark.KEY + "\r\n" +
+		"Sec-WebSocket-Version: 13\r\n" +
+		"Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n" +
+		"User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n" +
+		"Origin: http://example.com\r\n\r\n");
+	private final ByteBuffer response = HandshakeBenchmark.buffer(
+		"HTTP/1.1 101 Switching Protocols\r\n" +
+		"Upgrade: websocket\r\n" +
+		"Connection: Upgrade\r\n" +
+		"Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n\r\n");
+
+	// What the server checks before answering
+	@Benchmark
+	public boolean request()
+	{
+		this.handshake.reset();
+		int end = this.handshake.terminate(this.request);
+		this.handshake.parse(this.request, end);
+		return this.handshake.token(0, WebSocket.METHOD_GET)
+			&& this.handshake.contains(WebSocket.HEADER_CONNECTION, "Upgrade")
+			&& this.handshake.equals(WebSocket.HEADER_UPGRADE, "websocket", true)
+			&& this.handshake.has(WebSocket.HEADER_SEC_WS_KEY);
+	}
+
+	// What the client checks, including its own accept key
+	@Benchmark
+	public boolean response()
+	{
+		this.handshake.reset();
+		int end = this.handshake.terminate(this.response);
+		this.handshake.parse(this.response, end);
+		return this.handshake.status() == 101
+			&& this.handshake.contains(WebSocket.HEADER_CONNECTION, "Upgrade")
+			&& this.handshake.equals(WebSocket.HEADER_SEC_WS_ACCEPT, WebSocket.accept(HandshakeBenchmark.KEY), false);
+	}
+
+	@Benchmark
+	public String accept()
+	{
+		return WebSocket.accept(HandshakeBenchmark.KEY);
+	}
+
+	private static ByteBuffer buffer(String text)
+	{
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,96 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Binary messages between a blocking client and a server on an event loop in the same process.
+// The server echoes messages whose first byte is 1 and drops the others, so one connection serves
+// the one-way throughput and the round trip latency
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark
+{
+	@Param({"1", "125", "4096", "65536", "1048576"})
+	public int size;
+
+	private WebSocketEventLoop loop;
+	private WebSocketServer server;
+	private WebSocket socket;
+	private ByteBuffer drop;
+	private ByteBuffer echo;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		this.loop = new WebSocketEventLoop();
+		this.server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), this.loop, accepted::offer);
+		this.socket = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) this.server.address()).getPort());
+		if (!this.socket.finish())
+			throw new IllegalStateException("Connection failed");
+		while (accepted.isEmpty())
+			Thread.sleep(1);
+		accepted.poll().listener(new WebSocket.Listener()
+		{
+			@Override
+			public void onBinary(WebSocket socket, Message message)
+			{
+				ByteBuffer payload = message.payload();
+				if (payload.get(0) == 1) socket.sendAsync(payload).whenComplete((v, t) -> message.release());
+				else message.release();
+			}
+		});
+		this.socket.messaging(true);
+		this.drop = ByteBuffer.allocate(this.size);
+		this.echo = ByteBuffer.allocate(this.size);
+		this.echo.put(0, (byte) 1);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.socket.reset();
+		this.server.close();
+		this.loop.close();
+	}
+
+	// Messages handed to the channel, the peer's reading holds the sender back through TCP
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	public void send()
+	{
+		this.drop.clear();
+		this.socket.write(this.drop);
+	}
+
+	// Sampled so the results carry the percentiles
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	public int roundTrip()
+	{
+		this.echo.clear();
+		this.socket.write(this.echo);
+		Message message = this.socket.readMessage();
+		int length = message.length();
+		message.release();
+		return length;
+	}
+}
@@ -0,0 +1,96 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskingKeyBenchmark
+{
+	@Param({"16", "125", "4096", "65536", "1048576"})
+	public int size;
+
+	private final MaskingKey key = new MaskingKey();
+	private byte[] mask;
+	private byte[] data;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+	private ByteBuffer target;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(0);
+		this.key.next(random);
+		this.key.having = true;
+		this.mask = this.key.value();
+		this.data = new byte[this.size];
+		random.nextBytes(this.data);
+		this.heap = ByteBuffer.wrap(this.data);
+		this.direct = ByteBuffer.allocateDirect(this.size);
+		this.direct.put(this.data);
+		this.direct.clear();
+		this.target = ByteBuffer.allocateDirect(this.size);
+	}
+
+	// The byte loop MaskingKey used before masking whole words
+	@Benchmark
+	public byte[] bytes()
+	{
+		int position = 0;
+		for (int i = 0; i < this.data.length; i++)
+		{
+			this.data[i] ^= this.mask[position];
+			position++;
+			position &= 3;
+		}
+		return this.data;
+	}
+
+	@Benchmark
+	public byte[] array()
+	{
+		this.key.masking(this.data);
+		return this.data;
+	}
+
+	@Benchmark
+	public ByteBuffer heap()
+	{
+		this.key.masking(this.heap);
+		return this.heap;
+	}
+
+	@Benchmark
+	public ByteBuffer direct()
+	{
+		this.key.masking(this.direct);
+		return this.direct;
+	}
+
+	@Benchmark
+	public ByteBuffer copy()
+	{
+		this.heap.clear();
+		this.target.clear();
+		this.key.masking(this.heap, this.target);
+		return this.target;
+	}
+}
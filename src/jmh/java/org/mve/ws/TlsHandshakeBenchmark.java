@@ -0,0 +1,98 @@
+package org.mve.ws;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+// Time to open a wss connection over loopback, with a full or a resumed TLS handshake
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBenchmark
+{
+	@Param({"true", "false"})
+	public boolean resume;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Handshakes
+	{
+		// Nanoseconds spent in the TLS handshake alone and how many were resumed
+		public long tls;
+		public long resumed;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			this.tls = 0;
+			this.resumed = 0;
+		}
+	}
+
+	private WebSocketEventLoop loop;
+	private WebSocketServer server;
+	private WebSocket socket;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		try (InputStream in = TlsHandshakeBenchmark.class.getResourceAsStream("/localhost.p12"))
+		{
+			store.load(in, "changeit".toCharArray());
+		}
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(store, "changeit".toCharArray());
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(store);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+		this.loop = new WebSocketEventLoop();
+		this.server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), this.loop, socket -> {});
+		this.server.tls(context);
+		this.socket = new WebSocket("wss://127.0.0.1:" + ((InetSocketAddress) this.server.address()).getPort());
+		this.socket.tls(context);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.socket.reset();
+		this.server.close();
+		this.loop.close();
+	}
+
+	@Benchmark
+	public boolean connect(Handshakes handshakes)
+	{
+		boolean connected = this.socket.finish();
+		handshakes.tls += this.socket.handshakeTime();
+		if (this.socket.resumed()) handshakes.resumed++;
+		// An invalidated session is dropped from the client cache
+		if (!this.resume) this.socket.session().invalidate();
+		this.socket.close();
+		return connected;
+	}
+}
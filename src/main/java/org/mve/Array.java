@@ -1,22 +1,60 @@
 package org.mve;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+// Ring buffer over a power-of-two store, head and tail only grow and are masked on access
 public class Array
 {
-	private byte[] array;
+	// Store of an empty pooled array, never written since every put expands first
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private ByteBuffer store;
+	private int mask;
+	// Write and read counters, head - tail is the length even after they overflow
 	private int head = 0;
 	private int tail = 0;
+	private final boolean direct;
+	// Pooled arrays borrow their store on the first put and give it back in recycle()
+	private final BufferPool pool;
+	private boolean pooled = false;
+	// Growth past limit bytes fails with OverflowException
+	private int limit = 1 << 30;
+	// Views over the store for bulk copies and the readable and writable regions
+	private ByteBuffer view;
+	private final ByteBuffer[] views = new ByteBuffer[2];
+
+	public Array(int capacity, boolean direct)
+	{
+		this.direct = direct;
+		this.pool = null;
+		this.store(Array.allocate(Array.power(Math.max(capacity, 1)), direct));
+	}
 
 	public Array(int capacity)
 	{
-		if (capacity <= 0) capacity = 1;
-		this.array = new byte[capacity + 1];
+		this(capacity, false);
+	}
+
+	public Array(BufferPool pool, boolean direct)
+	{
+		this.direct = direct;
+		this.pool = pool;
+		this.store(Array.EMPTY);
+	}
+
+	public Array(BufferPool pool)
+	{
+		this(pool, false);
 	}
 
 	public void put(int b)
 	{
 		this.expand(this.length() + 1);
-		this.array[this.head++] = (byte) b;
-		this.head %= this.array.length;
+		this.store.put(this.head++ & this.mask, (byte) b);
 	}
 
 	public void put(byte[] buf)
@@ -29,48 +67,71 @@ public class Array
 		if (len <= 0) return;
 		if (off + len > buf.length) throw new ArrayIndexOutOfBoundsException(off + len);
 		this.expand(this.length() + len);
-		int clen = len;
-		if (clen > this.array.length - this.head) clen = this.array.length - this.head;
-		System.arraycopy(buf, off, this.array, this.head, clen);
-		off += clen;
-		len -= clen;
-		this.head += clen;
-		this.head %= this.array.length;
-		if (len > 0) System.arraycopy(buf, off, this.array, this.head, len);
+		int idx = this.head & this.mask;
+		int clen = Math.min(len, this.store.capacity() - idx);
+		this.view(idx, clen).put(buf, off, clen);
+		if (len > clen) this.view(0, len - clen).put(buf, off + clen, len - clen);
+		this.head += len;
+	}
+
+	public void put(ByteBuffer buf)
+	{
+		int len = buf.remaining();
+		if (len == 0) return;
+		this.expand(this.length() + len);
+		int idx = this.head & this.mask;
+		int clen = Math.min(len, this.store.capacity() - idx);
+		int limit = buf.limit();
+		buf.limit(buf.position() + clen);
+		this.view(idx, clen).put(buf);
+		buf.limit(limit);
+		if (len > clen) this.view(0, len - clen).put(buf);
 		this.head += len;
 	}
 
 	public void put(int idx, int b)
 	{
-		if (this.length() == 0) throw new ArrayIndexOutOfBoundsException(idx);
-		this.array[(this.tail + idx) % this.array.length] = (byte) b;
+		if (idx < 0 || idx >= this.length()) throw new ArrayIndexOutOfBoundsException(idx);
+		this.store.put((this.tail + idx) & this.mask, (byte) b);
 	}
 
+	// Appends the low len bytes of val, most significant first
 	public void integer(long val, int len)
 	{
 		if (len < 0 || len > 8)
 			throw new IllegalArgumentException(String.valueOf(len));
-		byte[] buf = new byte[len];
-		while (len-- > 0)
+		this.expand(this.length() + len);
+		int idx = this.head & this.mask;
+		if (idx + len <= this.store.capacity())
 		{
-			buf[len] = (byte) (val & 0xFF);
-			val >>>= 8;
+			switch (len)
+			{
+				case 8: this.store.putLong(idx, val); break;
+				case 4: this.store.putInt(idx, (int) val); break;
+				case 2: this.store.putShort(idx, (short) val); break;
+				default:
+					for (int i = len - 1; i >= 0; i--, val >>>= 8)
+						this.store.put(idx + i, (byte) val);
+			}
 		}
-		this.put(buf, 0, buf.length);
+		else
+		{
+			for (int i = len - 1; i >= 0; i--, val >>>= 8)
+				this.store.put((this.head + i) & this.mask, (byte) val);
+		}
+		this.head += len;
 	}
 
 	public byte front()
 	{
 		if (this.length() == 0) return -1;
-		return this.array[this.tail];
+		return this.store.get(this.tail & this.mask);
 	}
 
 	public int get()
 	{
 		if (this.length() == 0) return -1;
-		byte b = this.array[this.tail++];
-		this.tail %= this.array.length;
-		return b & 0xFF;
+		return this.store.get(this.tail++ & this.mask) & 0xFF;
 	}
 
 	public void get(byte[] buf)
@@ -82,87 +143,214 @@ public class Array
 	{
 		if (len <= 0) return;
 		if (len > this.length() || (off + len) > buf.length) throw new ArrayIndexOutOfBoundsException(len);
-		int clen = len;
-		if (this.tail + clen > this.array.length) clen = this.array.length - this.tail;
-		System.arraycopy(this.array, this.tail, buf, off, clen);
-		off += clen;
-		len -= clen;
-		this.tail += clen;
-		this.tail %= this.array.length;
-		if (len > 0) System.arraycopy(this.array, 0, buf, off, len);
+		int idx = this.tail & this.mask;
+		int clen = Math.min(len, this.store.capacity() - idx);
+		this.view(idx, clen).get(buf, off, clen);
+		if (len > clen) this.view(0, len - clen).get(buf, off + clen, len - clen);
 		this.tail += len;
 	}
 
+	public void get(ByteBuffer buf)
+	{
+		int len = Math.min(this.length(), buf.remaining());
+		if (len <= 0) return;
+		int idx = this.tail & this.mask;
+		int clen = Math.min(len, this.store.capacity() - idx);
+		buf.put(this.view(idx, clen));
+		if (len > clen) buf.put(this.view(0, len - clen));
+		this.tail += len;
+	}
+
+	// The byte at idx from the front, -1 past the end
 	public int get(int idx)
 	{
-		if (idx >= this.length()) return -1;
-		return this.array[(this.tail + idx) % this.array.length];
+		if (idx < 0 || idx >= this.length()) return -1;
+		return this.store.get((this.tail + idx) & this.mask);
 	}
 
+	// Removes len bytes from the front as one big-endian value
 	public long integer(int len)
 	{
 		if (len < 0 || len > 8)
 			throw new IllegalArgumentException(String.valueOf(len));
 		if (len > this.length())
 			throw new ArrayIndexOutOfBoundsException(len);
+		int idx = this.tail & this.mask;
 		long val = 0;
-		while (len-- > 0)
+		if (idx + len <= this.store.capacity())
+		{
+			switch (len)
+			{
+				case 8: val = this.store.getLong(idx); break;
+				case 4: val = this.store.getInt(idx) & 0xFFFFFFFFL; break;
+				case 2: val = this.store.getShort(idx) & 0xFFFF; break;
+				default:
+					for (int i = 0; i < len; i++)
+						val = (val << 8) | (this.store.get(idx + i) & 0xFF);
+			}
+		}
+		else
 		{
-			val <<= 8;
-			val |= this.get();
+			for (int i = 0; i < len; i++)
+				val = (val << 8) | (this.store.get((this.tail + i) & this.mask) & 0xFF);
 		}
+		this.tail += len;
 		return val;
 	}
 
+	// Drops the last len bytes written
 	public void trim(int len)
 	{
 		if (len > this.length()) len = this.length();
-		this.head += this.array.length;
-		this.head -= len;
-		this.head %= this.array.length;
+		if (len > 0) this.head -= len;
 	}
 
-	public void expand(int cap)
+	// Drops the first len bytes, after they were written out of readable()
+	public void skip(int len)
 	{
-		if (this.capacity() >= cap) return;
-		int oldCap = this.array.length - 1;
-		while (oldCap < cap) oldCap *= 2;
-		byte[] newArray = new byte[oldCap + 1];
+		if (len < 0 || len > this.length()) throw new ArrayIndexOutOfBoundsException(len);
+		this.tail += len;
+	}
 
-		int length = this.length();
-		int len = length;
-		if (this.tail + length > this.array.length)
-		{
-			len = this.array.length - this.tail;
-		}
-		System.arraycopy(this.array, this.tail, newArray, 0, len);
+	// Appends len bytes that were read into writable()
+	public void commit(int len)
+	{
+		if (len < 0 || len > this.capacity() - this.length()) throw new ArrayIndexOutOfBoundsException(len);
+		this.head += len;
+	}
 
-		length -= len;
-		if (length > 0)
-		{
-			System.arraycopy(this.array, 0, newArray, len, length);
-		}
+	// The readable bytes as up to two views, the second one empty unless they wrap around.
+	// The views are reused by the next call
+	public ByteBuffer[] readable()
+	{
+		int len = this.length();
+		int idx = this.tail & this.mask;
+		int clen = Math.min(len, this.store.capacity() - idx);
+		Array.region(this.views[0], idx, clen);
+		Array.region(this.views[1], 0, len - clen);
+		return this.views;
+	}
 
-		length = this.length();
-		this.array = newArray;
+	// The free space as up to two views, nothing is appended until commit()
+	public ByteBuffer[] writable()
+	{
+		int len = this.capacity() - this.length();
+		int idx = this.head & this.mask;
+		int clen = Math.min(len, this.store.capacity() - idx);
+		Array.region(this.views[0], idx, clen);
+		Array.region(this.views[1], 0, len - clen);
+		return this.views;
+	}
+
+	// Writes readable bytes to the channel without copying them first
+	public long write(GatheringByteChannel channel) throws IOException
+	{
+		if (this.length() == 0) return 0;
+		long n = channel.write(this.readable());
+		if (n > 0) this.tail += (int) n;
+		return n;
+	}
+
+	// Reads into the free space, at least min bytes of it
+	public long read(ScatteringByteChannel channel, int min) throws IOException
+	{
+		this.expand(this.length() + Math.max(min, 1));
+		long n = channel.read(this.writable());
+		if (n > 0) this.head += (int) n;
+		return n;
+	}
+
+	public void expand(int cap)
+	{
+		if (this.capacity() >= cap) return;
+		if (cap > this.limit) throw new OverflowException("Array length " + cap + " exceeds " + this.limit);
+		int size = Array.power(cap);
+		ByteBuffer store = this.pool != null ? this.pool.acquire(size, this.direct) : Array.allocate(size, this.direct);
+		int length = this.length();
+		store.clear();
+		if (length > 0) this.get(store);
+		ByteBuffer old = this.store;
+		boolean pooled = this.pooled;
+		this.store(store);
+		this.pooled = this.pool != null;
 		this.tail = 0;
 		this.head = length;
+		if (pooled) this.pool.release(old);
+	}
+
+	// Returns the store of an empty pooled array to its pool
+	public void recycle()
+	{
+		if (!this.pooled || this.length() != 0) return;
+		ByteBuffer old = this.store;
+		this.store(Array.EMPTY);
+		this.pooled = false;
+		this.head = 0;
+		this.tail = 0;
+		this.pool.release(old);
 	}
 
 	public int position()
 	{
-		return this.tail;
+		return this.tail & this.mask;
 	}
 
 	public int length()
 	{
-		if (this.head >= this.tail) return this.head - this.tail;
-
-		return (this.array.length - this.tail) + this.head;
+		return this.head - this.tail;
 	}
 
 	public int capacity()
 	{
-		return this.array.length - 1;
+		return this.store.capacity();
+	}
+
+	public void limit(int limit)
+	{
+		if (limit < 0 || limit > 1 << 30)
+			throw new IllegalArgumentException("Invalid limit " + limit);
+		this.limit = limit;
+	}
+
+	public int limit()
+	{
+		return this.limit;
+	}
+
+	public boolean direct()
+	{
+		return this.direct;
+	}
+
+	private void store(ByteBuffer store)
+	{
+		// Multi-byte integers are big-endian, whatever order a pooled buffer was left in
+		this.store = store.order(ByteOrder.BIG_ENDIAN);
+		this.mask = store.capacity() - 1;
+		this.view = this.store.duplicate();
+		this.views[0] = this.store.duplicate();
+		this.views[1] = this.store.duplicate();
+	}
+
+	private ByteBuffer view(int idx, int len)
+	{
+		Array.region(this.view, idx, len);
+		return this.view;
+	}
+
+	private static void region(ByteBuffer view, int idx, int len)
+	{
+		view.limit(idx + len);
+		view.position(idx);
+	}
+
+	private static ByteBuffer allocate(int size, boolean direct)
+	{
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private static int power(int n)
+	{
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
 	}
 }
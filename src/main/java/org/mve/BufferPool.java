@@ -0,0 +1,239 @@
+package org.mve;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Heap and direct buffers in power-of-two size classes, each thread keeps a few per class
+// and hands the rest to a shared overflow. Direct buffers are carved from larger slabs
+public class BufferPool
+{
+	public static final int MIN_SHIFT = 12;
+	public static final int MAX_SHIFT = 22;
+	public static final int MIN_SIZE = 1 << BufferPool.MIN_SHIFT;
+	// Larger buffers are allocated on demand and dropped on release
+	public static final int MAX_SIZE = 1 << BufferPool.MAX_SHIFT;
+	public static final int SLAB_SIZE = 1 << 20;
+	public static final BufferPool SHARED = new BufferPool(8, 1024);
+
+	private static final int CLASSES = BufferPool.MAX_SHIFT - BufferPool.MIN_SHIFT + 1;
+
+	// Buffers per size class kept by each thread and by the shared overflow
+	private final int cached;
+	private final Stack[] heap = new Stack[BufferPool.CLASSES];
+	private final Stack[] direct = new Stack[BufferPool.CLASSES];
+	private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder allocations = new LongAdder();
+	private final LongAdder allocated = new LongAdder();
+	private final LongAdder outstanding = new LongAdder();
+
+	public BufferPool(int cached, int shared)
+	{
+		if (cached < 0 || shared < 0)
+			throw new IllegalArgumentException("Invalid pool size");
+		this.cached = cached;
+		for (int i = 0; i < BufferPool.CLASSES; i++)
+		{
+			this.heap[i] = new Stack(shared);
+			this.direct[i] = new Stack(shared);
+		}
+	}
+
+	// A cleared buffer of at least capacity bytes
+	public ByteBuffer acquire(int capacity, boolean direct)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity cannot be negative");
+		if (capacity > BufferPool.MAX_SIZE)
+		{
+			this.misses.increment();
+			this.allocations.increment();
+			this.allocated.add(capacity);
+			this.outstanding.add(capacity);
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+		int index = BufferPool.index(capacity);
+		ByteBuffer buf = this.caches.get().pop(direct, index);
+		if (buf == null) buf = (direct ? this.direct : this.heap)[index].pop();
+		if (buf != null) this.hits.increment();
+		else
+		{
+			this.misses.increment();
+			buf = this.allocate(index, direct);
+		}
+		this.outstanding.add(buf.capacity());
+		buf.clear();
+		return buf;
+	}
+
+	public ByteBuffer acquire(int capacity)
+	{
+		return this.acquire(capacity, false);
+	}
+
+	// Takes back a buffer from acquire(), which must not be used afterwards
+	public void release(ByteBuffer buf)
+	{
+		int capacity = buf.capacity();
+		if (capacity == 0) return;
+		this.outstanding.add(-capacity);
+		if (capacity > BufferPool.MAX_SIZE || Integer.bitCount(capacity) != 1 || capacity < BufferPool.MIN_SIZE)
+			return;
+		int index = BufferPool.index(capacity);
+		boolean direct = buf.isDirect();
+		buf.clear();
+		if (!this.caches.get().push(direct, index, buf))
+			(direct ? this.direct : this.heap)[index].push(buf);
+	}
+
+	// Replaces buf with one of at least capacity bytes holding the same content up to its position.
+	// Past MAX_SIZE it at least doubles, so a buffer grown a frame at a time copies each byte only a few times
+	public ByteBuffer grow(ByteBuffer buf, int capacity)
+	{
+		if (buf.capacity() >= capacity) return buf;
+		if (capacity > BufferPool.MAX_SIZE)
+			capacity = (int) Math.max(capacity, Math.min(Integer.MAX_VALUE - 8, 2L * buf.capacity()));
+		ByteBuffer grown = this.acquire(capacity, buf.isDirect());
+		buf.flip();
+		grown.put(buf);
+		this.release(buf);
+		return grown;
+	}
+
+	// Buffers served from a cache or the overflow
+	public long hits()
+	{
+		return this.hits.sum();
+	}
+
+	public long misses()
+	{
+		return this.misses.sum();
+	}
+
+	public double hitRate()
+	{
+		long hits = this.hits.sum();
+		long total = hits + this.misses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	// Heap buffers, slabs and oversized buffers allocated so far
+	public long allocations()
+	{
+		return this.allocations.sum();
+	}
+
+	public long allocated()
+	{
+		return this.allocated.sum();
+	}
+
+	// Bytes acquired and not released yet
+	public long outstanding()
+	{
+		return this.outstanding.sum();
+	}
+
+	private ByteBuffer allocate(int index, boolean direct)
+	{
+		int size = BufferPool.MIN_SIZE << index;
+		this.allocations.increment();
+		if (!direct || size >= BufferPool.SLAB_SIZE)
+		{
+			this.allocated.add(size);
+			return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		// The other slices of the slab go to the overflow, as many as it has room for
+		ByteBuffer slab = ByteBuffer.allocateDirect(BufferPool.SLAB_SIZE);
+		this.allocated.add(BufferPool.SLAB_SIZE);
+		Stack stack = this.direct[index];
+		for (int off = size; off < BufferPool.SLAB_SIZE; off += size)
+		{
+			slab.limit(off + size);
+			slab.position(off);
+			if (!stack.push(slab.slice())) break;
+		}
+		slab.limit(size);
+		slab.position(0);
+		return slab.slice();
+	}
+
+	private static int index(int capacity)
+	{
+		if (capacity <= BufferPool.MIN_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - BufferPool.MIN_SHIFT;
+	}
+
+	private static class Stack
+	{
+		private final ByteBuffer[] buffers;
+		private int size = 0;
+		private final ReentrantLock locking = new ReentrantLock();
+
+		private Stack(int capacity)
+		{
+			this.buffers = new ByteBuffer[capacity];
+		}
+
+		private ByteBuffer pop()
+		{
+			this.locking.lock();
+			try
+			{
+				if (this.size == 0) return null;
+				ByteBuffer buf = this.buffers[--this.size];
+				this.buffers[this.size] = null;
+				return buf;
+			}
+			finally
+			{
+				this.locking.unlock();
+			}
+		}
+
+		private boolean push(ByteBuffer buf)
+		{
+			this.locking.lock();
+			try
+			{
+				if (this.size == this.buffers.length) return false;
+				this.buffers[this.size++] = buf;
+				return true;
+			}
+			finally
+			{
+				this.locking.unlock();
+			}
+		}
+	}
+
+	private class Cache
+	{
+		private final ByteBuffer[][] heap = new ByteBuffer[BufferPool.CLASSES][BufferPool.this.cached];
+		private final ByteBuffer[][] direct = new ByteBuffer[BufferPool.CLASSES][BufferPool.this.cached];
+		private final int[] heaps = new int[BufferPool.CLASSES];
+		private final int[] directs = new int[BufferPool.CLASSES];
+
+		private ByteBuffer pop(boolean direct, int index)
+		{
+			int[] sizes = direct ? this.directs : this.heaps;
+			if (sizes[index] == 0) return null;
+			ByteBuffer[] stack = (direct ? this.direct : this.heap)[index];
+			ByteBuffer buf = stack[--sizes[index]];
+			stack[sizes[index]] = null;
+			return buf;
+		}
+
+		private boolean push(boolean direct, int index, ByteBuffer buf)
+		{
+			int[] sizes = direct ? this.directs : this.heaps;
+			ByteBuffer[] stack = (direct ? this.direct : this.heap)[index];
+			if (sizes[index] == stack.length) return false;
+			stack[sizes[index]++] = buf;
+			return true;
+		}
+	}
+}
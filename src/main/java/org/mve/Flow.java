@@ -0,0 +1,37 @@
+package org.mve;
+
+// The interfaces of java.util.concurrent.Flow for Java 8, with the same methods so adapting
+// between the two takes a one-line wrapper on newer runtimes
+public final class Flow
+{
+	private Flow()
+	{
+	}
+
+	public interface Publisher<T>
+	{
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public interface Subscriber<T>
+	{
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	public interface Subscription
+	{
+		void request(long n);
+
+		void cancel();
+	}
+
+	public interface Processor<T, R> extends Subscriber<T>, Publisher<R>
+	{
+	}
+}
@@ -0,0 +1,93 @@
+package org.mve;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts of non-negative values in buckets of 1/8 of a power of two, so percentiles are within 12.5%.
+// Recording is a striped add, safe and cheap from any number of threads
+public class Histogram
+{
+	// Values below 16 get a bucket each, then 8 buckets for every power of two up to 2^62
+	private static final int BUCKETS = 16 + 59 * 8;
+
+	private final LongAdder[] buckets = new LongAdder[Histogram.BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public Histogram()
+	{
+		for (int i = 0; i < this.buckets.length; i++)
+			this.buckets[i] = new LongAdder();
+	}
+
+	public void record(long value)
+	{
+		if (value < 0) value = 0;
+		this.buckets[Histogram.index(value)].increment();
+		this.sum.add(value);
+		this.max.accumulate(value);
+	}
+
+	public long count()
+	{
+		long count = 0;
+		for (LongAdder bucket : this.buckets)
+			count += bucket.sum();
+		return count;
+	}
+
+	public double mean()
+	{
+		long count = this.count();
+		return count == 0 ? 0 : (double) this.sum.sum() / count;
+	}
+
+	public long max()
+	{
+		return this.max.get();
+	}
+
+	// Upper bound of the bucket the given fraction of the values is at or below, 0 when empty
+	public long percentile(double fraction)
+	{
+		if (fraction < 0 || fraction > 1)
+			throw new IllegalArgumentException("Fraction must be between 0 and 1");
+		long[] counts = new long[this.buckets.length];
+		long count = 0;
+		for (int i = 0; i < counts.length; i++)
+			count += counts[i] = this.buckets[i].sum();
+		if (count == 0) return 0;
+		long rank = Math.max((long) Math.ceil(fraction * count), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank) return Math.min(Histogram.upper(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	public void reset()
+	{
+		for (LongAdder bucket : this.buckets)
+			bucket.reset();
+		this.sum.reset();
+		this.max.reset();
+	}
+
+	private static int index(long value)
+	{
+		if (value < 16) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - 3)) & 7;
+		return 16 + (exponent - 4) * 8 + mantissa;
+	}
+
+	private static long upper(int index)
+	{
+		if (index < 16) return index;
+		int exponent = (index - 16) / 8 + 4;
+		int mantissa = (index - 16) % 8;
+		return ((9L + mantissa) << (exponent - 3)) - 1;
+	}
+}
@@ -0,0 +1,84 @@
+package org.mve;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bytes shared by many owners up to a fixed capacity. Owners that do not fit leave a waiter,
+// which runs on the next release so they can try again
+public class MemoryBudget
+{
+	public static final MemoryBudget SHARED = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+	private final long capacity;
+	private final AtomicLong used = new AtomicLong();
+	private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+	public MemoryBudget(long capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.capacity = capacity;
+	}
+
+	// Takes n bytes if they fit, otherwise queues waiter when it is not null
+	public boolean reserve(long n, Runnable waiter)
+	{
+		if (this.fit(n)) return true;
+		if (waiter == null) return false;
+		this.waiters.offer(waiter);
+		// Bytes released before the waiter was queued would not have run it
+		if (!this.fit(n)) return false;
+		this.waiters.remove(waiter);
+		return true;
+	}
+
+	public boolean reserve(long n)
+	{
+		return this.reserve(n, null);
+	}
+
+	// Takes n bytes even past the capacity, for data that has arrived already
+	public void charge(long n)
+	{
+		if (n < 0)
+			throw new IllegalArgumentException("Size cannot be negative");
+		this.used.addAndGet(n);
+	}
+
+	public void release(long n)
+	{
+		if (n <= 0) return;
+		this.used.addAndGet(-n);
+		Runnable waiter;
+		while ((waiter = this.waiters.poll()) != null)
+			waiter.run();
+	}
+
+	public long capacity()
+	{
+		return this.capacity;
+	}
+
+	public long used()
+	{
+		return this.used.get();
+	}
+
+	public long available()
+	{
+		return Math.max(this.capacity - this.used.get(), 0);
+	}
+
+	private boolean fit(long n)
+	{
+		if (n < 0)
+			throw new IllegalArgumentException("Size cannot be negative");
+		while (true)
+		{
+			long used = this.used.get();
+			if (used + n > this.capacity) return false;
+			if (this.used.compareAndSet(used, used + n)) return true;
+		}
+	}
+}
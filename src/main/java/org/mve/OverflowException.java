@@ -1,5 +1,14 @@
 package org.mve;
 
+// A bounded buffer was asked to hold more than its limit
 public class OverflowException extends RuntimeException
 {
+	public OverflowException()
+	{
+	}
+
+	public OverflowException(String message)
+	{
+		super(message);
+	}
 }
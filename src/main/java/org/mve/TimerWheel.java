@@ -0,0 +1,151 @@
+package org.mve;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel: a timeout goes into the bucket of the tick it expires on, so scheduling and
+// cancelling cost O(1) however many are pending. One thread serves all of them at tick granularity
+public class TimerWheel
+{
+	public static final TimerWheel SHARED = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(10), 512);
+
+	private final long tick;
+	private final Timeout[] buckets;
+	private final int mask;
+	// Timeouts scheduled since the last tick, moved into their buckets by the worker
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final long start = System.nanoTime();
+	// Ticks the worker has processed
+	private long ticks = 0;
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	public TimerWheel(long tickNanos, int size)
+	{
+		if (tickNanos <= 0 || size <= 0 || (size & (size - 1)) != 0)
+			throw new IllegalArgumentException("Tick must be positive and size a power of two");
+		this.tick = tickNanos;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+	}
+
+	// Runs task on the timer thread once delay has passed, tasks should hand anything slow on
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(unit.toNanos(delay), 0));
+		this.added.offer(timeout);
+		if (!this.started.get() && this.started.compareAndSet(false, true))
+		{
+			Thread thread = new Thread(this::run, "TimerWheel");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return timeout;
+	}
+
+	public long tick()
+	{
+		return this.tick;
+	}
+
+	private void run()
+	{
+		while (true)
+		{
+			long deadline = this.start + (this.ticks + 1) * this.tick;
+			long sleep;
+			while ((sleep = deadline - System.nanoTime()) > 0)
+				LockSupport.parkNanos(this, sleep);
+			this.transfer();
+			this.expire(this.ticks & this.mask);
+			this.ticks++;
+		}
+	}
+
+	private void transfer()
+	{
+		Timeout timeout;
+		while ((timeout = this.added.poll()) != null)
+		{
+			if (timeout.state.get() != Timeout.PENDING) continue;
+			// The tick the deadline falls in, never one that has been processed already
+			long due = Math.max((timeout.deadline - this.start + this.tick - 1) / this.tick - 1, this.ticks);
+			timeout.rounds = (due - this.ticks) / this.buckets.length;
+			int index = (int) (due & this.mask);
+			timeout.next = this.buckets[index];
+			this.buckets[index] = timeout;
+		}
+	}
+
+	private void expire(long index)
+	{
+		Timeout prev = null;
+		Timeout timeout = this.buckets[(int) index];
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			boolean remove = timeout.state.get() != Timeout.PENDING;
+			if (!remove && timeout.rounds-- <= 0)
+			{
+				remove = true;
+				if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+				{
+					try
+					{
+						timeout.task.run();
+					}
+					catch (Throwable ignored)
+					{
+					}
+				}
+			}
+			if (remove)
+			{
+				if (prev == null) this.buckets[(int) index] = next;
+				else prev.next = next;
+				timeout.next = null;
+			}
+			else prev = timeout;
+			timeout = next;
+		}
+	}
+
+	public static class Timeout
+	{
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(Timeout.PENDING);
+		// Turns of the wheel left, and the next timeout in the bucket, both kept by the worker
+		private long rounds;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		// False when the task has run already, a cancelled timeout leaves its bucket on the next turn
+		public boolean cancel()
+		{
+			return this.state.compareAndSet(Timeout.PENDING, Timeout.CANCELLED) || this.state.get() == Timeout.CANCELLED;
+		}
+
+		public boolean cancelled()
+		{
+			return this.state.get() == Timeout.CANCELLED;
+		}
+
+		public boolean expired()
+		{
+			return this.state.get() == Timeout.EXPIRED;
+		}
+	}
+}
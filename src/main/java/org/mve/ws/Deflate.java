@@ -0,0 +1,83 @@
+package org.mve.ws;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Negotiated permessage-deflate state of one connection
+class Deflate
+{
+	// Removed from the end of every compressed message and restored before inflating
+	static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+	final int threshold;
+	final int level;
+	// False when the peer limited our window below what Deflater can produce
+	final boolean compress;
+	// No context takeover for the messages we send and the ones we receive
+	final boolean deflateReset;
+	final boolean inflateReset;
+	// Extension header the server responds with
+	final String header;
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+	private ByteBuffer output = null;
+	private ByteBuffer inflated = null;
+	private byte[] input = null;
+
+	Deflate(int threshold, int level, boolean compress, boolean deflateReset, boolean inflateReset, String header)
+	{
+		this.threshold = threshold;
+		this.level = level;
+		this.compress = compress;
+		this.deflateReset = deflateReset;
+		this.inflateReset = inflateReset;
+		this.header = header;
+	}
+
+	Deflater deflater()
+	{
+		if (this.deflater == null)
+		{
+			this.deflater = new Deflater(this.level, true);
+			this.output = ByteBuffer.allocate(WebSocket.WRITE_CHUNK);
+			this.input = new byte[8192];
+		}
+		return this.deflater;
+	}
+
+	Inflater inflater()
+	{
+		if (this.inflater == null)
+		{
+			this.inflater = new Inflater(true);
+			this.inflated = ByteBuffer.allocate(8192);
+		}
+		return this.inflater;
+	}
+
+	// Compressed bytes waiting to be framed
+	ByteBuffer output()
+	{
+		return this.output;
+	}
+
+	// Staging for buffers without an accessible array
+	byte[] input()
+	{
+		return this.input;
+	}
+
+	ByteBuffer inflated()
+	{
+		return this.inflated;
+	}
+
+	void end()
+	{
+		if (this.deflater != null) this.deflater.end();
+		if (this.inflater != null) this.inflater.end();
+		this.deflater = null;
+		this.inflater = null;
+	}
+}
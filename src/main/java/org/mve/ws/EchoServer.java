@@ -0,0 +1,207 @@
+package org.mve.ws;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// A peer on the local machine for tests and load runs, so nothing depends on a public server.
+// ECHO sends every message back as it came, FIREHOSE streams binary messages of a fixed size to every client
+// as fast as its send queue drains, SINK drops what arrives. Firehose messages of 8 bytes or more start with
+// the System.nanoTime() they were queued at. A thread of the server queues them, taking the clients in turns
+// so none holds the event loop
+public class EchoServer implements AutoCloseable
+{
+	public static final int ECHO = 0;
+	public static final int FIREHOSE = 1;
+	public static final int SINK = 2;
+	// Firehose messages queued for a client before the next one gets its turn
+	private static final int BATCH = 64;
+
+	private final WebSocketEventLoop loop;
+	private final WebSocketServer server;
+	private final int mode;
+	private final int size;
+	// Firehose clients with room in their send queue
+	private final ConcurrentLinkedQueue<WebSocket> ready = new ConcurrentLinkedQueue<>();
+	private final Firehose firehose = new Firehose();
+	private final Thread pump;
+	private volatile boolean running = true;
+
+	public EchoServer(InetSocketAddress address, int threads, int mode, int size)
+	{
+		if (mode < EchoServer.ECHO || mode > EchoServer.SINK)
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		if (size < 0)
+			throw new IllegalArgumentException("Size cannot be negative");
+		this.mode = mode;
+		this.size = size;
+		this.loop = new WebSocketEventLoop(threads);
+		try
+		{
+			this.server = new WebSocketServer(address, this.loop, this::accepted);
+		}
+		catch (RuntimeException e)
+		{
+			this.loop.close();
+			throw e;
+		}
+		// A silent client would hold its connection forever
+		this.server.handshakeTimeout(10000);
+		if (mode == EchoServer.FIREHOSE)
+		{
+			this.pump = new Thread(this::pump, "EchoServer-firehose");
+			this.pump.setDaemon(true);
+			this.pump.start();
+		}
+		else this.pump = null;
+	}
+
+	// An echo server on an ephemeral port of the loopback interface
+	public EchoServer()
+	{
+		this(new InetSocketAddress("127.0.0.1", 0), 1, EchoServer.ECHO, 0);
+	}
+
+	public InetSocketAddress address()
+	{
+		return (InetSocketAddress) this.server.address();
+	}
+
+	// ws:// URL of the server, the loopback address when bound to the wildcard one
+	public String url()
+	{
+		InetSocketAddress address = this.address();
+		String host = address.getAddress().isAnyLocalAddress() ? "127.0.0.1" : address.getAddress().getHostAddress();
+		if (host.indexOf(':') >= 0) host = "[" + host + "]";
+		return "ws://" + host + ":" + address.getPort() + "/";
+	}
+
+	public WebSocketServer server()
+	{
+		return this.server;
+	}
+
+	@Override
+	public void close()
+	{
+		this.running = false;
+		if (this.pump != null) LockSupport.unpark(this.pump);
+		this.server.close();
+		this.loop.close();
+	}
+
+	private void accepted(WebSocket socket)
+	{
+		switch (this.mode)
+		{
+			case EchoServer.ECHO:
+				socket.listener(new Echo());
+				break;
+			case EchoServer.FIREHOSE:
+				socket.writability(this.firehose);
+				socket.listener(this.firehose);
+				break;
+			default:
+				socket.listener(new WebSocket.Listener() {});
+				break;
+		}
+	}
+
+	// Queues until a client's send queue is over the high watermark, its writability handler hands it back
+	// at the low one
+	private void pump()
+	{
+		// Copied into the send queue, so one buffer serves every message
+		ByteBuffer payload = ByteBuffer.allocate(this.size);
+		while (this.running)
+		{
+			WebSocket socket = this.ready.poll();
+			if (socket == null)
+			{
+				LockSupport.park(this);
+				continue;
+			}
+			int sent = 0;
+			try
+			{
+				while (sent < EchoServer.BATCH && socket.writing())
+				{
+					payload.clear();
+					if (payload.capacity() >= 8) payload.putLong(0, System.nanoTime());
+					if (!socket.trySend(payload)) break;
+					sent++;
+				}
+			}
+			catch (Throwable t)
+			{
+				// The client went away, the connection fails on its own
+				continue;
+			}
+			if (sent == EchoServer.BATCH) this.ready.offer(socket);
+		}
+	}
+
+	// Modes by name, for the command line
+	static int mode(String name)
+	{
+		switch (name)
+		{
+			case "echo": return EchoServer.ECHO;
+			case "firehose": return EchoServer.FIREHOSE;
+			case "sink": return EchoServer.SINK;
+			default: throw new IllegalArgumentException("Unknown mode " + name);
+		}
+	}
+
+	// usage: EchoServer [port] [echo|firehose|sink] [size] [threads]
+	public static void main(String[] args) throws InterruptedException
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int mode = args.length > 1 ? EchoServer.mode(args[1]) : EchoServer.ECHO;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 125;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		EchoServer server = new EchoServer(new InetSocketAddress(port), threads, mode, size);
+		System.out.println("Listening on " + server.url());
+		Thread.currentThread().join();
+	}
+
+	private static class Echo implements WebSocket.Listener
+	{
+		@Override
+		public void onText(WebSocket socket, Message message)
+		{
+			socket.sendText(message.text(null));
+			message.release();
+		}
+
+		@Override
+		public void onBinary(WebSocket socket, Message message)
+		{
+			// Queued whatever the watermarks, the client's own pace bounds what is in flight. Large or compressed
+			// messages are framed from the payload itself, so it goes back once the echo is sent
+			socket.sendAsync(message.payload()).whenComplete((v, t) -> message.release());
+		}
+	}
+
+	private class Firehose implements WebSocket.Listener, WritabilityHandler
+	{
+		@Override
+		public void onOpen(WebSocket socket)
+		{
+			this.ready(socket);
+		}
+
+		@Override
+		public void writability(WebSocket socket, boolean writable)
+		{
+			if (writable) this.ready(socket);
+		}
+
+		private void ready(WebSocket socket)
+		{
+			EchoServer.this.ready.offer(socket);
+			LockSupport.unpark(EchoServer.this.pump);
+		}
+	}
+}
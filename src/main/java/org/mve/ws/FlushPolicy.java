@@ -0,0 +1,44 @@
+package org.mve.ws;
+
+import java.util.concurrent.TimeUnit;
+
+// When frames queued by WebSocket are written, whichever limit is reached first
+public class FlushPolicy
+{
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0, TimeUnit.NANOSECONDS);
+
+	public final int maxBytes;
+	public final long maxDelay;
+
+	public FlushPolicy(int maxBytes, long maxDelay, TimeUnit unit)
+	{
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Byte limit cannot be negative");
+		if (maxDelay < 0)
+			throw new IllegalArgumentException("Delay cannot be negative");
+		this.maxBytes = maxBytes;
+		this.maxDelay = unit.toNanos(maxDelay);
+	}
+
+	// Frames wait until maxBytes are queued or WebSocket.flush() is called
+	public static FlushPolicy bytes(int maxBytes)
+	{
+		return new FlushPolicy(maxBytes, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	// Frames wait at most maxDelay, rounded up to a tick of TimerWheel.SHARED which flushes them
+	public static FlushPolicy delay(long maxDelay, TimeUnit unit)
+	{
+		return new FlushPolicy(Integer.MAX_VALUE, maxDelay, unit);
+	}
+
+	boolean due(int bytes, long age)
+	{
+		return bytes >= this.maxBytes || age >= this.maxDelay;
+	}
+
+	boolean timed()
+	{
+		return this.maxDelay != Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,241 @@
+package org.mve.ws;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class Handshake
+{
+	private ByteBuffer buffer = null;
+	// Offset of the next unscanned byte relative to the buffer position
+	private int scan = 0;
+	private int end = -1;
+	// Start line tokens, begin and end of each
+	private final int[] start = new int[6];
+	// Begin and end of name and value for each header field
+	private int[] fields = new int[64];
+	private int count = 0;
+
+	public void reset()
+	{
+		this.buffer = null;
+		this.scan = 0;
+		this.end = -1;
+		this.count = 0;
+	}
+
+	public int terminate(ByteBuffer buffer)
+	{
+		int pos = buffer.position();
+		int lim = buffer.limit();
+		int i = pos + this.scan;
+		while (i + 3 < lim)
+		{
+			int b3 = buffer.get(i + 3);
+			if (b3 == '\n')
+			{
+				if (buffer.get(i + 2) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i) == '\r')
+				{
+					this.scan = 0;
+					return i + 4;
+				}
+				i += 2;
+			}
+			else if (b3 == '\r') i++;
+			else i += 4;
+		}
+		this.scan = i - pos;
+		return -1;
+	}
+
+	public void parse(ByteBuffer buffer, int end)
+	{
+		this.buffer = buffer;
+		this.end = end;
+		this.count = 0;
+		int pos = buffer.position();
+		int eol = this.line(pos, end);
+		if (eol == pos)
+			throw new IllegalArgumentException("Empty HTTP message");
+
+		// Start line: three tokens, the last one may contain spaces or be missing
+		int idx = pos;
+		for (int i = 0; i < 2; i++)
+		{
+			int sp = idx;
+			while (sp < eol && buffer.get(sp) != ' ') sp++;
+			if (sp == eol && i == 0)
+				throw new IllegalArgumentException("Wrong HTTP start line");
+			this.start[i * 2] = idx;
+			this.start[i * 2 + 1] = sp;
+			idx = Math.min(sp + 1, eol);
+		}
+		this.start[4] = idx;
+		this.start[5] = eol;
+
+		idx = eol + 2;
+		while (idx < end)
+		{
+			eol = this.line(idx, end);
+			if (eol == idx) break;
+			int colon = idx;
+			while (colon < eol && buffer.get(colon) != ':') colon++;
+			if (colon == eol)
+				throw new IllegalArgumentException("Wrong HTTP header");
+			int vb = colon + 1;
+			int ve = eol;
+			while (vb < ve && Handshake.space(buffer.get(vb))) vb++;
+			while (ve > vb && Handshake.space(buffer.get(ve - 1))) ve--;
+			int nb = idx;
+			int ne = colon;
+			while (ne > nb && Handshake.space(buffer.get(ne - 1))) ne--;
+			if (this.count * 4 + 4 > this.fields.length)
+			{
+				int[] fields = new int[this.fields.length * 2];
+				System.arraycopy(this.fields, 0, fields, 0, this.fields.length);
+				this.fields = fields;
+			}
+			int f = this.count * 4;
+			this.fields[f] = nb;
+			this.fields[f + 1] = ne;
+			this.fields[f + 2] = vb;
+			this.fields[f + 3] = ve;
+			this.count++;
+			idx = eol + 2;
+		}
+	}
+
+	public int end()
+	{
+		return this.end;
+	}
+
+	public int status()
+	{
+		int b = this.start[2];
+		int e = this.start[3];
+		if (e - b != 3)
+			throw new IllegalArgumentException("Wrong HTTP status code");
+		int code = 0;
+		for (int i = b; i < e; i++)
+		{
+			int d = this.buffer.get(i) - '0';
+			if (d < 0 || d > 9)
+				throw new IllegalArgumentException("Wrong HTTP status code");
+			code = code * 10 + d;
+		}
+		return code;
+	}
+
+	public boolean token(int idx, String value)
+	{
+		return this.compare(this.start[idx * 2], this.start[idx * 2 + 1], value, false);
+	}
+
+	public String token(int idx)
+	{
+		return this.string(this.start[idx * 2], this.start[idx * 2 + 1]);
+	}
+
+	public boolean has(String name)
+	{
+		return this.find(name, 0) != -1;
+	}
+
+	public boolean equals(String name, String value, boolean ignoreCase)
+	{
+		int f = this.find(name, 0);
+		if (f == -1) return false;
+		return this.compare(this.fields[f * 4 + 2], this.fields[f * 4 + 3], value, ignoreCase);
+	}
+
+	public boolean contains(String name, String token)
+	{
+		for (int f = this.find(name, 0); f != -1; f = this.find(name, f + 1))
+		{
+			int b = this.fields[f * 4 + 2];
+			int e = this.fields[f * 4 + 3];
+			while (b < e)
+			{
+				int comma = b;
+				while (comma < e && this.buffer.get(comma) != ',') comma++;
+				int tb = b;
+				int te = comma;
+				while (tb < te && Handshake.space(this.buffer.get(tb))) tb++;
+				while (te > tb && Handshake.space(this.buffer.get(te - 1))) te--;
+				if (this.compare(tb, te, token, true)) return true;
+				b = comma + 1;
+			}
+		}
+		return false;
+	}
+
+	public String value(String name)
+	{
+		String value = null;
+		for (int f = this.find(name, 0); f != -1; f = this.find(name, f + 1))
+		{
+			String v = this.string(this.fields[f * 4 + 2], this.fields[f * 4 + 3]);
+			value = value == null ? v : value + ", " + v;
+		}
+		return value;
+	}
+
+	private int find(String name, int from)
+	{
+		for (int f = from; f < this.count; f++)
+		{
+			if (this.compare(this.fields[f * 4], this.fields[f * 4 + 1], name, true))
+				return f;
+		}
+		return -1;
+	}
+
+	private int line(int idx, int end)
+	{
+		while (idx < end)
+		{
+			int b = this.buffer.get(idx);
+			if (b == '\r')
+			{
+				if (idx + 1 >= end || this.buffer.get(idx + 1) != '\n')
+					throw new IllegalArgumentException("Wrong HTTP message: Expected LF after CR");
+				return idx;
+			}
+			if (b == '\n')
+				throw new IllegalArgumentException("Wrong HTTP message: Expected CR before LF");
+			idx++;
+		}
+		throw new IllegalArgumentException("Wrong HTTP message: Unterminated line");
+	}
+
+	private boolean compare(int b, int e, String value, boolean ignoreCase)
+	{
+		if (e - b != value.length()) return false;
+		for (int i = 0; i < value.length(); i++)
+		{
+			int c1 = this.buffer.get(b + i) & 0xFF;
+			int c2 = value.charAt(i);
+			if (c1 == c2) continue;
+			if (!ignoreCase || Handshake.lower(c1) != Handshake.lower(c2)) return false;
+		}
+		return true;
+	}
+
+	private String string(int b, int e)
+	{
+		byte[] data = new byte[e - b];
+		for (int i = 0; i < data.length; i++)
+			data[i] = this.buffer.get(b + i);
+		return new String(data, StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean space(int b)
+	{
+		return b == ' ' || b == '\t';
+	}
+
+	private static int lower(int c)
+	{
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+}
@@ -0,0 +1,388 @@
+package org.mve.ws;
+
+import org.mve.Histogram;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Opens clients to one peer, all of them fanning in to it, and measures the messages that come back.
+// With ECHO each client keeps window messages in flight, or sends rate messages a second on a fixed schedule
+// with latency taken from when each message was due, so a stalled sender is not hidden. With FIREHOSE the
+// clients only receive, latency is from the time stamped in the message by the peer. Without a URL the peer
+// is an EchoServer in this process, its CPU and allocation then count as well
+public class LoadGenerator
+{
+	// Pacing of the rate mode
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final String url;
+	private int mode = EchoServer.ECHO;
+	private int clients = 16;
+	private int size = 125;
+	private int rate = 0;
+	private int window = 1;
+	private int threads = Math.max(Runtime.getRuntime().availableProcessors() / 2, 1);
+	private final Histogram latency = new Histogram();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean measuring = false;
+	private long elapsed;
+	private long cpu = -1;
+	private long allocated = -1;
+
+	// Loads the peer at url, null for an EchoServer of its own
+	public LoadGenerator(String url)
+	{
+		this.url = url;
+	}
+
+	// ECHO or FIREHOSE, the peer must be running the same mode
+	public LoadGenerator mode(int mode)
+	{
+		if (mode != EchoServer.ECHO && mode != EchoServer.FIREHOSE)
+			throw new IllegalArgumentException("Load runs echo or firehose");
+		this.mode = mode;
+		return this;
+	}
+
+	public LoadGenerator clients(int clients)
+	{
+		if (clients <= 0)
+			throw new IllegalArgumentException("Client count must be positive");
+		this.clients = clients;
+		return this;
+	}
+
+	// Bytes per message, sent in echo mode and asked of the in-process peer in firehose mode
+	public LoadGenerator size(int size)
+	{
+		if (size < 0)
+			throw new IllegalArgumentException("Size cannot be negative");
+		this.size = size;
+		return this;
+	}
+
+	// Messages a second per client, 0 sends the next as soon as one comes back
+	public LoadGenerator rate(int rate)
+	{
+		if (rate < 0)
+			throw new IllegalArgumentException("Rate cannot be negative");
+		this.rate = rate;
+		return this;
+	}
+
+	// Messages in flight per client when not paced by rate
+	public LoadGenerator window(int window)
+	{
+		if (window <= 0)
+			throw new IllegalArgumentException("Window must be positive");
+		this.window = window;
+		return this;
+	}
+
+	// Event loop threads of the clients, and of the in-process peer
+	public LoadGenerator threads(int threads)
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException("Thread count must be positive");
+		this.threads = threads;
+		return this;
+	}
+
+	// Connects, runs warmupMillis unmeasured and durationMillis measured, then closes the clients.
+	// A line a second goes to progress unless it is null
+	public void run(long warmupMillis, long durationMillis, PrintStream progress) throws Exception
+	{
+		EchoServer peer = null;
+		WebSocketEventLoop loop = new WebSocketEventLoop(this.threads);
+		Client[] clients = new Client[this.clients];
+		Thread pacer = null;
+		try
+		{
+			String url = this.url;
+			if (url == null)
+			{
+				peer = new EchoServer(new InetSocketAddress("127.0.0.1", 0), this.threads, this.mode, this.size);
+				url = peer.url();
+			}
+			CompletableFuture<?>[] connecting = new CompletableFuture<?>[clients.length];
+			for (int i = 0; i < clients.length; i++)
+			{
+				clients[i] = new Client(url);
+				connecting[i] = clients[i].socket.connectAsync(loop, 10000);
+			}
+			CompletableFuture.allOf(connecting).get();
+			if (this.mode == EchoServer.ECHO && this.rate > 0)
+			{
+				pacer = new Thread(() -> this.pace(clients), "LoadGenerator-pacer");
+				pacer.setDaemon(true);
+				pacer.start();
+			}
+			else if (this.mode == EchoServer.ECHO)
+			{
+				for (Client client : clients)
+				{
+					for (int i = 0; i < this.window; i++)
+						client.send(System.nanoTime());
+				}
+			}
+
+			this.sleep(warmupMillis, null);
+			this.latency.reset();
+			this.received.reset();
+			this.bytes.reset();
+			this.dropped.reset();
+			long cpu = LoadGenerator.cpu();
+			long allocated = LoadGenerator.allocated();
+			long start = System.nanoTime();
+			this.measuring = true;
+			this.sleep(durationMillis, progress);
+			this.measuring = false;
+			this.elapsed = System.nanoTime() - start;
+			long cpuEnd = LoadGenerator.cpu();
+			long allocatedEnd = LoadGenerator.allocated();
+			this.cpu = cpu < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpu;
+			this.allocated = allocated < 0 || allocatedEnd < 0 ? -1 : allocatedEnd - allocated;
+		}
+		finally
+		{
+			if (pacer != null) pacer.interrupt();
+			for (Client client : clients)
+			{
+				if (client != null) client.socket.close(1000);
+			}
+			loop.close();
+			if (peer != null) peer.close();
+		}
+	}
+
+	// Messages received a second over the measured run
+	public double throughput()
+	{
+		return this.elapsed == 0 ? 0 : this.received.sum() * 1e9 / this.elapsed;
+	}
+
+	public long received()
+	{
+		return this.received.sum();
+	}
+
+	// Messages not sent because the send queue was over its high watermark when they were due
+	public long dropped()
+	{
+		return this.dropped.sum();
+	}
+
+	// Nanoseconds from a message being due to it coming back, or from the peer stamping it
+	public Histogram latency()
+	{
+		return this.latency;
+	}
+
+	// Processors kept busy by this process on average, -1 when the JVM cannot tell
+	public double cpuLoad()
+	{
+		return this.cpu < 0 || this.elapsed == 0 ? -1 : (double) this.cpu / this.elapsed;
+	}
+
+	// Bytes allocated a second by the threads alive at both ends of the run, -1 when the JVM cannot tell
+	public double allocationRate()
+	{
+		return this.allocated < 0 || this.elapsed == 0 ? -1 : this.allocated * 1e9 / this.elapsed;
+	}
+
+	public String report()
+	{
+		return String.format("mode=%s clients=%d size=%d rate=%d window=%d threads=%d%n" +
+				"messages/s=%.0f MB/s=%.1f dropped=%d%n" +
+				"latency us: mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f%n" +
+				"cpu=%.2f cores alloc=%.1f MB/s",
+			this.mode == EchoServer.ECHO ? "echo" : "firehose", this.clients, this.size, this.rate, this.window,
+			this.threads, this.throughput(), this.elapsed == 0 ? 0 : this.bytes.sum() * 1e3 / this.elapsed,
+			this.dropped(), this.latency.mean() / 1e3, this.latency.percentile(0.5) / 1e3,
+			this.latency.percentile(0.99) / 1e3, this.latency.percentile(0.999) / 1e3, this.latency.max() / 1e3,
+			this.cpuLoad(), this.allocationRate() / 1e6);
+	}
+
+	// Sends for every client the messages due by now, each stamped with the time it was due
+	private void pace(Client[] clients)
+	{
+		long period = Math.max(TimeUnit.SECONDS.toNanos(1) / this.rate, 1);
+		long start = System.nanoTime();
+		long due = 0;
+		while (!Thread.currentThread().isInterrupted())
+		{
+			long now = System.nanoTime();
+			for (; start + due * period <= now; due++)
+			{
+				for (Client client : clients)
+					client.send(start + due * period);
+			}
+			LockSupport.parkNanos(LoadGenerator.TICK);
+		}
+	}
+
+	private void sleep(long millis, PrintStream progress) throws InterruptedException
+	{
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		long last = this.received.sum();
+		int second = 0;
+		long left;
+		while ((left = end - System.nanoTime()) > 0)
+		{
+			TimeUnit.NANOSECONDS.sleep(Math.min(left, TimeUnit.SECONDS.toNanos(1)));
+			if (progress == null || left < TimeUnit.SECONDS.toNanos(1)) continue;
+			long received = this.received.sum();
+			progress.printf("%3ds messages/s=%d p99=%.1fus%n", ++second, received - last,
+				this.latency.percentile(0.99) / 1e3);
+			last = received;
+		}
+	}
+
+	// CPU time of the process in nanoseconds, -1 when unknown
+	private static long cpu()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+
+	// Bytes allocated by all live threads, -1 when unknown
+	private static long allocated()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+		if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) return -1;
+		long sum = 0;
+		for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds()))
+		{
+			if (bytes > 0) sum += bytes;
+		}
+		return sum;
+	}
+
+	// usage: LoadGenerator [--url ws://host:port/] [--mode echo|firehose] [--clients n] [--size bytes]
+	//        [--rate messages/s] [--window n] [--threads n] [--warmup s] [--duration s]
+	public static void main(String[] args) throws Exception
+	{
+		if ((args.length & 1) != 0)
+			throw new IllegalArgumentException("Missing value of " + args[args.length - 1]);
+		String url = null;
+		for (int i = 0; i < args.length; i += 2)
+		{
+			if ("--url".equals(args[i])) url = args[i + 1];
+		}
+		LoadGenerator generator = new LoadGenerator(url);
+		long warmup = 2;
+		long duration = 10;
+		for (int i = 0; i < args.length; i += 2)
+		{
+			String value = args[i + 1];
+			switch (args[i])
+			{
+				case "--url": break;
+				case "--mode": generator.mode(EchoServer.mode(value)); break;
+				case "--clients": generator.clients(Integer.parseInt(value)); break;
+				case "--size": generator.size(Integer.parseInt(value)); break;
+				case "--rate": generator.rate(Integer.parseInt(value)); break;
+				case "--window": generator.window(Integer.parseInt(value)); break;
+				case "--threads": generator.threads(Integer.parseInt(value)); break;
+				case "--warmup": warmup = Long.parseLong(value); break;
+				case "--duration": duration = Long.parseLong(value); break;
+				default: throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		generator.run(TimeUnit.SECONDS.toMillis(warmup), TimeUnit.SECONDS.toMillis(duration), System.out);
+		System.out.println(generator.report());
+	}
+
+	private class Client implements WebSocket.Listener, WritabilityHandler
+	{
+		private final WebSocket socket;
+		// Copied into the send queue, so one buffer serves every message
+		private final ByteBuffer payload = ByteBuffer.allocate(LoadGenerator.this.size);
+		// Times messages in flight were due, the peer echoes them in order
+		private final long[] stamps;
+		private long head = 0;
+		private long tail = 0;
+		// Closed loop sends refused by a full queue, made up once it drains
+		private int owed = 0;
+
+		private Client(String url)
+		{
+			int rate = LoadGenerator.this.rate;
+			// Up to a second of backlog when paced
+			int capacity = rate > 0 ? Math.min(Math.max(rate, 64), 1 << 16) : LoadGenerator.this.window;
+			this.stamps = new long[capacity];
+			this.socket = new WebSocket(url);
+			this.socket.listener(this);
+			this.socket.writability(this);
+		}
+
+		private synchronized void send(long due)
+		{
+			if (this.head - this.tail == this.stamps.length)
+			{
+				if (LoadGenerator.this.measuring) LoadGenerator.this.dropped.increment();
+				return;
+			}
+			this.payload.clear();
+			if (!this.socket.trySend(this.payload))
+			{
+				if (LoadGenerator.this.rate == 0) this.owed++;
+				else if (LoadGenerator.this.measuring) LoadGenerator.this.dropped.increment();
+				return;
+			}
+			this.stamps[(int) (this.head++ % this.stamps.length)] = due;
+		}
+
+		private synchronized long sent()
+		{
+			return this.stamps[(int) (this.tail++ % this.stamps.length)];
+		}
+
+		@Override
+		public void onText(WebSocket socket, Message message)
+		{
+			this.onBinary(socket, message);
+		}
+
+		@Override
+		public void onBinary(WebSocket socket, Message message)
+		{
+			long now = System.nanoTime();
+			long due;
+			if (LoadGenerator.this.mode == EchoServer.ECHO) due = this.sent();
+			else due = message.length() >= 8 ? message.payload().getLong(0) : -1;
+			if (LoadGenerator.this.measuring)
+			{
+				LoadGenerator.this.received.increment();
+				LoadGenerator.this.bytes.add(message.length());
+				if (due >= 0) LoadGenerator.this.latency.record(now - due);
+			}
+			message.release();
+			if (LoadGenerator.this.mode == EchoServer.ECHO && LoadGenerator.this.rate == 0) this.send(now);
+		}
+
+		@Override
+		public synchronized void writability(WebSocket socket, boolean writable)
+		{
+			if (!writable) return;
+			int owed = this.owed;
+			this.owed = 0;
+			while (owed-- > 0)
+				this.send(System.nanoTime());
+		}
+	}
+}
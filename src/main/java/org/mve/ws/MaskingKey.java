@@ -1,10 +1,14 @@
 package org.mve.ws;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 public class MaskingKey
 {
 	private final byte[] masking = new byte[4];
+	// Big-endian view of masking
+	private int key = 0;
 	private int position = 0;
 	public boolean having = false;
 
@@ -12,24 +16,22 @@ public class MaskingKey
 	{
 		this.reset();
 		random.nextBytes(this.masking);
+		this.key = MaskingKey.key(this.masking);
 	}
 
 	public void set(byte[] masking)
 	{
 		System.arraycopy(masking, 0, this.masking, 0, 4);
+		this.key = MaskingKey.key(this.masking);
 	}
 
 	public void masking(byte[] data, int pos, int length)
 	{
 		if (!this.having)
 			return;
-		for (int i = 0; i < length; i++)
-		{
-			int si = pos + i;
-			data[si] ^= this.masking[this.position];
-			this.position++;
-			this.position &= 3;
-		}
+		if (pos < 0 || length < 0 || pos + length > data.length)
+			throw new ArrayIndexOutOfBoundsException(pos + length);
+		this.masking(ByteBuffer.wrap(data), pos, length);
 	}
 
 	public void masking(byte[] data)
@@ -37,16 +39,97 @@ public class MaskingKey
 		this.masking(data, 0, data.length);
 	}
 
+	// Masks the remaining bytes in place, the buffer position is not changed
+	public void masking(ByteBuffer data)
+	{
+		if (!this.having)
+			return;
+		this.masking(data, data.position(), data.remaining());
+	}
+
+	// Masks src remaining bytes into dst, advancing both buffers
+	public void masking(ByteBuffer src, ByteBuffer dst)
+	{
+		int length = src.remaining();
+		if (length > dst.remaining())
+			throw new IllegalArgumentException("Destination too small: " + dst.remaining() + " < " + length);
+		if (!this.having)
+		{
+			dst.put(src);
+			return;
+		}
+		int sp = src.position();
+		int dp = dst.position();
+		long word = this.word(src.order());
+		int i = 0;
+		if (src.order() == dst.order())
+		{
+			for (; length - i >= 8; i += 8)
+				dst.putLong(dp + i, src.getLong(sp + i) ^ word);
+		}
+		for (; i < length; i++)
+		{
+			dst.put(dp + i, (byte) (src.get(sp + i) ^ this.masking[this.position]));
+			this.position = (this.position + 1) & 3;
+		}
+		src.position(sp + length);
+		dst.position(dp + length);
+	}
+
+	// Masks length bytes from pos in place, the buffer position is not changed
+	public void masking(ByteBuffer data, int pos, int length)
+	{
+		if (!this.having)
+			return;
+		if (pos < 0 || length < 0 || pos + length > data.limit())
+			throw new IndexOutOfBoundsException(String.valueOf(pos + length));
+		long word = this.word(data.order());
+		int end = pos + length;
+		int i = pos;
+		// Eight bytes span two whole keys, so the key offset is unchanged after each word
+		for (; end - i >= 8; i += 8)
+			data.putLong(i, data.getLong(i) ^ word);
+		for (; i < end; i++)
+		{
+			data.put(i, (byte) (data.get(i) ^ this.masking[this.position]));
+			this.position = (this.position + 1) & 3;
+		}
+	}
+
+	// Key repeated over eight bytes starting at the current offset
+	private long word(ByteOrder order)
+	{
+		int rotated = Integer.rotateLeft(this.key, this.position << 3);
+		if (order == ByteOrder.LITTLE_ENDIAN) rotated = Integer.reverseBytes(rotated);
+		return ((long) rotated << 32) | (rotated & 0xFFFFFFFFL);
+	}
+
 	public void reset()
 	{
 		for (int i = 0; i < this.masking.length; i++)
 			masking[i] = 0;
+		this.key = 0;
 		this.position = 0;
 		this.having = false;
 	}
 
+	public int position()
+	{
+		return this.position;
+	}
+
 	public byte[] value()
 	{
 		return this.masking.clone();
 	}
+
+	public void value(ByteBuffer buffer)
+	{
+		buffer.put(this.masking);
+	}
+
+	private static int key(byte[] masking)
+	{
+		return ((masking[0] & 0xFF) << 24) | ((masking[1] & 0xFF) << 16) | ((masking[2] & 0xFF) << 8) | (masking[3] & 0xFF);
+	}
 }
@@ -0,0 +1,106 @@
+package org.mve.ws;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+public class Message
+{
+	private final MessagePool pool;
+	ByteBuffer buffer;
+	int opcode = 0;
+	boolean free = false;
+	// When its first frame arrived, for the delivery delay metric
+	long arrival = 0;
+	// Created on the first non-ASCII text and kept while the message is pooled
+	private CharsetDecoder decoder = null;
+
+	Message(MessagePool pool, ByteBuffer buffer)
+	{
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	public int opcode()
+	{
+		return this.opcode;
+	}
+
+	public int length()
+	{
+		return this.buffer.limit();
+	}
+
+	// Valid until the message is released
+	public ByteBuffer payload()
+	{
+		return this.buffer;
+	}
+
+	// Decodes a text payload into chars, or into a new buffer when chars is null or too small
+	public CharBuffer text(CharBuffer chars)
+	{
+		if (this.opcode != WebSocket.OPC_TEXT)
+			throw new IllegalStateException("Not a text message: " + this.opcode);
+		ByteBuffer buf = this.buffer;
+		int len = buf.limit();
+		// UTF-8 never takes fewer bytes than UTF-16 chars
+		if (chars == null || chars.capacity() < len) chars = CharBuffer.allocate(len);
+		chars.clear();
+		int i = 0;
+		while (i < len)
+		{
+			byte b = buf.get(i);
+			if (b < 0) break;
+			chars.put((char) b);
+			i++;
+		}
+		if (i < len)
+		{
+			if (this.decoder == null) this.decoder = StandardCharsets.UTF_8.newDecoder();
+			this.decoder.reset();
+			int pos = buf.position();
+			buf.position(i);
+			try
+			{
+				CoderResult result = this.decoder.decode(buf, chars, true);
+				if (result.isUnderflow()) result = this.decoder.flush(chars);
+				if (!result.isUnderflow()) result.throwException();
+			}
+			catch (CharacterCodingException e)
+			{
+				throw new IllegalStateException("Invalid UTF-8 in text message", e);
+			}
+			finally
+			{
+				buf.position(pos);
+			}
+		}
+		chars.flip();
+		return chars;
+	}
+
+	public void release()
+	{
+		this.pool.release(this);
+	}
+
+	// Makes room for len more bytes while the message is being assembled
+	ByteBuffer ensure(int len)
+	{
+		if (this.buffer.remaining() >= len) return this.buffer;
+		long need = (long) this.buffer.position() + len;
+		if (need > Integer.MAX_VALUE)
+			throw new IllegalStateException("Message too large: " + need);
+		int cap = Math.max(this.buffer.capacity(), 16);
+		while (cap < need) cap = cap > (Integer.MAX_VALUE >> 1) ? Integer.MAX_VALUE : cap << 1;
+		ByteBuffer grown = this.buffer.isDirect() ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+		this.buffer.flip();
+		grown.put(this.buffer);
+		this.buffer = grown;
+		return grown;
+	}
+}
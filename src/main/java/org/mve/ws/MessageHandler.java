@@ -0,0 +1,7 @@
+package org.mve.ws;
+
+public interface MessageHandler
+{
+	// The handler owns the message and releases it when done
+	void message(WebSocket socket, Message message);
+}
@@ -0,0 +1,79 @@
+package org.mve.ws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MessagePool
+{
+	public static final MessagePool SHARED = new MessagePool(1024, 65536, false);
+
+	private final Message[] pool;
+	private int size = 0;
+	// Buffers grown above this are dropped on release instead of being kept
+	private final int retain;
+	private final boolean direct;
+	private final ReentrantLock locking = new ReentrantLock();
+
+	public MessagePool(int capacity, int retain, boolean direct)
+	{
+		if (capacity < 0 || retain <= 0)
+			throw new IllegalArgumentException("Invalid pool size");
+		this.pool = new Message[capacity];
+		this.retain = retain;
+		this.direct = direct;
+	}
+
+	public Message acquire()
+	{
+		Message message = null;
+		this.locking.lock();
+		try
+		{
+			if (this.size > 0)
+			{
+				message = this.pool[--this.size];
+				this.pool[this.size] = null;
+			}
+		}
+		finally
+		{
+			this.locking.unlock();
+		}
+		if (message == null)
+			message = new Message(this, this.allocate(4096));
+		message.buffer.clear();
+		message.opcode = 0;
+		message.free = false;
+		return message;
+	}
+
+	public void release(Message message)
+	{
+		if (message.free)
+			throw new IllegalStateException("Message released twice");
+		message.free = true;
+		if (message.buffer.capacity() > this.retain)
+			message.buffer = this.allocate(4096);
+		this.locking.lock();
+		try
+		{
+			if (this.size < this.pool.length)
+				this.pool[this.size++] = message;
+		}
+		finally
+		{
+			this.locking.unlock();
+		}
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	private ByteBuffer allocate(int capacity)
+	{
+		capacity = Math.min(capacity, this.retain);
+		return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+}
@@ -0,0 +1,138 @@
+package org.mve.ws;
+
+import org.mve.Flow;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Inbound messages of one connection for a single subscriber. The connection only reads the messages
+// requested, so a slow subscriber leaves the rest to TCP flow control. Subscribe before the connection
+// starts reading, messages are signalled on the thread that receives them
+public class MessagePublisher implements Flow.Publisher<Message>
+{
+	private final WebSocket socket;
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	public MessagePublisher(WebSocket socket)
+	{
+		this.socket = socket;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Message> subscriber)
+	{
+		if (subscriber == null)
+			throw new NullPointerException();
+		if (!this.subscribed.compareAndSet(false, true))
+		{
+			subscriber.onSubscribe(new Flow.Subscription()
+			{
+				@Override
+				public void request(long n)
+				{
+				}
+
+				@Override
+				public void cancel()
+				{
+				}
+			});
+			subscriber.onError(new IllegalStateException("Publisher already subscribed"));
+			return;
+		}
+		// Nothing is read until the subscriber asks for it
+		this.socket.demand(0);
+		Feed feed = new Feed(subscriber);
+		subscriber.onSubscribe(feed);
+		feed.start();
+	}
+
+	private class Feed implements Flow.Subscription, WebSocket.Listener
+	{
+		private final Flow.Subscriber<? super Message> subscriber;
+		// Requests made before the listener was in place, handed on by start()
+		private final AtomicLong early = new AtomicLong();
+		private volatile boolean started = false;
+		private volatile boolean done = false;
+
+		private Feed(Flow.Subscriber<? super Message> subscriber)
+		{
+			this.subscriber = subscriber;
+		}
+
+		private void start()
+		{
+			MessagePublisher.this.socket.listener(this);
+			this.started = true;
+			this.flush();
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (this.done) return;
+			if (n <= 0)
+			{
+				this.cancel();
+				this.subscriber.onError(new IllegalArgumentException("Non-positive request " + n));
+				return;
+			}
+			this.early.accumulateAndGet(n, MessagePublisher::add);
+			if (this.started) this.flush();
+		}
+
+		@Override
+		public void cancel()
+		{
+			// Demand runs out and reading stops, closing the connection is left to its owner
+			this.done = true;
+		}
+
+		private void flush()
+		{
+			long n = this.early.getAndSet(0);
+			if (n > 0) MessagePublisher.this.socket.demand(n);
+		}
+
+		@Override
+		public void onText(WebSocket socket, Message message)
+		{
+			this.next(message);
+		}
+
+		@Override
+		public void onBinary(WebSocket socket, Message message)
+		{
+			this.next(message);
+		}
+
+		@Override
+		public void onClose(WebSocket socket, int code, String reason)
+		{
+			if (this.done) return;
+			this.done = true;
+			this.subscriber.onComplete();
+		}
+
+		@Override
+		public void onError(WebSocket socket, Throwable error)
+		{
+			if (this.done) return;
+			this.done = true;
+			this.subscriber.onError(error);
+		}
+
+		private void next(Message message)
+		{
+			if (this.done) message.release();
+			else this.subscriber.onNext(message);
+		}
+	}
+
+	// Demand adds up to Long.MAX_VALUE, which means no limit
+	private static long add(long a, long b)
+	{
+		long sum = a + b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+}
@@ -0,0 +1,89 @@
+package org.mve.ws;
+
+import org.mve.Flow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Sends each buffer as a binary frame, asking for the next one only while the send queue is below
+// its high watermark. Takes over the writability handler of the connection, completing closes it
+public class MessageSubscriber implements Flow.Subscriber<ByteBuffer>
+{
+	private final WebSocket socket;
+	private volatile Flow.Subscription subscription = null;
+	// Set while the next buffer was not requested because the queue was full
+	private final AtomicBoolean waiting = new AtomicBoolean();
+
+	public MessageSubscriber(WebSocket socket)
+	{
+		this.socket = socket;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription)
+	{
+		if (this.subscription != null)
+		{
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		this.socket.writability(this::writability);
+		this.more();
+	}
+
+	@Override
+	public void onNext(ByteBuffer buf)
+	{
+		// Small frames are copied into the queue below its high watermark, others are framed from buf as the
+		// channel takes them, so the publisher must not reuse it
+		if (this.socket.sendAsync(buf).isCompletedExceptionally())
+		{
+			this.subscription.cancel();
+			return;
+		}
+		this.more();
+	}
+
+	@Override
+	public void onError(Throwable throwable)
+	{
+		this.end();
+	}
+
+	@Override
+	public void onComplete()
+	{
+		this.end();
+	}
+
+	private void more()
+	{
+		if (!this.socket.writable())
+		{
+			this.waiting.set(true);
+			// The queue may have drained before waiting was set
+			if (!this.socket.writable() || !this.waiting.compareAndSet(true, false)) return;
+		}
+		this.subscription.request(1);
+	}
+
+	private void writability(WebSocket socket, boolean writable)
+	{
+		if (writable && this.waiting.compareAndSet(true, false))
+			this.subscription.request(1);
+	}
+
+	private void end()
+	{
+		this.socket.writability(null);
+		try
+		{
+			this.socket.shutdown(false);
+		}
+		catch (IOException ignored)
+		{
+		}
+	}
+}
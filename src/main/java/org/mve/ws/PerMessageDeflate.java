@@ -0,0 +1,183 @@
+package org.mve.ws;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+public class PerMessageDeflate
+{
+	public static final String NAME = "permessage-deflate";
+	public static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	public static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	public static final String SERVER_MAX_WINDOW_BITS     = "server_max_window_bits";
+	public static final String CLIENT_MAX_WINDOW_BITS     = "client_max_window_bits";
+	// java.util.zip always compresses with a 32K window
+	public static final int MAX_WINDOW_BITS = 15;
+	public static final int MIN_WINDOW_BITS = 8;
+
+	// Messages shorter than threshold bytes are sent uncompressed
+	public final int threshold;
+	public final int level;
+	public final boolean clientNoContextTakeover;
+	public final boolean serverNoContextTakeover;
+
+	public PerMessageDeflate(int threshold, int level, boolean clientNoContextTakeover, boolean serverNoContextTakeover)
+	{
+		if (threshold < 0)
+			throw new IllegalArgumentException("Threshold cannot be negative");
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("Invalid compression level " + level);
+		this.threshold = threshold;
+		this.level = level;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.serverNoContextTakeover = serverNoContextTakeover;
+	}
+
+	public PerMessageDeflate()
+	{
+		this(256, Deflater.DEFAULT_COMPRESSION, false, false);
+	}
+
+	// Extension offer sent by the client
+	public String offer()
+	{
+		StringBuilder offer = new StringBuilder(PerMessageDeflate.NAME);
+		offer.append("; ").append(PerMessageDeflate.CLIENT_MAX_WINDOW_BITS);
+		if (this.clientNoContextTakeover) offer.append("; ").append(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER);
+		if (this.serverNoContextTakeover) offer.append("; ").append(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
+		return offer.toString();
+	}
+
+	// Client side, checks the extension the server accepted
+	Deflate accept(String response)
+	{
+		String[] extensions = response.split(",");
+		if (extensions.length != 1)
+			throw new IllegalStateException("Unexpected extensions: " + response);
+		Map<String, String> params = new HashMap<>();
+		String name = PerMessageDeflate.parse(extensions[0], params);
+		if (name == null || !PerMessageDeflate.NAME.equalsIgnoreCase(name))
+			throw new IllegalStateException("Unexpected extension: " + response);
+
+		boolean compress = true;
+		for (Map.Entry<String, String> param : params.entrySet())
+		{
+			switch (param.getKey())
+			{
+				case PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER:
+				case PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER:
+					if (param.getValue() != null)
+						throw new IllegalStateException("Unexpected value: " + response);
+					break;
+				case PerMessageDeflate.SERVER_MAX_WINDOW_BITS:
+					PerMessageDeflate.bits(param.getValue(), response);
+					break;
+				case PerMessageDeflate.CLIENT_MAX_WINDOW_BITS:
+					// A smaller window cannot be honoured by Deflater, messages go out uncompressed instead
+					if (PerMessageDeflate.bits(param.getValue(), response) < PerMessageDeflate.MAX_WINDOW_BITS)
+						compress = false;
+					break;
+				default:
+					throw new IllegalStateException("Unexpected parameter: " + response);
+			}
+		}
+		return new Deflate(
+			this.threshold,
+			this.level,
+			compress,
+			this.clientNoContextTakeover || params.containsKey(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER),
+			params.containsKey(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER),
+			null
+		);
+	}
+
+	// Server side, accepts the first valid offer or returns null
+	Deflate negotiate(String offers)
+	{
+		Map<String, String> params = new HashMap<>();
+		next:
+		for (String offer : offers.split(","))
+		{
+			params.clear();
+			String name = PerMessageDeflate.parse(offer, params);
+			if (name == null || !PerMessageDeflate.NAME.equalsIgnoreCase(name))
+				continue;
+			boolean compress = true;
+			StringBuilder response = new StringBuilder(PerMessageDeflate.NAME);
+			for (Map.Entry<String, String> param : params.entrySet())
+			{
+				String value = param.getValue();
+				switch (param.getKey())
+				{
+					case PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER:
+					case PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER:
+						if (value != null) continue next;
+						break;
+					case PerMessageDeflate.SERVER_MAX_WINDOW_BITS:
+						int bits = PerMessageDeflate.bits(value);
+						if (bits == -1) continue next;
+						// Echoed back as required, our messages go out uncompressed
+						response.append("; ").append(PerMessageDeflate.SERVER_MAX_WINDOW_BITS).append('=').append(bits);
+						if (bits < PerMessageDeflate.MAX_WINDOW_BITS) compress = false;
+						break;
+					case PerMessageDeflate.CLIENT_MAX_WINDOW_BITS:
+						// Inflater handles any window size, there is nothing to limit
+						if (value != null && PerMessageDeflate.bits(value) == -1) continue next;
+						break;
+					default:
+						continue next;
+				}
+			}
+			boolean server = this.serverNoContextTakeover || params.containsKey(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
+			boolean client = this.clientNoContextTakeover || params.containsKey(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER);
+			if (server) response.append("; ").append(PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER);
+			if (client) response.append("; ").append(PerMessageDeflate.CLIENT_NO_CONTEXT_TAKEOVER);
+			return new Deflate(this.threshold, this.level, compress, server, client, response.toString());
+		}
+		return null;
+	}
+
+	// Splits one extension into its name and parameters, null if a parameter repeats
+	private static String parse(String extension, Map<String, String> params)
+	{
+		String[] parts = extension.split(";");
+		for (int i = 1; i < parts.length; i++)
+		{
+			String part = parts[i].trim();
+			String value = null;
+			int eq = part.indexOf('=');
+			if (eq != -1)
+			{
+				value = part.substring(eq + 1).trim();
+				part = part.substring(0, eq).trim();
+				if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+					value = value.substring(1, value.length() - 1);
+			}
+			part = part.toLowerCase();
+			if (params.containsKey(part)) return null;
+			params.put(part, value);
+		}
+		return parts[0].trim();
+	}
+
+	private static int bits(String value)
+	{
+		if (value == null || value.isEmpty() || value.length() > 2) return -1;
+		int bits = 0;
+		for (int i = 0; i < value.length(); i++)
+		{
+			int d = value.charAt(i) - '0';
+			if (d < 0 || d > 9) return -1;
+			bits = bits * 10 + d;
+		}
+		return bits < PerMessageDeflate.MIN_WINDOW_BITS || bits > PerMessageDeflate.MAX_WINDOW_BITS ? -1 : bits;
+	}
+
+	private static int bits(String value, String response)
+	{
+		int bits = PerMessageDeflate.bits(value);
+		if (bits == -1)
+			throw new IllegalStateException("Invalid window bits: " + response);
+		return bits;
+	}
+}
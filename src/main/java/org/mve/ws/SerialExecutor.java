@@ -0,0 +1,62 @@
+package org.mve.ws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs tasks one at a time on a shared executor, in the order they were submitted. A connection
+// gives up its thread after BATCH tasks so a busy one cannot hold a worker to itself
+class SerialExecutor implements Executor
+{
+	static final int BATCH = 64;
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	// Set while a run is submitted or running, only one at a time
+	private final AtomicBoolean running = new AtomicBoolean();
+	private final Runnable runner = this::run;
+
+	SerialExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task)
+	{
+		this.tasks.offer(task);
+		this.schedule();
+	}
+
+	private void schedule()
+	{
+		if (this.tasks.isEmpty() || !this.running.compareAndSet(false, true)) return;
+		try
+		{
+			this.executor.execute(this.runner);
+		}
+		catch (RejectedExecutionException e)
+		{
+			this.running.set(false);
+			throw e;
+		}
+	}
+
+	private void run()
+	{
+		try
+		{
+			Runnable task;
+			for (int i = 0; i < SerialExecutor.BATCH && (task = this.tasks.poll()) != null; i++)
+				task.run();
+		}
+		finally
+		{
+			this.running.set(false);
+			// Tasks queued after the last poll, or left over from the batch
+			this.schedule();
+		}
+	}
+}
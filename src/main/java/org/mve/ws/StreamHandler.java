@@ -0,0 +1,10 @@
+package org.mve.ws;
+
+import java.nio.ByteBuffer;
+
+public interface StreamHandler
+{
+	// The next part of a message, at most WebSocket.READ_CHUNK bytes and only valid during the call.
+	// The last part of every message has last set and may be empty
+	void chunk(WebSocket socket, int opcode, ByteBuffer chunk, boolean last);
+}
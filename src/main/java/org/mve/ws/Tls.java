@@ -0,0 +1,434 @@
+package org.mve.ws;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SSLEngine over a non-blocking channel, the buffers live as long as the connection
+class Tls
+{
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final SocketChannel channel;
+	// Network bytes not unwrapped yet, kept flipped
+	private ByteBuffer NI;
+	// Network bytes wrapped and not written yet, kept flipped
+	private ByteBuffer NO;
+	// Application bytes unwrapped and not consumed yet, kept flipped
+	private ByteBuffer AI;
+	// wrap() is called from the writer and, for post-handshake messages, the reader
+	private final ReentrantLock wrapping = new ReentrantLock();
+	private final ReentrantLock unwrapping = new ReentrantLock();
+	// NI holds only part of a record
+	private boolean underflow = false;
+	private boolean eof = false;
+	private boolean done = false;
+	private long start = 0;
+	private long created = 0;
+	private long time = -1;
+	private boolean resumed = false;
+	// Records wrapped outside a write, such as answers to key updates, wait for the channel and the writer
+	private volatile boolean unflushed = false;
+
+	private Tls(SSLEngine engine, SocketChannel channel) throws SSLException
+	{
+		this.engine = engine;
+		this.channel = channel;
+		SSLSession session = engine.getSession();
+		this.NI = ByteBuffer.allocate(session.getPacketBufferSize());
+		this.NO = ByteBuffer.allocate(session.getPacketBufferSize());
+		this.AI = ByteBuffer.allocate(session.getApplicationBufferSize());
+		this.NI.limit(0);
+		this.NO.limit(0);
+		this.AI.limit(0);
+		engine.beginHandshake();
+	}
+
+	// Engines created with the peer host and port let the context resume cached sessions
+	static Tls client(SSLContext context, String host, int port, SocketChannel channel) throws SSLException
+	{
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		return new Tls(engine, channel);
+	}
+
+	static Tls server(SSLContext context, SocketChannel channel) throws SSLException
+	{
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		return new Tls(engine, channel);
+	}
+
+	// Drives the handshake as far as the channel allows, true once it has finished
+	boolean handshake() throws IOException
+	{
+		if (this.done) return true;
+		if (this.start == 0)
+		{
+			this.start = System.nanoTime();
+			this.created = System.currentTimeMillis();
+		}
+		while (true)
+		{
+			if (!this.flush()) return false;
+			switch (this.engine.getHandshakeStatus())
+			{
+				case NEED_WRAP:
+					this.wrap(Tls.EMPTY);
+					break;
+				case NEED_TASK:
+					Runnable task;
+					while ((task = this.engine.getDelegatedTask()) != null)
+						task.run();
+					break;
+				case FINISHED:
+				case NOT_HANDSHAKING:
+					if (!this.flush()) return false;
+					this.time = System.nanoTime() - this.start;
+					// A resumed session keeps the creation time of the one it was cached as
+					this.resumed = this.engine.getSession().getCreationTime() < this.created;
+					this.done = true;
+					return true;
+				default:
+					// NEED_UNWRAP, and NEED_UNWRAP_AGAIN on newer runtimes
+					SSLEngineResult.Status status = this.unwrap();
+					if (status == SSLEngineResult.Status.CLOSED)
+						throw new EOFException("TLS closed during handshake");
+					if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+					{
+						int read = this.fill();
+						if (read == -1)
+							throw new EOFException("Connection closed during TLS handshake");
+						if (read == 0) return false;
+					}
+			}
+		}
+	}
+
+	int read(ByteBuffer dst) throws IOException
+	{
+		this.unwrapping.lock();
+		try
+		{
+			while (!this.AI.hasRemaining())
+			{
+				if (this.eof) return -1;
+				if (this.NI.hasRemaining() && !this.underflow)
+				{
+					SSLEngineResult.Status status = this.unwrap();
+					if (status == SSLEngineResult.Status.CLOSED) this.eof = true;
+					this.post();
+					continue;
+				}
+				int read = this.fill();
+				if (read == -1)
+				{
+					this.eof = true;
+					return -1;
+				}
+				if (read == 0) return 0;
+			}
+			int len = Math.min(this.AI.remaining(), dst.remaining());
+			int limit = this.AI.limit();
+			this.AI.limit(this.AI.position() + len);
+			dst.put(this.AI);
+			this.AI.limit(limit);
+			return len;
+		}
+		finally
+		{
+			this.unwrapping.unlock();
+		}
+	}
+
+	long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		this.wrapping.lock();
+		try
+		{
+			long consumed = 0;
+			// Records wrapped earlier go first, a full channel ends the write early
+			while (Tls.remaining(srcs, offset, length) && this.flush())
+				consumed += this.wrap(srcs, offset, length);
+			this.flush();
+			return consumed;
+		}
+		finally
+		{
+			this.wrapping.unlock();
+		}
+	}
+
+	int write(ByteBuffer src) throws IOException
+	{
+		this.wrapping.lock();
+		try
+		{
+			int consumed = 0;
+			while (src.hasRemaining() && this.flush())
+				consumed += this.wrap(src);
+			this.flush();
+			return consumed;
+		}
+		finally
+		{
+			this.wrapping.unlock();
+		}
+	}
+
+	// True once every wrapped record has been written, the writer waits for OP_WRITE otherwise
+	boolean flushed() throws IOException
+	{
+		this.wrapping.lock();
+		try
+		{
+			return this.flush();
+		}
+		finally
+		{
+			this.wrapping.unlock();
+		}
+	}
+
+	// Wrapped records are waiting for the channel
+	boolean unflushed()
+	{
+		return this.unflushed;
+	}
+
+	// Plain bytes or whole records ready without touching the channel
+	boolean buffered()
+	{
+		return this.AI.hasRemaining() || (this.NI.hasRemaining() && !this.underflow);
+	}
+
+	boolean done()
+	{
+		return this.done;
+	}
+
+	// Readiness the handshake is waiting for
+	int interest()
+	{
+		if (this.NO.hasRemaining()) return SelectionKey.OP_WRITE;
+		switch (this.engine.getHandshakeStatus())
+		{
+			case NEED_WRAP:
+			case NEED_TASK:
+				return SelectionKey.OP_WRITE;
+			default:
+				return SelectionKey.OP_READ;
+		}
+	}
+
+	long time()
+	{
+		return this.time;
+	}
+
+	boolean resumed()
+	{
+		return this.resumed;
+	}
+
+	SSLSession session()
+	{
+		return this.engine.getSession();
+	}
+
+	// Sends close_notify if the channel takes it right away
+	void close()
+	{
+		this.wrapping.lock();
+		try
+		{
+			this.engine.closeOutbound();
+			if (this.channel.isOpen() && this.flush() && !this.engine.isOutboundDone())
+			{
+				this.wrap(Tls.EMPTY);
+				this.flush();
+			}
+		}
+		catch (IOException ignored)
+		{
+		}
+		finally
+		{
+			this.wrapping.unlock();
+		}
+	}
+
+	// Answers what the peer sent after the handshake, such as TLS 1.3 key updates
+	private void post() throws IOException
+	{
+		SSLEngineResult.HandshakeStatus status = this.engine.getHandshakeStatus();
+		while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+		{
+			if (status == SSLEngineResult.HandshakeStatus.NEED_TASK)
+			{
+				Runnable task;
+				while ((task = this.engine.getDelegatedTask()) != null)
+					task.run();
+			}
+			else
+			{
+				this.wrapping.lock();
+				try
+				{
+					// What the channel does not take now is written by the writer on OP_WRITE
+					this.wrap(Tls.EMPTY);
+					this.flush();
+				}
+				finally
+				{
+					this.wrapping.unlock();
+				}
+			}
+			status = this.engine.getHandshakeStatus();
+		}
+	}
+
+	private SSLEngineResult.Status unwrap() throws IOException
+	{
+		while (true)
+		{
+			this.AI.compact();
+			SSLEngineResult result;
+			try
+			{
+				result = this.engine.unwrap(this.NI, this.AI);
+			}
+			finally
+			{
+				this.AI.flip();
+			}
+			switch (result.getStatus())
+			{
+				case BUFFER_OVERFLOW:
+					this.AI = Tls.grow(this.AI, this.engine.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW:
+					this.underflow = true;
+					if (this.NI.remaining() == this.NI.capacity())
+						this.NI = Tls.grow(this.NI, this.engine.getSession().getPacketBufferSize());
+					return result.getStatus();
+				default:
+					return result.getStatus();
+			}
+		}
+	}
+
+	private int wrap(ByteBuffer src) throws IOException
+	{
+		while (true)
+		{
+			this.NO.compact();
+			SSLEngineResult result;
+			try
+			{
+				result = this.engine.wrap(src, this.NO);
+			}
+			finally
+			{
+				this.NO.flip();
+			}
+			if (this.wrapped(result)) return result.bytesConsumed();
+		}
+	}
+
+	private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		while (true)
+		{
+			this.NO.compact();
+			SSLEngineResult result;
+			try
+			{
+				result = this.engine.wrap(srcs, offset, length, this.NO);
+			}
+			finally
+			{
+				this.NO.flip();
+			}
+			if (this.wrapped(result)) return result.bytesConsumed();
+		}
+	}
+
+	// False when the record did not fit and wrap has to be repeated
+	private boolean wrapped(SSLEngineResult result) throws IOException
+	{
+		switch (result.getStatus())
+		{
+			case BUFFER_OVERFLOW:
+				// Records the channel did not take yet are kept, the next one goes after them
+				this.NO = Tls.grow(this.NO, this.engine.getSession().getPacketBufferSize());
+				return false;
+			case CLOSED:
+				if (result.bytesProduced() > 0) return true;
+				throw new SSLException("TLS connection closed");
+			default:
+				return true;
+		}
+	}
+
+	private int fill() throws IOException
+	{
+		this.NI.compact();
+		int read;
+		try
+		{
+			read = this.channel.read(this.NI);
+		}
+		finally
+		{
+			this.NI.flip();
+		}
+		if (read > 0) this.underflow = false;
+		return read;
+	}
+
+	// True once everything wrapped so far has been written
+	private boolean flush() throws IOException
+	{
+		while (this.NO.hasRemaining())
+		{
+			if (this.channel.write(this.NO) == 0)
+			{
+				this.unflushed = true;
+				return false;
+			}
+		}
+		this.unflushed = false;
+		return true;
+	}
+
+	private static boolean remaining(ByteBuffer[] srcs, int offset, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (srcs[offset + i].hasRemaining()) return true;
+		}
+		return false;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buf, int size)
+	{
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.remaining() + size));
+		grown.put(buf);
+		grown.flip();
+		return grown;
+	}
+}
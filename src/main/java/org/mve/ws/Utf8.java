@@ -0,0 +1,60 @@
+package org.mve.ws;
+
+import java.nio.ByteBuffer;
+
+class Utf8
+{
+	public static final int ACCEPT = 0;
+	public static final int REJECT = -1;
+
+	// State packs the pending continuation count and the bounds of the next byte
+	public static int validate(int state, ByteBuffer buf, int pos, int len)
+	{
+		if (state == Utf8.REJECT) return Utf8.REJECT;
+		int need = state & 0xFF;
+		int lower = (state >>> 8) & 0xFF;
+		int upper = (state >>> 16) & 0xFF;
+		int end = pos + len;
+		int i = pos;
+		while (i < end)
+		{
+			if (need == 0)
+			{
+				// ASCII runs are checked eight bytes at a time
+				while (end - i >= 8 && (buf.getLong(i) & 0x8080808080808080L) == 0) i += 8;
+				if (i >= end) break;
+				int b = buf.get(i++) & 0xFF;
+				if (b < 0x80) continue;
+				if (b < 0xC2) return Utf8.REJECT;
+				if (b < 0xE0)
+				{
+					need = 1;
+					lower = 0x80;
+					upper = 0xBF;
+				}
+				else if (b < 0xF0)
+				{
+					need = 2;
+					lower = b == 0xE0 ? 0xA0 : 0x80;
+					upper = b == 0xED ? 0x9F : 0xBF;
+				}
+				else if (b < 0xF5)
+				{
+					need = 3;
+					lower = b == 0xF0 ? 0x90 : 0x80;
+					upper = b == 0xF4 ? 0x8F : 0xBF;
+				}
+				else return Utf8.REJECT;
+			}
+			else
+			{
+				int b = buf.get(i++) & 0xFF;
+				if (b < lower || b > upper) return Utf8.REJECT;
+				lower = 0x80;
+				upper = 0xBF;
+				need--;
+			}
+		}
+		return need == 0 ? Utf8.ACCEPT : need | (lower << 8) | (upper << 16);
+	}
+}
@@ -1,36 +1,82 @@
 package org.mve.ws;
 
 import org.mve.Array;
+import org.mve.BufferPool;
 import org.mve.JavaVM;
+import org.mve.MemoryBudget;
+import org.mve.OverflowException;
+import org.mve.TimerWheel;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class WebSocket
 {
 	public static final String METHOD_GET = "GET";
 	public static final String HTTP_VERSION = "HTTP/1.1";
+	public static final String WS_VERSION = "13";
+	public static final int HANDSHAKE_LIMIT = 16384;
+	public static final int WRITE_CHUNK = 65536;
+	// Largest part of a data frame held in memory while it is read
+	public static final int READ_CHUNK = 65536;
+	// Messages up to this size are copied into the outbound queue, larger ones are written from the caller's buffers
+	public static final int COALESCE_LIMIT = 4096;
+	// Default send queue limits, see watermarks()
+	public static final int LOW_WATERMARK = 32768;
+	public static final int HIGH_WATERMARK = 65536;
+	// Default inbound limits, see limits()
+	public static final long MESSAGE_LIMIT = 1 << 26;
+	public static final long BUFFER_LIMIT = 1 << 26;
 	public static final String HEADER_HOST = "Host";
 	public static final String HEADER_CONNECTION = "Connection";
 	public static final String HEADER_UPGRADE = "Upgrade";
 	public static final String HEADER_SEC_WS_KEY       = "Sec-WebSocket-Key";
 	public static final String HEADER_SEC_WS_VERSION   = "Sec-WebSocket-Version";
 	public static final String HEADER_SEC_WS_PROTOCOL  = "Sec-WebSocket-Protocol";
-	public static final String HEADER_SEC_WS_EXTENSION = "Sec-WebSocket-Extension";
+	public static final String HEADER_SEC_WS_EXTENSION = "Sec-WebSocket-Extensions";
 	public static final String HEADER_SEC_WS_ACCEPT    = "Sec-WebSocket-Accept";
 
 	public static final int STAT_CLOSED     = 0;
@@ -46,9 +92,12 @@ public class WebSocket
 	public static final int RS_LENGTH  = 2;
 	public static final int RS_MASKING = 3;
 	public static final int RS_PAYLOAD = 4;
+	// Waiting for memory to read the payload into
+	public static final int RS_ADMIT   = 5;
 
 	public static final int MASK_FIN = 0x80;
 	public static final int MASK_RSV = 0x70;
+	public static final int MASK_RSV1 = 0x40;
 	public static final int MASK_OPC = 0x0F;
 	public static final int MASK_MSK = 0x80;
 	public static final int MASK_LEN = 0x7F;
@@ -60,36 +109,201 @@ public class WebSocket
 	public static final int OPC_PING     = 0x9;
 	public static final int OPC_PONG     = 0xA;
 
+	public static final int CLOSE_NORMAL    = 1000;
+	// Reported to listeners only, never sent
+	public static final int CLOSE_NO_STATUS = 1005;
+	public static final int CLOSE_ABNORMAL  = 1006;
+	public static final int CLOSE_TOO_BIG   = 1009;
+
 	private static final int READING = 0;
 	private static final int WRITING = 1;
+	private static final int TIMER_HANDSHAKE = 0;
+	private static final int TIMER_KEEPALIVE = 1;
+	private static final int TIMER_IDLE      = 2;
+	private static final int TIMER_CLOSE     = 3;
+	// Stands in for pooled buffers while they are given back, every operation on it is a no-op
+	private static final ByteBuffer NONE = ByteBuffer.allocate(0);
 
 	public boolean secure;
 	public String host;
 	public int port;
 	public String path;
+	private final boolean client;
+	Consumer<WebSocket> open = null;
 	private final SecureRandom random = new SecureRandom();
 	private final Map<String, String> header = new HashMap<>();
 	private int status = WebSocket.STAT_CLOSED;
 	private boolean reading = false;
 	private boolean writing = false;
 	private SocketChannel socket = null;
+	// TLS for wss, the context is kept across reconnects so sessions can be resumed
+	private SSLContext context = null;
+	private Tls tls = null;
 	private boolean blocking = true;
 	private final ReentrantLock[] locking = new ReentrantLock[]{new ReentrantLock(), new ReentrantLock()};
 
-	// Read Write buffer
-	private ByteBuffer RB = ByteBuffer.allocate(4096);
-	private ByteBuffer WB = ByteBuffer.allocate(4096);
+	// Inbound bytes not consumed yet, kept flipped for reading
+	private ByteBuffer IB = ByteBuffer.allocate(4096);
+	private final Handshake handshake = new Handshake();
+	// The handshake request or response until the channel took all of it
+	private ByteBuffer XB = WebSocket.NONE;
+
+	// Read and write buffers, borrowed from the pool. RB lives as long as the connection, WB only during a write
+	private BufferPool buffers = BufferPool.SHARED;
+	private boolean direct = false;
+	private ByteBuffer RB = WebSocket.NONE;
+	private ByteBuffer WB = WebSocket.NONE;
+	// Payload of the control frame being read, at most 125 bytes so RB keeps the size data needs
+	private final ByteBuffer CB = ByteBuffer.allocate(125);
+	// Frame header, at most 2 + 8 + 4 bytes
+	private final ByteBuffer HB = ByteBuffer.allocate(14);
+	// Gathering and single buffer write arrays, reused between frames
+	private ByteBuffer[] GB = new ByteBuffer[2];
+	private final ByteBuffer[] SB = new ByteBuffer[1];
+
+	// Outbound queue: senders append encoded frames to OB, the writer swaps it with FB and writes FB
+	private final ReentrantLock queuing = new ReentrantLock();
+	private ByteBuffer OB = WebSocket.NONE;
+	private ByteBuffer FB = WebSocket.NONE;
+	// Text of queued messages is encoded here first
+	private final ByteBuffer TB = ByteBuffer.allocate(WebSocket.COALESCE_LIMIT);
+	private final ByteBuffer[] QB = new ByteBuffer[1];
+	private final MaskingKey qmask = new MaskingKey();
+	private final CharsetEncoder qencoder = StandardCharsets.UTF_8.newEncoder();
+	private volatile FlushPolicy policy = FlushPolicy.IMMEDIATE;
+	// When OB stopped being empty
+	private long since = 0;
+	private boolean scheduled = false;
+	// A control frame is queued and has to go out regardless of the policy
+	private boolean urgent = false;
+	// Payload of the latest ping while its pong waits in the slot. The writer sends the slot at the next frame
+	// boundary, a ping arriving before that replaces the payload so a burst of pings gets one pong. Set under the
+	// queuing lock, the writer looks at it without the lock between frames
+	private final ByteBuffer PB = ByteBuffer.allocate(125);
+	private volatile boolean pong = false;
+	// The pong frame taken from the slot, and where the first frame of FB not fully written starts, owned by the writer
+	private final ByteBuffer UB = (ByteBuffer) ByteBuffer.allocate(131).limit(0);
+	private int frame = 0;
+	// Bytes in OB and FB, senders are throttled between the watermarks
+	private long queued = 0;
+	private int low = WebSocket.LOW_WATERMARK;
+	private int high = WebSocket.HIGH_WATERMARK;
+	private volatile boolean writable = true;
+	private final Condition drained = this.queuing.newCondition();
+	private volatile WritabilityHandler writability = null;
+	// FB or the TLS records hold bytes the channel did not take
+	private volatile boolean stalled = false;
+	// Set while registered with an event loop, which finishes stalled writes on OP_WRITE
+	private volatile SelectionKey key = null;
+	private volatile Thread worker = null;
+	// Selectors a blocked reader and writer sleep on until the channel is ready, opened on first use
+	private final Selector[] waiters = new Selector[2];
+	// Counters this connection adds to, null for none
+	private volatile WebSocketMetrics metrics = WebSocketMetrics.defaults();
+	// When the handshake started, and when the first frame of the current message arrived
+	private long begun = 0;
+	private long arrival = 0;
+	// Queued bytes written so far, and on TLS connections wrapped but maybe not written yet
+	private volatile long sent = 0;
+	private long wrapped = 0;
+	// Futures of sendAsync() in queue order, each done once sent reaches its mark
+	private final Queue<Sending> sends = new ConcurrentLinkedQueue<>();
+	// Futures of the frames in OB, marked from the start of OB until the writer takes it
+	private ArrayDeque<Sending> awaiting = new ArrayDeque<>();
+	// Messages of sendAsync() the writer frames from the caller's buffers a fragment at a time, in send order.
+	// Frames queued before one are set aside with their futures so they keep their place. Under the queuing lock
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	// Completed by the handshake of connectAsync()
+	private volatile CompletableFuture<WebSocket> connecting = null;
+	// Timeouts on the shared wheel, cancelled by reset(). Durations are in nanoseconds, 0 for none
+	private final AtomicReferenceArray<TimerWheel.Timeout> timers = new AtomicReferenceArray<>(4);
+	private volatile long pingInterval = 0;
+	private volatile long pingTimeout = 0;
+	private volatile long idleTimeout = 0;
+	private volatile long closeTimeout = 0;
+	// Payload of the keepalive ping waiting for its pong, 0 when none is, and when the last one went out
+	private volatile long pinged = 0;
+	private long pingAt = 0;
+	// Payload of the keepalive ping or close frame being queued
+	private final ByteBuffer KB = ByteBuffer.allocate(8);
+	private volatile long rtt = -1;
+	// When a frame was last received, kept while there is an idle timeout
+	private volatile long heard = 0;
+	// Why a timer failed the connection, thrown by whoever reads it next
+	private volatile String lapsed = null;
 	private int RS = WebSocket.RS_OVERED;
 
 	// Data buffer
 
 	private int opcode = 0;
 	private long length = 0;
+	// Payload bytes of the current frame not read yet
+	private long remaining = 0;
 	private final MaskingKey[] masking = {new MaskingKey(), new MaskingKey()};
-	private final Array array = new Array(4096);
+	private Array array = WebSocket.array(BufferPool.SHARED, WebSocket.BUFFER_LIMIT);
+	// Caller buffer of the read in progress
+	private ByteBuffer target = null;
+	// System.nanoTime() the blocking read in progress gives up at, 0 for never
+	private long deadline = 0;
+
+	// Inbound memory: payload bytes held by this connection, reserved from the budget before they are read
+	private MemoryBudget budget = MemoryBudget.SHARED;
+	private long messageLimit = WebSocket.MESSAGE_LIMIT;
+	private long bufferLimit = WebSocket.BUFFER_LIMIT;
+	private volatile long held = 0;
+	// Bytes of the message being received so far
+	private long total = 0;
+	// Reading waits for held bytes to be consumed or for the budget to have room
+	private volatile boolean paused = false;
+	private final Runnable resumer = this::resume;
+	// Set by the event loop, makes it look at the connection again after a pause
+	private volatile Runnable wakeup = null;
+	// Signalled when receive() got somewhere, readers of an event loop connection sleep on it
+	private final Condition arrived = this.locking[WebSocket.READING].newCondition();
+	// Reader sleeping until resume()
+	private volatile Thread parked = null;
+	// Messages the connection may still start reading, -1 without a limit, see demand()
+	private final AtomicLong credit = new AtomicLong(-1);
+	// Reading waits for demand()
+	private volatile boolean starved = false;
+	// The last data frame had no FIN, its message goes on whatever the demand
+	private boolean fragmented = false;
+
+	// Message assembly
+	private boolean fin = false;
+	// Opcode of the message being received
+	private int type = 0;
+	// Takes data in chunks instead of read() or messages
+	private StreamHandler stream = null;
+	private boolean messaging = false;
+	private MessagePool pool = MessagePool.SHARED;
+	private MessageHandler handler = null;
+	// Called as frames complete, on the receiving thread or in order through callbacks
+	private volatile Listener listener = null;
+	private volatile Executor callbacks = null;
+	private Message message = null;
+	private final ArrayDeque<Message> messages = new ArrayDeque<>();
+	// Futures of receiveAsync() waiting for a message
+	private final ArrayDeque<CompletableFuture<Message>> receivers = new ArrayDeque<>();
+
+	// Text messages, validated as they arrive and encoded without intermediate copies
+	private boolean textual = false;
+	private int utf8 = Utf8.ACCEPT;
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+	// Compression offered or accepted and the state negotiated for this connection
+	private PerMessageDeflate extension = null;
+	private Deflate deflate = null;
+	private boolean compressed = false;
+	private boolean deflating = false;
+	// Set by the writer while it compresses into the send queue, frames go to OB instead of the channel
+	private boolean deferred = false;
+	// Set by the writer while it frames a message of entries, frames go to FB
+	private boolean framing = false;
 
 	public WebSocket(String url)
 	{
+		this.client = true;
 		try
 		{
 			int protoIdx = url.indexOf("://");
@@ -132,7 +346,29 @@ public class WebSocket
 		this.header(WebSocket.HEADER_CONNECTION, "Upgrade");
 		this.header(WebSocket.HEADER_UPGRADE, "websocket");
 		this.header(WebSocket.HEADER_SEC_WS_KEY, WebSocket.key(this.random));
-		this.header(WebSocket.HEADER_SEC_WS_VERSION, "13");
+		this.header(WebSocket.HEADER_SEC_WS_VERSION, WebSocket.WS_VERSION);
+	}
+
+	WebSocket(SocketChannel socket)
+	{
+		this.client = false;
+		this.path = "/";
+		try
+		{
+			InetSocketAddress remote = (InetSocketAddress) socket.getRemoteAddress();
+			this.host = remote.getHostString();
+			this.port = remote.getPort();
+			socket.configureBlocking(false);
+			socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		catch (IOException e)
+		{
+			JavaVM.exception(e);
+		}
+		this.socket = socket;
+		this.IB.limit(0);
+		this.status = WebSocket.STAT_HANDSHAKE2;
+		this.begun = System.nanoTime();
 	}
 
 	public void header(String key, String value)
@@ -148,17 +384,29 @@ public class WebSocket
 	{
 		if (timeoutMillis < 0)
 			throw new IllegalArgumentException("Timeout cannot be negative");
-		long endTime = System.currentTimeMillis() + timeoutMillis;
-		boolean blocking = this.blocking;
+		long deadline = WebSocket.deadline(timeoutMillis, this.blocking);
 		try
 		{
+			// A closed connection starts over, anything else a timer failed is done
+			if (this.status != WebSocket.STAT_CLOSED) this.lapsed();
 			switch (this.status)
 			{
 				case WebSocket.STAT_CLOSED:
+					if (!this.client)
+						throw new IllegalStateException("Server connection cannot reconnect");
+					// A pending connectAsync() and its deadline are for the connection about to be made
+					CompletableFuture<WebSocket> connecting = this.connecting;
+					TimerWheel.Timeout opening = this.timers.getAndSet(WebSocket.TIMER_HANDSHAKE, null);
+					this.connecting = null;
 					this.reset();
+					this.connecting = connecting;
+					this.timers.set(WebSocket.TIMER_HANDSHAKE, opening);
 					this.socket = SocketChannel.open();
 					this.socket.configureBlocking(false);
+					// Frames and TLS records are written whole, Nagle would only delay the small ones
+					this.socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
 					SocketAddress address = new InetSocketAddress(this.host, this.port);
+					this.begun = System.nanoTime();
 					this.socket.connect(address);
 					this.status = WebSocket.STAT_CONNECTING;
 
@@ -167,136 +415,108 @@ public class WebSocket
 					{
 						throw new NullPointerException();
 					}
-					boolean contu = true;
-					while (contu)
+					while (!this.socket.finishConnect())
 					{
-						contu = !this.socket.finishConnect();
-						if (timeoutMillis > 0 && System.currentTimeMillis() > endTime)
-							break;
-						if (!blocking && timeoutMillis == 0)
-							break;
-						Thread.yield();
+						if (!this.await(SelectionKey.OP_CONNECT, deadline))
+							return false;
 					}
-					if (contu) return false;
+					if (this.secure)
+						this.tls = Tls.client(this.context != null ? this.context : SSLContext.getDefault(), this.host, this.port, this.socket);
 					this.status = WebSocket.STAT_HANDSHAKE1;
 
 				case WebSocket.STAT_HANDSHAKE1:
-					StringBuilder requ = new StringBuilder(WebSocket.METHOD_GET);
-					requ.append(" ");
-					requ.append(this.path);
-					requ.append(" ");
-					requ.append(HTTP_VERSION);
-					requ.append("\r\n");
-					for (Map.Entry<String, String> header : this.header.entrySet())
-					{
-						requ.append(header.getKey());
-						requ.append(": ");
-						requ.append(header.getValue());
-						requ.append("\r\n");
-					}
-					requ.append("\r\n");
-					ByteBuffer buf = ByteBuffer.wrap(requ.toString().getBytes(StandardCharsets.UTF_8));
-					while (buf.hasRemaining())
-					{
-						this.socket.write(buf);
-					}
+					if (!this.secured(deadline))
+						return false;
+					if (this.XB == WebSocket.NONE)
+						this.request();
+					if (!this.handshaken(deadline))
+						return false;
 					this.status = WebSocket.STAT_HANDSHAKE2;
 
 				case WebSocket.STAT_HANDSHAKE2:
-					do
+					// Accepted connections start here
+					if (!this.secured(deadline))
+						return false;
+					int end = this.handshake.terminate(this.IB);
+					while (end == -1)
 					{
-						this.RB.clear();
-						this.RB.limit(1);
-						int read = this.socket.read(this.RB);
-						if (read > 0)
+						if (this.IB.remaining() == this.IB.capacity())
 						{
-							this.RB.flip();
-							byte b = this.RB.get();
-							this.array.put(b);
+							if (this.IB.capacity() >= WebSocket.HANDSHAKE_LIMIT)
+								throw new IllegalStateException("Handshake exceeds " + WebSocket.HANDSHAKE_LIMIT + " bytes");
+							ByteBuffer grown = ByteBuffer.allocate(this.IB.capacity() * 2);
+							grown.put(this.IB);
+							grown.flip();
+							this.IB = grown;
 						}
-						int off = this.array.length() - 4;
-						if (off >= 0)
+						int read = this.fill();
+						if (read == -1)
+							throw new IllegalStateException("Connection closed during handshake");
+						if (read > 0)
 						{
-							int b0 = this.array.get(off);
-							int b1 = this.array.get(off + 1);
-							int b2 = this.array.get(off + 2);
-							int b3 = this.array.get(off + 3);
-							if ((b0 == '\r') && (b1 == '\n') && (b2 == '\r') && (b3 == '\n'))
-							{
-								this.status = WebSocket.STAT_HANDSHAKE3;
-								break;
-							}
+							end = this.handshake.terminate(this.IB);
+							continue;
 						}
-						if (timeoutMillis > 0 && System.currentTimeMillis() > endTime)
-							break;
-						if (!blocking && timeoutMillis == 0)
+						if (!this.await(SelectionKey.OP_READ, deadline))
 							break;
 					}
-					while (this.blocking);
 
-					if (this.status == WebSocket.STAT_HANDSHAKE2)
+					if (end == -1)
 						return false;
+					this.handshake.parse(this.IB, end);
+					this.status = WebSocket.STAT_HANDSHAKE3;
 
 				case WebSocket.STAT_HANDSHAKE3:
-					StringBuilder builder = new StringBuilder(this.array.length());
-					ArrayList<String> response = new ArrayList<>();
-					boolean carriage = false;
-					while (this.array.length() > 0)
+					if (!this.client)
 					{
-						int b = this.array.get();
-						if (b == '\r') carriage = true;
-						else if (b == '\n')
-						{
-							if (!carriage)
-								throw new IllegalArgumentException("Wrong HTTP response: Expected CR before LF");
-							carriage = false;
-							if (builder.length() > 0)
-								response.add(builder.toString());
-							builder.setLength(0);
-						}
-						else
-						{
-							if (carriage) builder.append('\r');
-							builder.append((char) b);
-						}
+						if (this.XB == WebSocket.NONE)
+							this.respond();
+						if (!this.handshaken(deadline))
+							return false;
+						this.IB.position(this.handshake.end());
+						this.handshake.reset();
+						this.acquire();
+						this.reading = true;
+						this.writing = true;
+						this.status = WebSocket.STAT_CONNECTED;
+						if (this.open != null) this.open.accept(this);
+						this.fire(l -> l.onOpen(this));
+						this.opened();
+						return true;
 					}
 
-					String respLine = response.get(0);
-					int code = Integer.parseInt(respLine.substring(9, 12));
+					int code = this.handshake.status();
 					if (code != 101) throw new IllegalStateException(String.valueOf(code));
 
-					Map<String, String> resp = new HashMap<>();
-					for (int i = 1; i < response.size(); i++)
-					{
-						String header = response.get(i);
-						int idx = header.indexOf(':');
-						String key = header.substring(0, idx).trim();
-						String value = header.substring(idx + 1).trim();
-						if (resp.containsKey(key))
-							resp.put(key, resp.get(key) + ", " + value);
-						else
-							resp.put(key, value);
-					}
-
-					if (!"Upgrade".equalsIgnoreCase(resp.get(WebSocket.HEADER_CONNECTION)))
-						throw new IllegalStateException(WebSocket.HEADER_CONNECTION + ": " + resp.get(WebSocket.HEADER_CONNECTION));
+					if (!this.handshake.contains(WebSocket.HEADER_CONNECTION, "Upgrade"))
+						throw new IllegalStateException(WebSocket.HEADER_CONNECTION + ": " + this.handshake.value(WebSocket.HEADER_CONNECTION));
 
-					if (!"websocket".equalsIgnoreCase(resp.get(WebSocket.HEADER_UPGRADE)))
-						throw new IllegalStateException(WebSocket.HEADER_UPGRADE + ": " + resp.get(WebSocket.HEADER_UPGRADE));
+					if (!this.handshake.equals(WebSocket.HEADER_UPGRADE, "websocket", true))
+						throw new IllegalStateException(WebSocket.HEADER_UPGRADE + ": " + this.handshake.value(WebSocket.HEADER_UPGRADE));
 
-					String wsAccept = resp.get(WebSocket.HEADER_SEC_WS_ACCEPT);
-					if (!WebSocket.accept(this.header.get(WebSocket.HEADER_SEC_WS_KEY)).equals(wsAccept))
-						throw new IllegalStateException(WebSocket.HEADER_SEC_WS_KEY + ": " + wsAccept);
+					if (!this.handshake.equals(WebSocket.HEADER_SEC_WS_ACCEPT, WebSocket.accept(this.header.get(WebSocket.HEADER_SEC_WS_KEY)), false))
+						throw new IllegalStateException(WebSocket.HEADER_SEC_WS_ACCEPT + ": " + this.handshake.value(WebSocket.HEADER_SEC_WS_ACCEPT));
 
-					// TODO check extensions and protocols
-					if (resp.containsKey(WebSocket.HEADER_SEC_WS_PROTOCOL))
-						throw new IllegalStateException(resp.get(WebSocket.HEADER_SEC_WS_PROTOCOL + ": " + WebSocket.HEADER_SEC_WS_PROTOCOL));
-					if (resp.containsKey(WebSocket.HEADER_SEC_WS_EXTENSION))
-						throw new IllegalStateException(resp.get(WebSocket.HEADER_SEC_WS_EXTENSION + ": " + WebSocket.HEADER_SEC_WS_EXTENSION));
+					// TODO check protocols
+					if (this.handshake.has(WebSocket.HEADER_SEC_WS_PROTOCOL))
+						throw new IllegalStateException(WebSocket.HEADER_SEC_WS_PROTOCOL + ": " + this.handshake.value(WebSocket.HEADER_SEC_WS_PROTOCOL));
+					if (this.handshake.has(WebSocket.HEADER_SEC_WS_EXTENSION))
+					{
+						if (this.extension == null)
+							throw new IllegalStateException(WebSocket.HEADER_SEC_WS_EXTENSION + ": " + this.handshake.value(WebSocket.HEADER_SEC_WS_EXTENSION));
+						this.deflate = this.extension.accept(this.handshake.value(WebSocket.HEADER_SEC_WS_EXTENSION));
+					}
 
+					// Bytes after the header terminator belong to the frame decoder
+					this.IB.position(this.handshake.end());
+					this.handshake.reset();
+					this.acquire();
 					this.reading = true;
 					this.writing = true;
 					status = WebSocket.STAT_CONNECTED;
+					if (this.open != null) this.open.accept(this);
+					this.fire(l -> l.onOpen(this));
+					this.opened();
 					return true;
 				default: return true;
 			}
@@ -304,6 +524,9 @@ public class WebSocket
 		catch (Throwable t)
 		{
 			this.status = WebSocket.STAT_CLOSED;
+			CompletableFuture<WebSocket> connecting = this.connecting;
+			this.connecting = null;
+			if (connecting != null) connecting.completeExceptionally(t);
 			JavaVM.exception(t);
 		}
 		return false;
@@ -314,6 +537,268 @@ public class WebSocket
 		return this.finish(0);
 	}
 
+	// Connects and runs the handshake on loop, the future completes with this socket once it is open
+	public CompletableFuture<WebSocket> connectAsync(WebSocketEventLoop loop)
+	{
+		if (!this.client)
+			throw new IllegalStateException("Server connection cannot reconnect");
+		CompletableFuture<WebSocket> future = new CompletableFuture<>();
+		if (this.status >= WebSocket.STAT_CONNECTED)
+		{
+			future.complete(this);
+			return future;
+		}
+		this.connecting = future;
+		loop.register(this);
+		return future;
+	}
+
+	// Fails the future with SocketTimeoutException unless the connection opens within timeoutMillis
+	public CompletableFuture<WebSocket> connectAsync(WebSocketEventLoop loop, long timeoutMillis)
+	{
+		if (timeoutMillis <= 0)
+			throw new IllegalArgumentException("Timeout must be positive");
+		if (this.status < WebSocket.STAT_CONNECTED)
+			this.opening(timeoutMillis, "Connect timeout");
+		return this.connectAsync(loop);
+	}
+
+	public CompletableFuture<WebSocket> connectAsync()
+	{
+		return this.connectAsync(WebSocketEventLoop.shared());
+	}
+
+	// Fails the connection unless its handshake is done within timeoutMillis
+	void opening(long timeoutMillis, String reason)
+	{
+		this.schedule(WebSocket.TIMER_HANDSHAKE, () ->
+		{
+			if (this.status < WebSocket.STAT_CONNECTED) this.timeout(reason);
+		}, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	private void opened()
+	{
+		this.cancel(WebSocket.TIMER_HANDSHAKE);
+		this.pinged = 0;
+		this.pingAt = System.nanoTime();
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.handshake(this.pingAt - this.begun);
+		this.heard = this.pingAt;
+		if (this.pingInterval > 0)
+			this.schedule(WebSocket.TIMER_KEEPALIVE, this::keepalive, this.pingInterval);
+		if (this.idleTimeout > 0)
+			this.schedule(WebSocket.TIMER_IDLE, this::idle, this.idleTimeout);
+		CompletableFuture<WebSocket> connecting = this.connecting;
+		this.connecting = null;
+		if (connecting != null) connecting.complete(this);
+	}
+
+	// Pings the peer every intervalMillis while open, the connection fails with SocketTimeoutException
+	// when a pong takes longer than timeoutMillis. An interval of 0 stops pinging, a timeout of 0 never gives up
+	public void keepalive(long intervalMillis, long timeoutMillis)
+	{
+		if (intervalMillis < 0 || timeoutMillis < 0)
+			throw new IllegalArgumentException("Keepalive cannot be negative");
+		this.pingInterval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.pingTimeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		if (intervalMillis == 0) this.cancel(WebSocket.TIMER_KEEPALIVE);
+		else if (this.status == WebSocket.STAT_CONNECTED)
+			this.schedule(WebSocket.TIMER_KEEPALIVE, this::keepalive, this.pingInterval);
+	}
+
+	// Nanoseconds between the last keepalive ping and its pong, -1 before the first one
+	public long rtt()
+	{
+		return this.rtt;
+	}
+
+	// Fails the connection with SocketTimeoutException once no frame arrived for millis, 0 for never.
+	// Keepalive pongs count, so with keepalive on only a peer that stopped answering is idle
+	public void idleTimeout(long millis)
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+		if (millis == 0) this.cancel(WebSocket.TIMER_IDLE);
+		else if (this.status == WebSocket.STAT_CONNECTED)
+		{
+			this.heard = System.nanoTime();
+			this.schedule(WebSocket.TIMER_IDLE, this::idle, this.idleTimeout);
+		}
+	}
+
+	// Fails the connection with SocketTimeoutException when the peer has not answered our close
+	// frame within millis, 0 waits as long as the connection is read
+	public void closeTimeout(long millis)
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		this.closeTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	// Runs the TLS handshake, false while it still waits for the network
+	private boolean secured(long deadline) throws IOException
+	{
+		if (this.tls == null) return true;
+		while (!this.tls.handshake())
+		{
+			if (!this.await(this.tls.interest(), deadline))
+				return false;
+		}
+		return true;
+	}
+
+	// Prepares the upgrade request, which handshaken() writes
+	private void request()
+	{
+		StringBuilder requ = new StringBuilder(WebSocket.METHOD_GET);
+		requ.append(" ");
+		requ.append(this.path);
+		requ.append(" ");
+		requ.append(HTTP_VERSION);
+		requ.append("\r\n");
+		for (Map.Entry<String, String> header : this.header.entrySet())
+		{
+			requ.append(header.getKey());
+			requ.append(": ");
+			requ.append(header.getValue());
+			requ.append("\r\n");
+		}
+		if (this.extension != null)
+		{
+			requ.append(WebSocket.HEADER_SEC_WS_EXTENSION);
+			requ.append(": ");
+			requ.append(this.extension.offer());
+			requ.append("\r\n");
+		}
+		requ.append("\r\n");
+		this.XB = ByteBuffer.wrap(requ.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Checks the request and prepares the response, which handshaken() writes
+	private void respond() throws IOException
+	{
+		if (!this.handshake.token(0, WebSocket.METHOD_GET) || !this.handshake.token(2, WebSocket.HTTP_VERSION))
+		{
+			this.reject();
+			throw new IllegalStateException("Wrong HTTP request: " + this.handshake.token(0) + " " + this.handshake.token(2));
+		}
+
+		if (!this.handshake.contains(WebSocket.HEADER_CONNECTION, "Upgrade"))
+		{
+			this.reject();
+			throw new IllegalStateException(WebSocket.HEADER_CONNECTION + ": " + this.handshake.value(WebSocket.HEADER_CONNECTION));
+		}
+
+		if (!this.handshake.equals(WebSocket.HEADER_UPGRADE, "websocket", true))
+		{
+			this.reject();
+			throw new IllegalStateException(WebSocket.HEADER_UPGRADE + ": " + this.handshake.value(WebSocket.HEADER_UPGRADE));
+		}
+
+		if (!this.handshake.equals(WebSocket.HEADER_SEC_WS_VERSION, WebSocket.WS_VERSION, false))
+		{
+			this.reject();
+			throw new IllegalStateException(WebSocket.HEADER_SEC_WS_VERSION + ": " + this.handshake.value(WebSocket.HEADER_SEC_WS_VERSION));
+		}
+
+		String wsKey = this.handshake.value(WebSocket.HEADER_SEC_WS_KEY);
+		if (wsKey == null || wsKey.isEmpty())
+		{
+			this.reject();
+			throw new IllegalStateException(WebSocket.HEADER_SEC_WS_KEY + ": " + wsKey);
+		}
+
+		this.path = this.handshake.token(1);
+		if (this.handshake.has(WebSocket.HEADER_HOST))
+			this.host = this.handshake.value(WebSocket.HEADER_HOST);
+		if (this.extension != null && this.handshake.has(WebSocket.HEADER_SEC_WS_EXTENSION))
+			this.deflate = this.extension.negotiate(this.handshake.value(WebSocket.HEADER_SEC_WS_EXTENSION));
+
+		StringBuilder resp = new StringBuilder(WebSocket.HTTP_VERSION);
+		resp.append(" 101 Switching Protocols\r\n");
+		resp.append(WebSocket.HEADER_UPGRADE).append(": websocket\r\n");
+		resp.append(WebSocket.HEADER_CONNECTION).append(": Upgrade\r\n");
+		resp.append(WebSocket.HEADER_SEC_WS_ACCEPT).append(": ").append(WebSocket.accept(wsKey)).append("\r\n");
+		if (this.deflate != null)
+			resp.append(WebSocket.HEADER_SEC_WS_EXTENSION).append(": ").append(this.deflate.header).append("\r\n");
+		for (Map.Entry<String, String> header : this.header.entrySet())
+		{
+			resp.append(header.getKey());
+			resp.append(": ");
+			resp.append(header.getValue());
+			resp.append("\r\n");
+		}
+		resp.append("\r\n");
+		this.XB = ByteBuffer.wrap(resp.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	// The connection fails right after, the response goes out as far as the channel takes it without waiting
+	private void reject() throws IOException
+	{
+		String resp = WebSocket.HTTP_VERSION + " 400 Bad Request\r\n" + WebSocket.HEADER_CONNECTION + ": close\r\n\r\n";
+		this.channelWrite(ByteBuffer.wrap(resp.getBytes(StandardCharsets.UTF_8)));
+		this.channelFlushed();
+	}
+
+	// Writes the handshake bytes of XB, false while the channel has not taken them by the deadline. Meanwhile the
+	// connection counts as stalled, so the event loop finishes it on OP_WRITE instead of blocking on the channel
+	private boolean handshaken(long deadline) throws IOException
+	{
+		while (this.XB.hasRemaining() || !this.channelFlushed())
+		{
+			if (this.XB.hasRemaining() && this.channelWrite(this.XB) > 0) continue;
+			if (!this.await(SelectionKey.OP_WRITE, deadline))
+			{
+				this.stalled = true;
+				return false;
+			}
+		}
+		this.XB = WebSocket.NONE;
+		this.stalled = false;
+		return true;
+	}
+
+	// Offers or accepts permessage-deflate on the next handshake, null disables it
+	public void deflate(PerMessageDeflate extension)
+	{
+		this.extension = extension;
+	}
+
+	public boolean compression()
+	{
+		return this.deflate != null;
+	}
+
+	// Context for wss connections, the default context is used when null
+	public void tls(SSLContext context)
+	{
+		this.context = context;
+	}
+
+	// Nanoseconds the last TLS handshake took, -1 without TLS
+	public long handshakeTime()
+	{
+		return this.tls != null ? this.tls.time() : -1;
+	}
+
+	// Whether the last TLS handshake resumed a cached session
+	public boolean resumed()
+	{
+		return this.tls != null && this.tls.resumed();
+	}
+
+	public SSLSession session()
+	{
+		return this.tls != null ? this.tls.session() : null;
+	}
+
+	public boolean client()
+	{
+		return this.client;
+	}
+
 	public boolean reading()
 	{
 		return this.reading;
@@ -344,193 +829,1776 @@ public class WebSocket
 	}
 
 	public int read(byte[] buf, int off, int len, long timeoutMillis)
+	{
+		return this.read(ByteBuffer.wrap(buf, off, len), timeoutMillis);
+	}
+
+	public int read(byte[] buf, int off, int len)
+	{
+		return this.read(buf, off, len, 0);
+	}
+
+	public int read(ByteBuffer buf, long timeoutMillis)
 	{
 		if (timeoutMillis < 0)
 			throw new IllegalArgumentException("Timeout cannot be negative");
-		long endTime = System.currentTimeMillis() + timeoutMillis;
 
 		int retVal = 0;
 		try
 		{
 			this.locking[WebSocket.READING].lock();
-			boolean blocking = this.blocking;
+			long deadline = this.deadline = WebSocket.deadline(timeoutMillis, this.blocking);
 			if (!this.reading()) return -1;
-			while (this.array.length() == 0)
+			int pos = buf.position();
+			// Payload arriving while the ring buffer is empty is read straight into buf
+			this.target = buf;
+			while (this.array.length() == 0 && buf.position() == pos)
 			{
-				this.receive();
-				if (timeoutMillis > 0 && System.currentTimeMillis() > endTime)
+				boolean progress = this.receive();
+				if (!this.reading())
 					break;
-				if (!blocking && timeoutMillis == 0)
+				if (!this.readable(deadline, progress))
 					break;
-				Thread.yield();
 			}
-			int read = this.array.length();
-			if (read > len) read = len;
-			this.array.get(buf, off, read);
-			retVal = read;
+			this.target = null;
+			if (buf.position() == pos)
+			{
+				if (this.array.length() == 0 && !this.reading())
+					return -1;
+				int length = this.array.length();
+				this.array.get(buf);
+				this.free(length - this.array.length());
+				this.array.recycle();
+			}
+			retVal = buf.position() - pos;
+			WebSocketMetrics metrics = this.metrics;
+			if (metrics != null && retVal > 0) metrics.delivery(System.nanoTime() - this.arrival);
 		}
 		catch (Throwable t)
 		{
+			this.target = null;
 			this.close();
 			JavaVM.exception(t);
 		}
 		finally
 		{
+			this.deadline = 0;
 			this.locking[WebSocket.READING].unlock();
 		}
 		return retVal;
 	}
 
-	public int read(byte[] buf, int off, int len)
+	public int read(ByteBuffer buf)
 	{
-		return this.read(buf, off, len, 0);
+		return this.read(buf, 0);
 	}
 
-	public void write(byte[] buf, int off, int len)
+	public Message readMessage(long timeoutMillis)
 	{
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		if (!this.messaging)
+			throw new IllegalStateException("Messaging not enabled");
+
 		try
 		{
-			this.WB = WebSocket.expand(this.WB, len + 16);
-			this.locking[WebSocket.WRITING].lock();
-			if (!this.writing()) return;
-			this.WB.clear();
-			this.WB.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY));
-			this.WB.put((byte) (WebSocket.MASK_MSK | 127));
-			this.WB.putLong(len);
-			MaskingKey rmask = this.masking[WebSocket.WRITING];
-			rmask.next(this.random);
-			rmask.having = true;
-			byte[] payload = new byte[len];
-			System.arraycopy(buf, off, payload, 0, len);
-			rmask.masking(payload);
-			this.WB.put(rmask.value());
-			this.WB.put(payload);
-			this.WB.flip();
-			while (this.WB.hasRemaining())
-				this.socket.write(this.WB);
+			this.locking[WebSocket.READING].lock();
+			long deadline = this.deadline = WebSocket.deadline(timeoutMillis, this.blocking);
+			while (this.messages.isEmpty() && this.reading())
+			{
+				boolean progress = this.receive();
+				if (!this.readable(deadline, progress))
+					break;
+			}
+			Message message = this.messages.poll();
+			if (message != null) this.taken(message);
+			return message;
 		}
-		catch (IOException e)
+		catch (Throwable t)
 		{
 			this.close();
-			JavaVM.exception(e);
+			JavaVM.exception(t);
 		}
 		finally
 		{
-			this.locking[WebSocket.WRITING].unlock();
+			this.deadline = 0;
+			this.locking[WebSocket.READING].unlock();
 		}
+		return null;
 	}
 
-	public void shutdown(boolean reading, long timeoutMillis) throws IOException
+	public Message readMessage()
 	{
-		if (timeoutMillis < 0)
-			throw new IllegalArgumentException("Timeout cannot be negative");
-		long endTime = System.currentTimeMillis() + timeoutMillis;
-		boolean blocking = this.blocking;
-		if (reading)
-		{
-			try
-			{
-				this.locking[WebSocket.READING].lock();
-				while (this.reading())
-				{
-					this.receive();
-					if (timeoutMillis > 0 && System.currentTimeMillis() > endTime)
-						break;
-					if (!blocking && timeoutMillis == 0)
-						break;
-					Thread.yield();
-				}
-			}
-			finally
-			{
-				this.locking[WebSocket.READING].unlock();
-			}
-			return;
-		}
+		return this.readMessage(0);
+	}
 
+	// The next message, completed by the thread that receives it, the event loop for registered connections.
+	// Turns messaging on, the caller owns the message
+	public CompletableFuture<Message> receiveAsync()
+	{
+		this.locking[WebSocket.READING].lock();
 		try
 		{
-			this.locking[WebSocket.WRITING].lock();
-			if (!this.writing()) return;
-
-			this.writing = false;
-			Array buf = new Array(2);
-			buf.integer(1000, 2);
-			byte[] data = new byte[2];
-			buf.get(data, 0, 2);
-			this.WB.clear();
-			this.WB.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CLOSE));
-			this.WB.put((byte) (WebSocket.MASK_MSK | 2));
-			byte[] mask = new byte[4];
-			this.random.nextBytes(mask);
-			WebSocket.masking(mask, data);
-			this.WB.put(mask);
-			this.WB.put(data);
-			this.WB.flip();
-			while (this.WB.hasRemaining())
-				this.socket.write(this.WB);
+			this.messaging = true;
+			Message message = this.messages.poll();
+			if (message != null)
+			{
+				this.taken(message);
+				return CompletableFuture.completedFuture(message);
+			}
+			CompletableFuture<Message> future = new CompletableFuture<>();
+			if (this.reading()) this.receivers.offer(future);
+			else future.completeExceptionally(new ClosedChannelException());
+			return future;
 		}
 		finally
 		{
-			this.locking[WebSocket.WRITING].unlock();
+			this.locking[WebSocket.READING].unlock();
 		}
 	}
 
-	public void shutdown(boolean reading) throws IOException
+	public void messaging(boolean messaging)
 	{
-		this.shutdown(reading, 0);
+		this.locking[WebSocket.READING].lock();
+		this.messaging = messaging;
+		this.locking[WebSocket.READING].unlock();
 	}
 
-	public void reset()
+	public boolean messaging()
 	{
-		this.reading = false;
-		this.writing = false;
-		if (this.socket != null)
+		return this.messaging;
+	}
+
+	public void handler(MessageHandler handler)
+	{
+		this.locking[WebSocket.READING].lock();
+		this.handler = handler;
+		if (handler != null)
 		{
-			try
-			{
-				this.socket.close();
-			}
-			catch (IOException ignored)
+			this.messaging = true;
+			Message message;
+			while ((message = this.messages.poll()) != null)
 			{
+				this.taken(message);
+				handler.message(this, message);
 			}
 		}
-		this.socket = null;
-		this.blocking = true;
-		this.RB.clear();
-		this.WB.clear();
-		this.RS = WebSocket.RS_OVERED;
-		this.opcode = 0;
-		this.length = 0;
-		this.masking[WebSocket.READING].reset();
-		this.masking[WebSocket.WRITING].reset();
-		this.array.trim(this.array.length());
-		this.status = WebSocket.STAT_CLOSED;
+		this.locking[WebSocket.READING].unlock();
 	}
 
-	public void close(long timeoutMillis)
+	// Calls listener as frames complete, on the receiving thread or through executor with the callbacks of
+	// this connection kept in order. Messages go to the listener instead of readMessage()
+	public void listener(Listener listener, Executor executor)
 	{
-		try
+		this.locking[WebSocket.READING].lock();
+		this.callbacks = executor != null ? new SerialExecutor(executor) : null;
+		this.listener = listener;
+		if (listener != null)
 		{
-			this.locking[WebSocket.READING].lock();
-			this.locking[WebSocket.WRITING].lock();
+			this.messaging = true;
+			this.backlog();
+		}
+		this.locking[WebSocket.READING].unlock();
+	}
 
-			if (this.status == WebSocket.STAT_CLOSED)
-				return;
+	public void listener(Listener listener)
+	{
+		this.listener(listener, null);
+	}
 
-			this.status = WebSocket.STAT_CLOSING;
+	public Listener listener()
+	{
+		return this.listener;
+	}
 
-			try
-			{
-				this.shutdown(false);
-			}
-			catch (IOException ignored)
-			{
-			}
+	// Hands data to handler in chunks as it arrives, however long the frames are. Messages and read() get nothing
+	// while it is set, null turns streaming off
+	public void stream(StreamHandler handler)
+	{
+		this.locking[WebSocket.READING].lock();
+		this.stream = handler;
+		this.locking[WebSocket.READING].unlock();
+	}
+
+	public void pool(MessagePool pool)
+	{
+		this.locking[WebSocket.READING].lock();
+		this.pool = pool;
+		this.locking[WebSocket.READING].unlock();
+	}
+
+	// Largest message accepted and most unread payload bytes held before reading pauses,
+	// a message that can never fit closes the connection with 1009
+	public void limits(long message, long buffer)
+	{
+		if (message <= 0 || buffer <= 0)
+			throw new IllegalArgumentException("Limits must be positive");
+		this.locking[WebSocket.READING].lock();
+		this.messageLimit = message;
+		this.bufferLimit = buffer;
+		this.array.limit((int) Math.min(buffer, 1 << 30));
+		this.locking[WebSocket.READING].unlock();
+	}
+
+	public long messageLimit()
+	{
+		return this.messageLimit;
+	}
+
+	public long bufferLimit()
+	{
+		return this.bufferLimit;
+	}
+
+	// Budget inbound payload is reserved from, shared with the other connections using it
+	public void budget(MemoryBudget budget)
+	{
+		this.locking[WebSocket.READING].lock();
+		try
+		{
+			if (budget == this.budget) return;
+			budget.charge(this.held);
+			this.budget.release(this.held);
+			this.budget = budget;
+		}
+		finally
+		{
+			this.locking[WebSocket.READING].unlock();
+		}
+		this.resume();
+	}
+
+	public MemoryBudget budget()
+	{
+		return this.budget;
+	}
+
+	// Counters this connection records into from now on, null records nothing
+	public void metrics(WebSocketMetrics metrics)
+	{
+		this.queuing.lock();
+		try
+		{
+			// The queued bytes move along, the gauges stay right
+			if (this.metrics != null) this.metrics.queued(-this.queued);
+			if (metrics != null) metrics.queued(this.queued);
+			this.metrics = metrics;
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+	}
+
+	public WebSocketMetrics metrics()
+	{
+		return this.metrics;
+	}
+
+	// Payload bytes received and not consumed yet
+	public long held()
+	{
+		return this.held;
+	}
+
+	// Lets the connection start reading n more messages, reading stops once they have been read.
+	// Connections read without limit until the first call, demand(0) turns the limit on
+	public void demand(long n)
+	{
+		if (n < 0)
+			throw new IllegalArgumentException("Demand cannot be negative");
+		long before = this.credit.getAndUpdate(c -> c < 0 ? n : (c + n < 0 ? Long.MAX_VALUE : c + n));
+		if (before == 0 && n > 0)
+		{
+			this.starved = false;
+			this.wake();
+		}
+	}
+
+	// Reading waits for memory or for demand
+	public boolean paused()
+	{
+		return this.paused || this.starved;
+	}
+
+	public void write(byte[] buf, int off, int len)
+	{
+		this.write(ByteBuffer.wrap(buf, off, len));
+	}
+
+	public void write(ByteBuffer buf)
+	{
+		if (this.queued(buf.remaining()))
+		{
+			boolean due;
+			this.queuing.lock();
+			try
+			{
+				this.QB[0] = buf;
+				due = this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.QB, 0, 1, buf.remaining());
+			}
+			finally
+			{
+				this.QB[0] = null;
+				this.queuing.unlock();
+			}
+			if (due) this.drain();
+			this.throttle();
+			return;
+		}
+		this.locking[WebSocket.WRITING].lock();
+		try
+		{
+			this.SB[0] = buf;
+			this.write(this.SB, 0, 1);
+		}
+		finally
+		{
+			this.SB[0] = null;
+			this.release();
+		}
+	}
+
+	public void write(ByteBuffer[] bufs)
+	{
+		this.write(bufs, 0, bufs.length);
+	}
+
+	public void write(ByteBuffer[] bufs, int offset, int length)
+	{
+		long total = 0;
+		for (int i = 0; i < length; i++)
+			total += bufs[offset + i].remaining();
+		if (this.queued(total))
+		{
+			if (this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_BINARY, bufs, offset, length, (int) total))
+				this.drain();
+			this.throttle();
+			return;
+		}
+		try
+		{
+			this.locking[WebSocket.WRITING].lock();
+			if (!this.writing()) return;
+			// Frames queued before this one go first
+			this.pending(true);
+			if (this.compress(total))
+			{
+				for (int i = 0; i < length; i++)
+					this.deflate(WebSocket.OPC_BINARY, bufs[offset + i], i == length - 1);
+			}
+			else this.frame(WebSocket.MASK_FIN | WebSocket.OPC_BINARY, bufs, offset, length);
+			this.pending(true);
+		}
+		catch (IOException e)
+		{
+			this.close();
+			JavaVM.exception(e);
+		}
+		finally
+		{
+			this.release();
+		}
+	}
+
+	public void sendText(CharSequence text)
+	{
+		int n = text.length();
+		// Three bytes per char bound the encoded size, both the queue and compression go by it
+		long bound = n * 3L;
+		if (this.queued(bound))
+		{
+			boolean due;
+			this.queuing.lock();
+			try
+			{
+				this.TB.clear();
+				int i = 0;
+				while (i < n)
+				{
+					char c = text.charAt(i);
+					if (c >= 0x80) break;
+					this.TB.put((byte) c);
+					i++;
+				}
+				if (i < n)
+				{
+					this.qencoder.reset();
+					CoderResult result = this.qencoder.encode(CharBuffer.wrap(text, i, n), this.TB, true);
+					if (result.isUnderflow()) result = this.qencoder.flush(this.TB);
+					if (!result.isUnderflow()) result.throwException();
+				}
+				this.TB.flip();
+				this.QB[0] = this.TB;
+				due = this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_TEXT, this.QB, 0, 1, this.TB.remaining());
+			}
+			catch (CharacterCodingException e)
+			{
+				throw new IllegalArgumentException("Malformed text", e);
+			}
+			finally
+			{
+				this.QB[0] = null;
+				this.queuing.unlock();
+			}
+			if (due) this.drain();
+			this.throttle();
+			return;
+		}
+		boolean fragment = false;
+		try
+		{
+			this.locking[WebSocket.WRITING].lock();
+			if (!this.writing()) return;
+			this.pending(true);
+			int i = 0;
+			CharBuffer chars = null;
+			boolean compress = this.compress(bound);
+			this.WB = this.buffers.acquire((int) Math.min(bound, WebSocket.WRITE_CHUNK), this.direct);
+			this.borrowed(this.WB);
+			boolean done;
+			do
+			{
+				this.WB.clear();
+				if (chars == null)
+				{
+					// ASCII runs are copied directly until the first character that needs the encoder
+					int end = Math.min(n, i + this.WB.remaining());
+					while (i < end)
+					{
+						char c = text.charAt(i);
+						if (c >= 0x80) break;
+						this.WB.put((byte) c);
+						i++;
+					}
+					if (i < n && i < end)
+					{
+						chars = CharBuffer.wrap(text, i, n);
+						this.encoder.reset();
+					}
+				}
+				done = chars == null && i == n;
+				if (chars != null)
+				{
+					CoderResult result = this.encoder.encode(chars, this.WB, true);
+					if (result.isUnderflow()) result = this.encoder.flush(this.WB);
+					if (result.isError()) result.throwException();
+					done = result.isUnderflow();
+				}
+				this.WB.flip();
+				if (compress)
+				{
+					this.deflate(WebSocket.OPC_TEXT, this.WB, done);
+				}
+				else
+				{
+					int opcode = fragment ? WebSocket.OPC_CONTINUE : WebSocket.OPC_TEXT;
+					this.send(done ? WebSocket.MASK_FIN | opcode : opcode, this.WB);
+				}
+				fragment = true;
+			}
+			while (!done);
+			this.pending(true);
+		}
+		catch (CharacterCodingException e)
+		{
+			// Fragments already sent cannot be taken back, the message stream is broken
+			if (fragment) this.close();
+			throw new IllegalArgumentException("Malformed text", e);
+		}
+		catch (IOException e)
+		{
+			this.close();
+			JavaVM.exception(e);
+		}
+		finally
+		{
+			this.buffers.release(this.WB);
+			this.WB = WebSocket.NONE;
+			this.release();
+		}
+	}
+
+	public void policy(FlushPolicy policy)
+	{
+		this.policy = policy;
+		if (this.due()) this.drain();
+	}
+
+	public FlushPolicy policy()
+	{
+		return this.policy;
+	}
+
+	// Writes everything queued, waiting for the writer role if another sender has it and for the channel if it is full
+	public void flush()
+	{
+		try
+		{
+			this.locking[WebSocket.WRITING].lock();
+			this.pending(true);
+		}
+		catch (IOException e)
+		{
+			this.close();
+			JavaVM.exception(e);
+		}
+		finally
+		{
+			this.release();
+		}
+	}
+
+	// Queues buf as one binary frame unless the send queue is at the high watermark, never waits for the channel.
+	// A message due for compression is deflated into the queue when the writer role is free, the deflater being
+	// the writer's. Otherwise it is queued as it is, which the peer takes since compression is per message
+	public boolean trySend(ByteBuffer buf)
+	{
+		if (this.compress(buf.remaining()) && this.locking[WebSocket.WRITING].tryLock())
+			return this.tryDeflate(buf);
+		boolean due;
+		this.queuing.lock();
+		try
+		{
+			if (!this.writing() || this.queued >= this.high) return false;
+			this.QB[0] = buf;
+			due = this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.QB, 0, 1, buf.remaining());
+		}
+		finally
+		{
+			this.QB[0] = null;
+			this.queuing.unlock();
+		}
+		if (due) this.drain();
+		this.writability();
+		return true;
+	}
+
+	public boolean trySend(byte[] buf, int off, int len)
+	{
+		return this.trySend(ByteBuffer.wrap(buf, off, len));
+	}
+
+	// Deflates buf into the queue, the caller holding the writer role
+	private boolean tryDeflate(ByteBuffer buf)
+	{
+		try
+		{
+			this.queuing.lock();
+			try
+			{
+				if (!this.writing() || this.queued >= this.high) return false;
+				if (!this.entries.isEmpty())
+				{
+					// Messages of sendAsync() are deflated first, the deflater has to see them in send order
+					this.QB[0] = buf;
+					this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.QB, 0, 1, buf.remaining());
+					return true;
+				}
+				// The queue stays locked until the last fragment, no other frame goes between them
+				this.deferred = true;
+				this.deflate(WebSocket.OPC_BINARY, buf, true);
+			}
+			finally
+			{
+				this.QB[0] = null;
+				this.deferred = false;
+				this.queuing.unlock();
+			}
+		}
+		catch (IOException e)
+		{
+			this.close();
+			JavaVM.exception(e);
+		}
+		finally
+		{
+			this.release();
+		}
+		this.writability();
+		return true;
+	}
+
+	// Queues buf as one binary message without waiting, whatever the watermarks. The future completes once the
+	// channel has taken it, cancelling it only stops waiting since the message is sent anyway. Small messages
+	// are copied into the queue while it is below the high watermark. Others are framed by the writer from buf
+	// itself as the channel takes them, so its content must stay as it is until the future is done
+	public CompletableFuture<Void> sendAsync(ByteBuffer buf)
+	{
+		int length = buf.remaining();
+		boolean copy = this.queued(length);
+		Sending sending;
+		boolean due;
+		this.queuing.lock();
+		try
+		{
+			if (!this.writing())
+			{
+				CompletableFuture<Void> future = new CompletableFuture<>();
+				future.completeExceptionally(new ClosedChannelException());
+				return future;
+			}
+			// Past the high watermark only buf is held, the queue itself stays bounded
+			if (copy && this.queued < this.high)
+			{
+				this.QB[0] = buf;
+				due = this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_BINARY, this.QB, 0, 1, length);
+				sending = new Sending(this.OB.position());
+				this.awaiting.offer(sending);
+			}
+			else
+			{
+				if (this.OB.position() > 0)
+				{
+					this.entries.offer(new Entry(this.OB, this.awaiting));
+					this.OB = WebSocket.NONE;
+					this.awaiting = new ArrayDeque<>();
+					this.urgent = false;
+				}
+				sending = new Sending(0);
+				this.entries.offer(new Entry(buf.duplicate(), this.compress(length), sending));
+				buf.position(buf.limit());
+				// Counted as it is until framed, the writer adds the difference
+				this.queued += length;
+				if (this.metrics != null) this.metrics.queued(length);
+				due = true;
+			}
+		}
+		finally
+		{
+			this.QB[0] = null;
+			this.queuing.unlock();
+		}
+		if (due) this.drain();
+		else this.writability();
+		return sending;
+	}
+
+	// Fails with TimeoutException unless the channel took the frame within timeoutMillis
+	public CompletableFuture<Void> sendAsync(ByteBuffer buf, long timeoutMillis)
+	{
+		if (timeoutMillis <= 0)
+			throw new IllegalArgumentException("Timeout must be positive");
+		CompletableFuture<Void> future = this.sendAsync(buf);
+		if (!future.isDone())
+		{
+			TimerWheel.Timeout timeout = TimerWheel.SHARED.schedule(() -> future.completeExceptionally(new TimeoutException()), timeoutMillis, TimeUnit.MILLISECONDS);
+			// Frames sent in time would otherwise hold the wheel slot until it expires
+			future.whenComplete((v, t) -> timeout.cancel());
+		}
+		return future;
+	}
+
+	// The queue stops being writable at high bytes and becomes writable again at low
+	public void watermarks(int low, int high)
+	{
+		if (low < 0 || high <= low)
+			throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high");
+		this.queuing.lock();
+		this.low = low;
+		this.high = high;
+		this.queuing.unlock();
+		this.writability();
+	}
+
+	public boolean writable()
+	{
+		return this.writable;
+	}
+
+	// Bytes queued and not written to the channel yet
+	public long queued()
+	{
+		this.queuing.lock();
+		try
+		{
+			return this.queued;
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+	}
+
+	public void writability(WritabilityHandler handler)
+	{
+		this.writability = handler;
+	}
+
+	private boolean queued(long length)
+	{
+		return length <= WebSocket.COALESCE_LIMIT && !this.compress(length);
+	}
+
+	// Messages of length bytes are compressed when deflate was negotiated
+	private boolean compress(long length)
+	{
+		Deflate deflate = this.deflate;
+		return deflate != null && deflate.compress && length >= deflate.threshold;
+	}
+
+	// Appends a frame to OB, true when the policy wants it written now
+	private boolean enqueue(int head, ByteBuffer[] bufs, int offset, int count, int length)
+	{
+		this.queuing.lock();
+		try
+		{
+			if (!this.writing()) return false;
+			long now = System.nanoTime();
+			if (this.OB.position() == 0) this.since = now;
+			this.OB = this.buffers.grow(this.OB, this.OB.position() + length + 14);
+			int start = this.OB.position();
+			this.header(this.OB, this.qmask, head, length);
+			for (int i = 0; i < count; i++)
+				this.qmask.masking(bufs[offset + i], this.OB);
+			this.queued += this.OB.position() - start;
+			if (this.metrics != null) this.metrics.queued(this.OB.position() - start);
+			if ((head & WebSocket.MASK_OPC) >= WebSocket.OPC_CLOSE) this.urgent = true;
+			FlushPolicy policy = this.policy;
+			if (this.urgent || policy.due(this.OB.position(), now - this.since)) return true;
+			if (!this.scheduled && policy.timed())
+			{
+				this.scheduled = true;
+				TimerWheel.SHARED.schedule(this::expire, policy.maxDelay, TimeUnit.NANOSECONDS);
+			}
+			return false;
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+	}
+
+	private boolean due()
+	{
+		this.queuing.lock();
+		try
+		{
+			Tls tls = this.tls;
+			if (this.pong || (tls != null && tls.unflushed()) || !this.entries.isEmpty()) return true;
+			return this.OB.position() > 0 && (this.urgent || this.policy.due(this.OB.position(), System.nanoTime() - this.since));
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+	}
+
+	// Writes the pong of the slot into out and empties the slot, the queuing lock must be held
+	private void pong(ByteBuffer out)
+	{
+		this.pong = false;
+		this.PB.flip();
+		this.header(out, this.qmask, WebSocket.MASK_FIN | WebSocket.OPC_PONG, this.PB.remaining());
+		this.qmask.masking(this.PB, out);
+		this.PB.clear();
+	}
+
+	private void expire()
+	{
+		this.queuing.lock();
+		this.scheduled = false;
+		this.queuing.unlock();
+		if (this.stalled) this.outbound();
+		else this.drain();
+	}
+
+	// Takes the writer role if it is free, otherwise the sender holding it writes the queue
+	private void drain()
+	{
+		while (this.locking[WebSocket.WRITING].tryLock())
+		{
+			try
+			{
+				this.pending(false);
+			}
+			catch (IOException e)
+			{
+				this.close();
+				JavaVM.exception(e);
+			}
+			finally
+			{
+				this.locking[WebSocket.WRITING].unlock();
+			}
+			this.sent();
+			// Frames queued while the role was being given up
+			if (this.stalled || !this.due()) break;
+		}
+		this.writability();
+	}
+
+	// The channel takes bytes again, called by the event loop on OP_WRITE
+	void outbound()
+	{
+		if (!this.locking[WebSocket.WRITING].tryLock()) return;
+		try
+		{
+			this.pending(false);
+		}
+		catch (IOException e)
+		{
+			this.close();
+			JavaVM.exception(e);
+		}
+		finally
+		{
+			this.locking[WebSocket.WRITING].unlock();
+		}
+		this.sent();
+		this.writability();
+	}
+
+	// Writes the queued frames, the writer role must be held. Without wait a full channel
+	// leaves the rest to OP_WRITE and false is returned
+	private boolean pending(boolean wait) throws IOException
+	{
+		while (true)
+		{
+			// Written outside the queue accounting, sendAsync() marks only count queued frames
+			if (this.UB.hasRemaining())
+			{
+				if (this.channelWrite(this.UB) == 0 && !this.ready(wait)) return false;
+				continue;
+			}
+			if (!this.FB.hasRemaining())
+			{
+				Entry entry;
+				this.queuing.lock();
+				try
+				{
+					if (this.pong)
+					{
+						this.UB.clear();
+						this.pong(this.UB);
+						this.UB.flip();
+						continue;
+					}
+					entry = this.entries.peek();
+					if (entry == null || entry.frames != null)
+					{
+						if (!this.next(entry)) break;
+						entry = null;
+					}
+				}
+				finally
+				{
+					this.queuing.unlock();
+				}
+				// Framed outside the lock, senders keep queueing behind the message meanwhile
+				if (entry != null)
+				{
+					this.fragment(entry);
+					continue;
+				}
+			}
+			int n;
+			if (this.pong)
+			{
+				int end = this.boundary();
+				if (this.frame == this.FB.position())
+				{
+					// Between two frames, the pong goes first
+					this.queuing.lock();
+					try
+					{
+						if (this.pong)
+						{
+							this.UB.clear();
+							this.pong(this.UB);
+							this.UB.flip();
+						}
+					}
+					finally
+					{
+						this.queuing.unlock();
+					}
+					continue;
+				}
+				// The write stops where the frame ends so the pong can go next
+				int limit = this.FB.limit();
+				this.FB.limit(end);
+				try
+				{
+					n = this.channelWrite(this.FB);
+				}
+				finally
+				{
+					this.FB.limit(limit);
+				}
+			}
+			else n = this.channelWrite(this.FB);
+			if (n > 0)
+			{
+				this.queuing.lock();
+				this.queued -= n;
+				if (this.metrics != null) this.metrics.queued(-n);
+				// The TLS engine may hold the records back, they count once it is flushed
+				if (this.tls == null) this.sent += n;
+				else this.wrapped += n;
+				this.queuing.unlock();
+			}
+			else if (!this.ready(wait)) return false;
+		}
+		while (!this.channelFlushed())
+		{
+			if (!this.ready(wait)) return false;
+		}
+		this.stalled = false;
+		if (this.wrapped > 0)
+		{
+			this.queuing.lock();
+			this.sent += this.wrapped;
+			this.wrapped = 0;
+			this.queuing.unlock();
+		}
+		return true;
+	}
+
+	// Hands the frames set aside first or else OB to the writer as FB, which is written, the queuing lock
+	// must be held. Their futures are marked from what was sent so far. False when nothing is queued
+	private boolean next(Entry entry)
+	{
+		ArrayDeque<Sending> held;
+		if (entry != null)
+		{
+			this.entries.poll();
+			this.buffers.release(this.FB);
+			this.FB = entry.frames;
+			held = entry.held;
+		}
+		else
+		{
+			if (this.OB.position() == 0) return false;
+			ByteBuffer queued = this.OB;
+			this.OB = this.FB;
+			this.FB = queued;
+			this.OB.clear();
+			this.urgent = false;
+			held = this.awaiting;
+		}
+		this.FB.flip();
+		this.frame = 0;
+		long base = this.sent + this.wrapped;
+		Sending sending;
+		while ((sending = held.poll()) != null)
+		{
+			sending.mark += base;
+			this.sends.offer(sending);
+		}
+		return true;
+	}
+
+	// Frames the next part of the message at the head of entries into FB, the writer role must be held
+	private void fragment(Entry entry) throws IOException
+	{
+		ByteBuffer payload = entry.payload;
+		ByteBuffer part = payload.duplicate();
+		part.limit(part.position() + Math.min(part.remaining(), WebSocket.WRITE_CHUNK));
+		payload.position(part.limit());
+		boolean last = !payload.hasRemaining();
+		int length = part.remaining();
+		this.FB.clear();
+		this.frame = 0;
+		this.framing = true;
+		try
+		{
+			if (entry.compress) this.deflate(WebSocket.OPC_BINARY, part, last);
+			else
+			{
+				int opcode = entry.started ? WebSocket.OPC_CONTINUE : WebSocket.OPC_BINARY;
+				this.send(last ? WebSocket.MASK_FIN | opcode : opcode, part);
+			}
+		}
+		finally
+		{
+			this.framing = false;
+		}
+		entry.started = true;
+		this.FB.flip();
+		this.queuing.lock();
+		try
+		{
+			int n = this.FB.remaining() - length;
+			this.queued += n;
+			if (this.metrics != null) this.metrics.queued(n);
+			if (last && this.entries.peek() == entry)
+			{
+				this.entries.poll();
+				entry.sending.mark = this.sent + this.wrapped + this.FB.remaining();
+				this.sends.offer(entry.sending);
+			}
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+	}
+
+	// Moves frame past the frames of FB written already, returning the end of the one being written
+	private int boundary()
+	{
+		ByteBuffer buf = this.FB;
+		while (true)
+		{
+			int at = this.frame;
+			int b = buf.get(at + 1);
+			long length = b & WebSocket.MASK_LEN;
+			int header = 2;
+			if (length == 126)
+			{
+				length = buf.getShort(at + 2) & 0xFFFF;
+				header = 4;
+			}
+			else if (length == 127)
+			{
+				length = buf.getLong(at + 2);
+				header = 10;
+			}
+			if ((b & WebSocket.MASK_MSK) != 0) header += 4;
+			int end = at + header + (int) length;
+			if (end > buf.position()) return end;
+			this.frame = end;
+		}
+	}
+
+	// Completes the sendAsync() futures of the frames written, outside the writer role so they may send again
+	private void sent()
+	{
+		Sending sending;
+		while ((sending = this.sends.peek()) != null && sending.mark <= this.sent)
+		{
+			if (this.sends.remove(sending)) sending.complete(null);
+		}
+	}
+
+	// Waits until the channel is writable, or marks the connection stalled when the caller cannot wait
+	private boolean ready(boolean wait) throws IOException
+	{
+		if (wait)
+		{
+			this.await(SelectionKey.OP_WRITE);
+			return true;
+		}
+		this.stalled = true;
+		SelectionKey key = this.key;
+		if (key != null)
+		{
+			try
+			{
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				key.selector().wakeup();
+			}
+			catch (CancelledKeyException ignored)
+			{
+			}
+			return false;
+		}
+		// No loop serves the connection, the shared one wakes the writer once the channel takes bytes
+		SocketChannel channel = this.socket;
+		if (channel != null) WebSocketEventLoop.shared().writable(channel, this::outbound);
+		return false;
+	}
+
+	// Blocks until the channel is writable, interrupting the writer fails the write
+	private void await(int ops) throws IOException
+	{
+		if (!this.await(ops, 0))
+			throw new InterruptedIOException();
+	}
+
+	// Sleeps on a selector of its own until the channel is ready for ops or the deadline passes.
+	// False when there is no time left to wait or the thread was interrupted
+	private boolean await(int ops, long deadline) throws IOException
+	{
+		this.lapsed();
+		long nanos = WebSocket.remaining(deadline);
+		if (nanos == 0 || Thread.currentThread().isInterrupted()) return false;
+		int role = ops == SelectionKey.OP_READ ? WebSocket.READING : WebSocket.WRITING;
+		Selector waiter = this.waiters[role];
+		if (waiter == null || !waiter.isOpen())
+			this.waiters[role] = waiter = Selector.open();
+		SelectionKey key = this.socket.register(waiter, ops);
+		try
+		{
+			// A timer that went off before the selector was there could not wake it
+			this.lapsed();
+			// select(0) would wait forever, a partial millisecond is rounded up
+			if (nanos < 0) waiter.select();
+			else waiter.select(Math.max(TimeUnit.NANOSECONDS.toMillis(nanos + 999999), 1));
+		}
+		finally
+		{
+			key.cancel();
+			try
+			{
+				// Deregisters the channel so it can be registered elsewhere
+				waiter.selectNow();
+			}
+			catch (ClosedSelectorException ignored)
+			{
+			}
+		}
+		return true;
+	}
+
+	// Sleeps until receive() may get further, false once the deadline passed or the thread was interrupted
+	private boolean readable(long deadline, boolean progress) throws IOException
+	{
+		this.lapsed();
+		long nanos = WebSocket.remaining(deadline);
+		if (nanos == 0 || Thread.currentThread().isInterrupted()) return false;
+		if (this.paused())
+		{
+			// Held bytes, the budget or demand() have to make room first, resume() wakes the reader up
+			this.parked = Thread.currentThread();
+			if (this.paused())
+			{
+				if (nanos < 0) LockSupport.park(this);
+				else LockSupport.parkNanos(this, nanos);
+			}
+			this.parked = null;
+			return true;
+		}
+		if (progress || this.buffered()) return true;
+		if (this.key == null) return this.await(SelectionKey.OP_READ, deadline);
+		// The event loop reads the channel, waiting releases the lock it needs for that
+		try
+		{
+			if (nanos < 0) this.arrived.await();
+			else this.arrived.awaitNanos(nanos);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	// Deadline of a call, 0 waits forever and a timeout of 0 without blocking does not wait at all
+	private static long deadline(long timeoutMillis, boolean blocking)
+	{
+		if (timeoutMillis == 0 && blocking) return 0;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		// 0 is taken by waiting forever
+		return deadline == 0 ? 1 : deadline;
+	}
+
+	// Nanoseconds left until deadline, -1 for no deadline
+	private static long remaining(long deadline)
+	{
+		if (deadline == 0) return -1;
+		return Math.max(deadline - System.nanoTime(), 0);
+	}
+
+	// Fires the writability handler when the queue crosses a watermark
+	private void writability()
+	{
+		boolean writable;
+		this.queuing.lock();
+		try
+		{
+			if (this.writable && this.queued >= this.high) writable = false;
+			else if (!this.writable && (this.queued <= this.low || !this.writing())) writable = true;
+			else return;
+			this.writable = writable;
+			if (writable) this.drained.signalAll();
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+		WritabilityHandler handler = this.writability;
+		if (handler != null) handler.writability(this, writable);
+	}
+
+	// Senders wait while the queue is over the high watermark, except on the event loop that drains it
+	private void throttle()
+	{
+		this.writability();
+		if (this.writable || Thread.currentThread() == this.worker) return;
+		if (this.key == null)
+		{
+			this.flush();
+			this.writability();
+			return;
+		}
+		this.queuing.lock();
+		try
+		{
+			while (!this.writable && this.writing())
+				this.drained.awaitUninterruptibly();
+		}
+		finally
+		{
+			this.queuing.unlock();
+		}
+	}
+
+	// Gives up the writer role, taking it back if frames became due meanwhile
+	private void release()
+	{
+		this.locking[WebSocket.WRITING].unlock();
+		if (this.locking[WebSocket.WRITING].getHoldCount() != 0) return;
+		this.sent();
+		if (this.due()) this.drain();
+	}
+
+	boolean stalled()
+	{
+		return this.stalled;
+	}
+
+	// Called by the event loop thread once the channel is registered with it
+	void attach(SelectionKey key, Runnable wakeup)
+	{
+		this.key = key;
+		this.worker = Thread.currentThread();
+		this.wakeup = wakeup;
+	}
+
+	public void direct(boolean direct)
+	{
+		this.locking[WebSocket.WRITING].lock();
+		this.direct = direct;
+		this.locking[WebSocket.WRITING].unlock();
+	}
+
+	// Pool the connection buffers are borrowed from, buffers held already move to it with their content
+	public void buffers(BufferPool pool)
+	{
+		this.locking[WebSocket.READING].lock();
+		this.locking[WebSocket.WRITING].lock();
+		this.queuing.lock();
+		try
+		{
+			BufferPool old = this.buffers;
+			this.RB = WebSocket.move(this.RB, old, pool);
+			this.OB = WebSocket.move(this.OB, old, pool);
+			this.FB = WebSocket.move(this.FB, old, pool);
+			for (Entry entry : this.entries)
+			{
+				if (entry.frames != null) entry.frames = WebSocket.move(entry.frames, old, pool);
+			}
+			this.buffers = pool;
+			// A partly assembled message stays with the pool its Array came from
+			if (this.array.length() == 0)
+			{
+				this.array.recycle();
+				this.array = WebSocket.array(pool, this.bufferLimit);
+			}
+		}
+		finally
+		{
+			this.queuing.unlock();
+			this.locking[WebSocket.WRITING].unlock();
+			this.locking[WebSocket.READING].unlock();
+		}
+	}
+
+	public BufferPool buffers()
+	{
+		return this.buffers;
+	}
+
+	// Borrows the buffers an open connection needs
+	private void acquire()
+	{
+		if (this.RB == WebSocket.NONE) this.RB = this.buffers.acquire(BufferPool.MIN_SIZE);
+		this.queuing.lock();
+		if (this.OB == WebSocket.NONE) this.OB = this.buffers.acquire(BufferPool.MIN_SIZE);
+		if (this.FB == WebSocket.NONE)
+		{
+			this.FB = this.buffers.acquire(BufferPool.MIN_SIZE);
+			this.FB.limit(0);
+		}
+		this.queuing.unlock();
+	}
+
+	// Gives the buffers back to the pool, unless another thread is still using them
+	private void recycle()
+	{
+		if (this.locking[WebSocket.READING].tryLock())
+		{
+			this.buffers.release(this.RB);
+			this.RB = WebSocket.NONE;
+			this.array.recycle();
+			this.locking[WebSocket.READING].unlock();
+		}
+		if (this.locking[WebSocket.WRITING].tryLock())
+		{
+			this.queuing.lock();
+			this.buffers.release(this.OB);
+			this.buffers.release(this.FB);
+			this.OB = WebSocket.NONE;
+			this.FB = WebSocket.NONE;
+			this.queuing.unlock();
+			this.locking[WebSocket.WRITING].unlock();
+		}
+	}
+
+	// Copies buf, position and limit included, into a buffer of to and gives buf back to from
+	private static ByteBuffer move(ByteBuffer buf, BufferPool from, BufferPool to)
+	{
+		if (buf == WebSocket.NONE || from == to) return buf;
+		ByteBuffer moved = to.acquire(buf.capacity(), buf.isDirect());
+		ByteBuffer content = buf.duplicate();
+		content.clear();
+		moved.put(content);
+		moved.limit(buf.limit());
+		moved.position(buf.position());
+		from.release(buf);
+		return moved;
+	}
+
+	// Counts a write buffer larger than the smallest pooled one as grown
+	private void borrowed(ByteBuffer buf)
+	{
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null && buf.capacity() > BufferPool.MIN_SIZE) metrics.writeBuffer(buf.capacity());
+	}
+
+	// Swaps buf for a pooled buffer of at least limit bytes, the content is not kept
+	private ByteBuffer expand(ByteBuffer buf, long limit)
+	{
+		if (buf.capacity() >= limit) return buf;
+		ByteBuffer grown = this.buffers.acquire((int) Math.min(limit, Integer.MAX_VALUE - 8), buf.isDirect());
+		this.buffers.release(buf);
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.readBuffer(grown.capacity());
+		return grown;
+	}
+
+	private void frame(int head, ByteBuffer[] bufs, int offset, int count) throws IOException
+	{
+		long length = 0;
+		for (int i = 0; i < count; i++)
+			length += bufs[offset + i].remaining();
+
+		MaskingKey wmask = this.header(head, length);
+
+		if (!this.client)
+		{
+			// Server frames are not masked, the caller's buffers go out as they are
+			if (this.GB.length < count + 1)
+				this.GB = new ByteBuffer[count + 1];
+			this.GB[0] = this.HB;
+			System.arraycopy(bufs, offset, this.GB, 1, count);
+			try
+			{
+				this.flush(this.GB, count + 1, this.HB.remaining() + length);
+			}
+			finally
+			{
+				Arrays.fill(this.GB, null);
+			}
+			return;
+		}
+
+		// Mask into WB, at most WRITE_CHUNK bytes at a time
+		this.WB = this.buffers.acquire((int) Math.min(length, WebSocket.WRITE_CHUNK), this.direct);
+		this.borrowed(this.WB);
+		int idx = offset;
+		int end = offset + count;
+		this.GB[0] = this.HB;
+		this.GB[1] = this.WB;
+		try
+		{
+			do
+			{
+				this.WB.clear();
+				while (this.WB.hasRemaining() && idx < end)
+				{
+					ByteBuffer buf = bufs[idx];
+					if (buf.remaining() <= this.WB.remaining())
+					{
+						wmask.masking(buf, this.WB);
+						idx++;
+					}
+					else
+					{
+						int limit = buf.limit();
+						buf.limit(buf.position() + this.WB.remaining());
+						wmask.masking(buf, this.WB);
+						buf.limit(limit);
+					}
+				}
+				this.WB.flip();
+				this.flush(this.GB, 2, this.HB.remaining() + this.WB.remaining());
+			}
+			while (idx < end);
+		}
+		finally
+		{
+			this.GB[0] = null;
+			this.GB[1] = null;
+			this.buffers.release(this.WB);
+			this.WB = WebSocket.NONE;
+		}
+	}
+
+	// Encodes the frame header into HB and prepares the write mask
+	private MaskingKey header(int head, long length)
+	{
+		MaskingKey wmask = this.masking[WebSocket.WRITING];
+		this.HB.clear();
+		this.header(this.HB, wmask, head, length);
+		this.HB.flip();
+		return wmask;
+	}
+
+	// Package-private for the frame benchmark
+	void header(ByteBuffer out, MaskingKey key, int head, long length)
+	{
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.frameOut(head, length);
+		if (this.client)
+		{
+			key.next(this.random);
+			key.having = true;
+		}
+		else key.reset();
+
+		int msk = this.client ? WebSocket.MASK_MSK : 0;
+		out.put((byte) head);
+		if (length <= 125)
+		{
+			out.put((byte) (msk | length));
+		}
+		else if (length <= 0xFFFF)
+		{
+			out.put((byte) (msk | 126));
+			out.putShort((short) length);
+		}
+		else
+		{
+			out.put((byte) (msk | 127));
+			out.putLong(length);
+		}
+		if (this.client) key.value(out);
+	}
+
+	// Sends buf as a single frame, masking it in place on the client
+	private void send(int head, ByteBuffer buf) throws IOException
+	{
+		if (this.deferred)
+		{
+			this.GB[0] = buf;
+			try
+			{
+				this.enqueue(head, this.GB, 0, 1, buf.remaining());
+			}
+			finally
+			{
+				this.GB[0] = null;
+			}
+			return;
+		}
+		if (this.framing)
+		{
+			MaskingKey wmask = this.masking[WebSocket.WRITING];
+			this.FB = this.buffers.grow(this.FB, this.FB.position() + buf.remaining() + 14);
+			this.header(this.FB, wmask, head, buf.remaining());
+			wmask.masking(buf, this.FB);
+			return;
+		}
+		MaskingKey wmask = this.header(head, buf.remaining());
+		wmask.masking(buf);
+		this.GB[0] = this.HB;
+		this.GB[1] = buf;
+		try
+		{
+			this.flush(this.GB, 2, this.HB.remaining() + buf.remaining());
+		}
+		finally
+		{
+			this.GB[0] = null;
+			this.GB[1] = null;
+		}
+	}
+
+	// Compresses buf as the next part of a message, last ends the message
+	private void deflate(int opcode, ByteBuffer buf, boolean last) throws IOException
+	{
+		Deflater deflater = this.deflate.deflater();
+		if (buf.hasArray())
+		{
+			deflater.setInput(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			buf.position(buf.limit());
+			this.deflate(opcode, deflater, Deflater.NO_FLUSH);
+		}
+		else
+		{
+			byte[] input = this.deflate.input();
+			while (buf.hasRemaining())
+			{
+				int len = Math.min(input.length, buf.remaining());
+				buf.get(input, 0, len);
+				deflater.setInput(input, 0, len);
+				this.deflate(opcode, deflater, Deflater.NO_FLUSH);
+			}
+		}
+		if (!last) return;
+		this.deflate(opcode, deflater, Deflater.SYNC_FLUSH);
+		ByteBuffer out = this.deflate.output();
+		// The sync flush ends with the tail, which the receiver restores
+		out.flip();
+		out.limit(out.limit() - Deflate.TAIL.length);
+		this.send(WebSocket.MASK_FIN | (this.deflating ? WebSocket.OPC_CONTINUE : WebSocket.MASK_RSV1 | opcode), out);
+		out.clear();
+		this.deflating = false;
+		if (this.deflate.deflateReset) deflater.reset();
+	}
+
+	// Drains the deflater, sending every full output buffer as a fragment
+	private void deflate(int opcode, Deflater deflater, int flush) throws IOException
+	{
+		ByteBuffer out = this.deflate.output();
+		while (true)
+		{
+			int n = deflater.deflate(out.array(), out.arrayOffset() + out.position(), out.remaining(), flush);
+			out.position(out.position() + n);
+			if (out.hasRemaining()) return;
+			// The last bytes are held back so the tail never spans two fragments
+			out.flip();
+			out.limit(out.limit() - Deflate.TAIL.length);
+			this.send(this.deflating ? WebSocket.OPC_CONTINUE : WebSocket.MASK_RSV1 | opcode, out);
+			this.deflating = true;
+			out.limit(out.capacity());
+			out.compact();
+		}
+	}
+
+	// Writes all of bufs, waiting for the channel instead of spinning when it is full
+	private void flush(ByteBuffer[] bufs, int count, long length) throws IOException
+	{
+		while (length > 0)
+		{
+			long n = this.channelWrite(bufs, 0, count);
+			if (n == 0) this.await(SelectionKey.OP_WRITE);
+			length -= n;
+		}
+		while (!this.channelFlushed())
+			this.await(SelectionKey.OP_WRITE);
+	}
+
+	public void shutdown(boolean reading, long timeoutMillis) throws IOException
+	{
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		if (reading)
+		{
+			try
+			{
+				this.locking[WebSocket.READING].lock();
+				long deadline = this.deadline = WebSocket.deadline(timeoutMillis, this.blocking);
+				while (this.reading())
+				{
+					boolean progress = this.receive();
+					if (!this.readable(deadline, progress))
+						break;
+				}
+			}
+			finally
+			{
+				this.deadline = 0;
+				this.locking[WebSocket.READING].unlock();
+			}
+			return;
+		}
+
+		try
+		{
+			this.locking[WebSocket.WRITING].lock();
+			if (!this.writing()) return;
+
+			this.closing(WebSocket.CLOSE_NORMAL);
+			// The event loop thread leaves a full channel to OP_WRITE
+			this.pending(Thread.currentThread() != this.worker);
+		}
+		finally
+		{
+			this.locking[WebSocket.WRITING].unlock();
+		}
+	}
+
+	public void shutdown(boolean reading) throws IOException
+	{
+		this.shutdown(reading, 0);
+	}
+
+	// Queues the close frame as the last one, nothing is sent after it
+	private void closing(int code)
+	{
+		this.queuing.lock();
+		try
+		{
+			this.KB.clear();
+			this.KB.putShort((short) code);
+			this.KB.flip();
+			this.QB[0] = this.KB;
+			this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_CLOSE, this.QB, 0, 1, 2);
+			this.writing = false;
+			this.drained.signalAll();
+		}
+		finally
+		{
+			this.QB[0] = null;
+			this.queuing.unlock();
+		}
+		this.cancel(WebSocket.TIMER_KEEPALIVE);
+		if (this.closeTimeout > 0 && this.reading)
+			this.schedule(WebSocket.TIMER_CLOSE, () -> this.timeout("Close timeout"), this.closeTimeout);
+	}
+
+	public void reset()
+	{
+		this.reading = false;
+		this.writing = false;
+		for (int i = 0; i < this.timers.length(); i++)
+			this.cancel(i);
+		this.pinged = 0;
+		this.lapsed = null;
+		if (this.tls != null)
+		{
+			this.tls.close();
+			this.tls = null;
+		}
+		if (this.socket != null)
+		{
+			try
+			{
+				this.socket.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+		this.socket = null;
+		this.IB.clear();
+		this.IB.limit(0);
+		this.XB = WebSocket.NONE;
+		this.handshake.reset();
+		this.RB.clear();
+		this.recycle();
+		this.queuing.lock();
+		this.OB.clear();
+		this.FB.clear();
+		this.FB.limit(0);
+		ArrayDeque<Sending> failed = this.awaiting;
+		this.awaiting = new ArrayDeque<>();
+		Entry entry;
+		while ((entry = this.entries.poll()) != null)
+		{
+			if (entry.frames == null) failed.offer(entry.sending);
+			else
+			{
+				this.buffers.release(entry.frames);
+				failed.addAll(entry.held);
+			}
+		}
+		this.pong = false;
+		this.PB.clear();
+		this.UB.limit(0);
+		this.scheduled = false;
+		this.urgent = false;
+		if (this.metrics != null) this.metrics.queued(-this.queued);
+		this.queued = 0;
+		this.sent = 0;
+		this.wrapped = 0;
+		this.writable = true;
+		this.drained.signalAll();
+		this.queuing.unlock();
+		Sending sending;
+		while ((sending = this.sends.poll()) != null)
+			sending.completeExceptionally(new ClosedChannelException());
+		while ((sending = failed.poll()) != null)
+			sending.completeExceptionally(new ClosedChannelException());
+		CompletableFuture<WebSocket> connecting = this.connecting;
+		this.connecting = null;
+		if (connecting != null) connecting.completeExceptionally(new ClosedChannelException());
+		this.stalled = false;
+		this.key = null;
+		this.worker = null;
+		this.wakeup = null;
+		for (int i = 0; i < this.waiters.length; i++)
+		{
+			Selector waiter = this.waiters[i];
+			if (waiter == null) continue;
+			this.waiters[i] = null;
+			try
+			{
+				waiter.close();
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+		this.RS = WebSocket.RS_OVERED;
+		this.opcode = 0;
+		this.length = 0;
+		this.remaining = 0;
+		this.type = 0;
+		this.masking[WebSocket.READING].reset();
+		this.masking[WebSocket.WRITING].reset();
+		this.textual = false;
+		this.utf8 = Utf8.ACCEPT;
+		this.compressed = false;
+		this.deflating = false;
+		if (this.deflate != null)
+		{
+			this.deflate.end();
+			this.deflate = null;
+		}
+		this.array.trim(this.array.length());
+		this.budget.release(this.held);
+		this.held = 0;
+		this.total = 0;
+		this.paused = false;
+		this.starved = false;
+		this.fragmented = false;
+		if (this.message != null)
+		{
+			this.message.release();
+			this.message = null;
+		}
+		Message message;
+		while ((message = this.messages.poll()) != null)
+			message.release();
+		this.unreceivable();
+		this.status = WebSocket.STAT_CLOSED;
+	}
+
+	public void close(long timeoutMillis)
+	{
+		boolean writer = false;
+		try
+		{
+			this.locking[WebSocket.READING].lock();
+			this.locking[WebSocket.WRITING].lock();
+			writer = true;
+
+			if (this.status == WebSocket.STAT_CLOSED)
+				return;
+
+			this.status = WebSocket.STAT_CLOSING;
+
+			try
+			{
+				this.shutdown(false);
+			}
+			catch (IOException ignored)
+			{
+			}
 
 			if (this.writing())
 				return;
 
+			// An event loop closing on the peer's close frame takes both locks, so the writer lock is not held
+			// across waiting for that frame
+			this.locking[WebSocket.WRITING].unlock();
+			writer = false;
 			try
 			{
 				this.shutdown(true, timeoutMillis);
@@ -547,7 +2615,7 @@ public class WebSocket
 		}
 		finally
 		{
-			this.locking[WebSocket.WRITING].unlock();
+			if (writer) this.locking[WebSocket.WRITING].unlock();
 			this.locking[WebSocket.READING].unlock();
 		}
 	}
@@ -557,40 +2625,81 @@ public class WebSocket
 		this.close(0);
 	}
 
-	private void receive()
+	boolean receive()
 	{
+		boolean progress = false;
 		try
 		{
 			this.locking[WebSocket.READING].lock();
+			this.lapsed();
+			if (!this.messages.isEmpty()) this.backlog();
 			do
 			{
 				switch (this.RS)
 				{
 					case WebSocket.RS_OVERED:
 					{
+						// Frames of a message wait for demand before it starts, not halfway through
+						if (!this.fragmented && !this.credited()) return progress;
 						this.opcode = 0;
 						this.length = 0;
 						this.masking[WebSocket.READING].reset();
+						// RB grown for a large payload goes back once the frame is done
+						if (this.RB.capacity() > BufferPool.MIN_SIZE)
+						{
+							this.buffers.release(this.RB);
+							this.RB = this.buffers.acquire(BufferPool.MIN_SIZE);
+						}
 						this.RB.clear();
 						this.RB.limit(1);
 						this.RS = WebSocket.RS_OPCODE;
 					}
 					case WebSocket.RS_OPCODE:
 					{
-						this.transfer(this.RB);
+						progress |= this.transfer(this.RB) > 0;
 						if (this.RB.hasRemaining()) break;
 						this.RB.flip();
 						int b1 = this.RB.get() & 0xFF;
-						if ((b1 & WebSocket.MASK_RSV) != 0)
-							throw new IllegalStateException("Reserved not zero " + ((b1 & WebSocket.MASK_RSV) >> 4));
 						this.opcode = b1 & WebSocket.MASK_OPC;
+						this.fin = (b1 & WebSocket.MASK_FIN) != 0;
+						boolean first = this.opcode == WebSocket.OPC_TEXT || this.opcode == WebSocket.OPC_BINARY;
+						int rsv = b1 & WebSocket.MASK_RSV;
+						// RSV1 marks the first frame of a compressed message
+						if (rsv != 0 && (rsv != WebSocket.MASK_RSV1 || this.deflate == null || !first))
+							throw new IllegalStateException("Reserved not zero " + (rsv >> 4));
+						if (first || this.opcode == WebSocket.OPC_CONTINUE)
+							this.fragmented = !this.fin;
+						if (first && this.credit.get() > 0)
+							this.credit.decrementAndGet();
+						if (first)
+						{
+							if (this.metrics != null) this.arrival = System.nanoTime();
+							this.type = this.opcode;
+							this.textual = this.opcode == WebSocket.OPC_TEXT;
+							this.utf8 = Utf8.ACCEPT;
+							this.compressed = rsv != 0;
+							this.total = 0;
+						}
+						if (this.assembling() && (first || this.opcode == WebSocket.OPC_CONTINUE))
+						{
+							if (this.message == null)
+							{
+								if (!first)
+									throw new IllegalStateException("Continuation frame without message");
+								this.message = this.pool.acquire();
+								this.message.opcode = this.opcode;
+								this.message.arrival = this.arrival;
+							}
+							else if (first)
+								throw new IllegalStateException("Expected continuation frame, got " + this.opcode);
+						}
 						this.RB.clear();
 						this.RB.limit(1);
 						this.RS = WebSocket.RS_LENGTH;
 					}
 					case WebSocket.RS_LENGTH:
 					{
-						this.transfer(this.RB);
+						progress |= this.transfer(this.RB) > 0;
 						if (this.RB.hasRemaining()) break;
 						this.RB.flip();
 						if (this.RB.remaining() == 1)
@@ -617,155 +2726,721 @@ public class WebSocket
 						{
 							if (this.RB.remaining() == 2) this.length = this.RB.getShort() & 0xFFFF;
 							else if (this.RB.remaining() == 8) this.length = this.RB.getLong();
+							if (this.length < 0)
+								throw new IllegalStateException("Invalid payload length");
 						}
 						this.RB.clear();
+						if (!this.client && !this.masking[WebSocket.READING].having)
+							throw new IllegalStateException("Unmasked client frame");
 						if (this.masking[WebSocket.READING].having)
 						{
 							this.RB.limit(4);
-							this.status = WebSocket.RS_MASKING;
+							this.RS = WebSocket.RS_MASKING;
 						}
 						else
 						{
-							this.RB = WebSocket.expand(this.RB, this.length);
-							this.RB.limit((int) this.length);
-							this.RS = WebSocket.RS_PAYLOAD;
+							this.RS = WebSocket.RS_ADMIT;
 							break;
 						}
 					}
 					case WebSocket.RS_MASKING:
 					{
-						this.transfer(this.RB);
+						progress |= this.transfer(this.RB) > 0;
 						if (this.RB.hasRemaining()) break;
 						this.RB.flip();
 						byte[] msk = new byte[4];
 						this.RB.get(msk);
 						this.masking[WebSocket.READING].set(msk);
-						this.RB = WebSocket.expand(this.RB, this.length);
-						this.RB.limit((int) this.length);
+						this.RS = WebSocket.RS_ADMIT;
+					}
+					case WebSocket.RS_ADMIT:
+					{
+						if (!this.admit()) return progress;
+						// Data is read through a window of at most READ_CHUNK bytes, control frames at once into CB
+						this.remaining = this.length;
+						if (this.opcode >= WebSocket.OPC_CLOSE)
+						{
+							this.CB.clear();
+							this.CB.limit((int) this.length);
+						}
+						else
+						{
+							this.RB = this.expand(this.RB, Math.min(this.length, WebSocket.READ_CHUNK));
+							this.RB.clear();
+							this.RB.limit((int) Math.min(this.length, this.RB.capacity()));
+						}
 						this.RS = WebSocket.RS_PAYLOAD;
 					}
 					case WebSocket.RS_PAYLOAD:
 					{
-						this.socket.read(this.RB);
-						if (this.opcode == OPC_CONTINUE || this.opcode == OPC_TEXT || this.opcode == OPC_BINARY)
+						boolean data = this.opcode == OPC_CONTINUE || this.opcode == OPC_TEXT || this.opcode == OPC_BINARY;
+						// Compressed and streamed payload always goes through RB
+						ByteBuffer target = this.compressed || this.stream != null ? null : this.target;
+						if (data && this.assembling() && !this.compressed)
+							target = this.message.ensure((int) this.remaining);
+						if (data && target != null && this.array.length() == 0 && (target.hasRemaining() || this.remaining == 0))
+						{
+							int pos = target.position();
+							int limit = target.limit();
+							target.limit(pos + (int) Math.min(target.remaining(), this.remaining));
+							int read = 0;
+							try
+							{
+								if (this.remaining > 0) read = this.input(target, false);
+							}
+							finally
+							{
+								target.limit(limit);
+							}
+							if (read == -1) this.lost();
+							if (read < 0 || (read == 0 && this.remaining > 0)) return progress;
+							this.masking[WebSocket.READING].masking(target, pos, read);
+							if (this.textual) this.validate(target, pos, read);
+							// The caller has these bytes now, messages give theirs back on delivery
+							if (!this.messaging) this.free(read);
+							this.remaining -= read;
+							// Seen by the finally block, which returns do not set
+							progress = true;
+							if (this.remaining > 0) return true;
+							this.framed();
+							this.RS = WebSocket.RS_OVERED;
+							this.RB.clear();
+							if (this.fin) this.deliver();
+							return true;
+						}
+						// A read into the caller's buffer may have taken part of the payload since the window was set
+						if (data) this.RB.limit((int) Math.min(this.RB.position() + this.remaining, this.RB.capacity()));
+						ByteBuffer buf = data ? this.RB : this.CB;
+						int read = buf.hasRemaining() ? this.input(buf) : 0;
+						if (read == -1) this.lost();
+						if (read > 0)
+						{
+							progress = true;
+							this.remaining -= read;
+						}
+						// An empty frame still ends its message
+						if (data && (read > 0 || this.remaining == 0))
 						{
-							int rema = this.RB.remaining();
 							this.RB.flip();
-							byte[] payload = new byte[RB.remaining()];
-							this.RB.get(payload);
-							this.masking[WebSocket.READING].masking(payload);
-							this.array.put(payload);
+							this.masking[WebSocket.READING].masking(this.RB);
+							if (this.compressed)
+							{
+								// Inflated bytes are charged as they come out instead
+								int n = this.RB.remaining();
+								this.inflate(this.RB, this.fin && this.remaining == 0);
+								if (this.stream == null) this.free(n);
+							}
+							else this.emit(this.RB);
 							this.RB.clear();
-							this.RB.limit(rema);
+							this.RB.limit((int) Math.min(this.remaining, this.RB.capacity()));
 						}
-						if (this.RB.hasRemaining()) return;
+						if (this.remaining > 0) return progress;
+						this.framed();
 						this.RS = WebSocket.RS_OVERED;
 						switch (this.opcode)
 						{
 							case WebSocket.OPC_CONTINUE:
 							case WebSocket.OPC_TEXT:
 							case WebSocket.OPC_BINARY:
+								if (this.fin) this.deliver();
+								break;
 							case WebSocket.OPC_PONG:
+								this.CB.flip();
+								this.masking[WebSocket.READING].masking(this.CB);
+								this.ponged(this.CB);
+								if (this.listener != null)
+								{
+									ByteBuffer pong = WebSocket.copy(this.CB);
+									this.fire(l -> l.onPong(this, pong));
+								}
 								break;
 							case WebSocket.OPC_CLOSE:
 								this.reading = false;
-								break;
-							case WebSocket.OPC_PING:
-								this.RB.flip();
-								byte[] payload = new byte[this.RB.remaining()];
-								this.RB.get(payload);
-								this.masking[WebSocket.READING].masking(payload);
-								// send pong
-								this.RB = WebSocket.expand(this.RB, payload.length + 16);
-								this.masking[WebSocket.READING].next(this.random);
-								this.masking[WebSocket.READING].masking(payload);
-								this.RB.clear();
-								this.RB.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_PONG));
-								if (payload.length <= 125)
-								{
-									this.RB.put((byte) (WebSocket.MASK_MSK | payload.length));
-								}
-								else if (payload.length <= 65535)
-								{
-									this.RB.put((byte) (WebSocket.MASK_RSV | 126));
-									this.RB.putShort((short) payload.length);
-								}
-								else
+								if (this.listener != null)
 								{
-									this.RB.put((byte) (WebSocket.MASK_RSV | 127));
-									this.RB.putLong((short) payload.length);
+									this.CB.flip();
+									this.masking[WebSocket.READING].masking(this.CB);
+									int code = this.CB.remaining() >= 2 ? this.CB.getShort() & 0xFFFF : WebSocket.CLOSE_NO_STATUS;
+									String reason = StandardCharsets.UTF_8.decode(this.CB).toString();
+									this.fire(l -> l.onClose(this, code, reason));
 								}
-								this.RB.put(this.masking[WebSocket.READING].value());
-								this.RB.put(payload);
-								this.RB.flip();
+								break;
+							case WebSocket.OPC_PING:
+								this.CB.flip();
+								this.masking[WebSocket.READING].masking(this.CB);
+								ByteBuffer ping = this.listener != null ? WebSocket.copy(this.CB) : null;
+								// The pong goes into the slot ahead of whatever is queued, the writer holding the role sends it
+								this.queuing.lock();
 								try
 								{
-									this.locking[WebSocket.WRITING].lock();
-									while (this.RB.hasRemaining())
-										this.socket.write(this.RB);
+									if (this.writing())
+									{
+										this.PB.clear();
+										this.PB.put(this.CB);
+										this.pong = true;
+									}
 								}
 								finally
 								{
-									this.locking[WebSocket.WRITING].unlock();
+									this.queuing.unlock();
 								}
+								this.drain();
+								if (ping != null) this.fire(l -> l.onPing(this, ping));
 								break;
 						}
 						this.RB.clear();
-						return;
+						return true;
 					}
 				}
 			}
-			while (this.blocking);
+			while (this.blocking && this.reading && WebSocket.remaining(this.deadline) != 0);
+		}
+		catch (OverflowException e)
+		{
+			// The peer is told why before the exception reaches the caller
+			this.reading = false;
+			this.closing(WebSocket.CLOSE_TOO_BIG);
+			this.drain();
+			this.fire(l -> l.onError(this, e));
+			JavaVM.exception(e);
 		}
 		catch (Throwable e)
 		{
 			this.locking[WebSocket.READING].lock();
 			this.reading = false;
 			this.locking[WebSocket.READING].unlock();
+			this.fire(l -> l.onError(this, e));
 			JavaVM.exception(e);
 		}
 		finally
 		{
+			if (progress && this.idleTimeout > 0) this.heard = System.nanoTime();
+			if (progress && this.RS != WebSocket.RS_OVERED && this.metrics != null) this.metrics.partial();
+			if (progress || !this.reading) this.arrived.signalAll();
+			if (!this.reading) this.unreceivable();
 			this.locking[WebSocket.READING].unlock();
 		}
+		return progress;
+	}
+
+	// Hands unmasked payload to the message being assembled or the read buffer
+	private void emit(ByteBuffer buf)
+	{
+		if (this.textual) this.validate(buf, buf.position(), buf.remaining());
+		if (this.stream != null)
+		{
+			// Inflated parts are never the last one, deliver() ends those messages
+			boolean last = this.fin && this.remaining == 0 && !this.compressed;
+			this.stream.chunk(this, this.type, buf, last);
+			buf.position(buf.limit());
+			return;
+		}
+		if (this.messaging)
+		{
+			this.message.ensure(buf.remaining()).put(buf);
+			return;
+		}
+		int capacity = this.array.capacity();
+		this.array.put(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		buf.position(buf.limit());
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null && this.array.capacity() > capacity) metrics.array(this.array.capacity());
+	}
+
+	// Inflates the next chunk of a compressed message, the tail is restored after the last one
+	private void inflate(ByteBuffer buf, boolean last) throws DataFormatException
+	{
+		Inflater inflater = this.deflate.inflater();
+		inflater.setInput(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		this.inflate(inflater);
+		if (!last) return;
+		inflater.setInput(Deflate.TAIL);
+		this.inflate(inflater);
+		if (this.deflate.inflateReset || inflater.finished()) inflater.reset();
+	}
+
+	private void inflate(Inflater inflater) throws DataFormatException
+	{
+		ByteBuffer out = this.deflate.inflated();
+		int n;
+		do
+		{
+			n = inflater.inflate(out.array(), out.arrayOffset(), out.capacity());
+			out.clear();
+			out.limit(n);
+			if (n > 0)
+			{
+				// The compressed size says nothing about the inflated one, the limit is checked as it grows
+				this.total += n;
+				if (this.total > this.limit())
+					throw new OverflowException("Message exceeds " + this.limit() + " bytes");
+				if (this.stream == null)
+				{
+					this.held += n;
+					this.budget.charge(n);
+				}
+				this.emit(out);
+			}
+		}
+		while (n > 0);
+		if (inflater.needsDictionary())
+			throw new IllegalStateException("Compressed message needs a dictionary");
+	}
+
+	// Completes the message after its final frame
+	private void deliver()
+	{
+		if (this.textual) this.validate(null, 0, 0);
+		if (this.stream != null)
+		{
+			if (this.compressed) this.stream.chunk(this, this.type, WebSocket.NONE, true);
+			return;
+		}
+		if (!this.messaging) return;
+		Message message = this.message;
+		this.message = null;
+		message.buffer.flip();
+		if (this.listener != null)
+		{
+			this.taken(message);
+			this.received(message);
+		}
+		else if (this.handler != null)
+		{
+			this.taken(message);
+			this.handler.message(this, message);
+		}
+		else
+		{
+			CompletableFuture<Message> receiver;
+			while ((receiver = this.receivers.poll()) != null)
+			{
+				// Cancelled ones are skipped
+				if (receiver.complete(message))
+				{
+					this.taken(message);
+					return;
+				}
+			}
+			this.messages.offer(message);
+		}
+	}
+
+	// Fails receiveAsync() futures once no message can come anymore
+	private void unreceivable()
+	{
+		CompletableFuture<Message> receiver;
+		while ((receiver = this.receivers.poll()) != null)
+			receiver.completeExceptionally(new ClosedChannelException());
+	}
+
+	private void received(Message message)
+	{
+		if (message.opcode == WebSocket.OPC_TEXT) this.fire(l -> l.onText(this, message));
+		else this.fire(l -> l.onBinary(this, message));
+	}
+
+	// Runs event on the listener, on its executor when there is one
+	private void fire(Consumer<Listener> event)
+	{
+		Listener listener = this.listener;
+		if (listener == null) return;
+		Executor callbacks = this.callbacks;
+		if (callbacks == null) this.call(listener, event);
+		else callbacks.execute(() -> this.call(listener, event));
+	}
+
+	// A throwing callback is reported to onError and does not affect the connection
+	private void call(Listener listener, Consumer<Listener> event)
+	{
+		try
+		{
+			event.accept(listener);
+		}
+		catch (Throwable t)
+		{
+			try
+			{
+				listener.onError(this, t);
+			}
+			catch (Throwable ignored)
+			{
+			}
+		}
+	}
+
+	// The peer went away without a close frame
+	private void lost()
+	{
+		this.locking[WebSocket.READING].lock();
+		boolean reading = this.reading;
+		this.reading = false;
+		this.locking[WebSocket.READING].unlock();
+		if (reading) this.fire(l -> l.onClose(this, WebSocket.CLOSE_ABNORMAL, ""));
+	}
+
+	// Reserves the payload of the frame about to be read, false pauses reading until memory is freed
+	private boolean admit()
+	{
+		if (this.opcode >= WebSocket.OPC_CLOSE)
+		{
+			if (this.length > 125)
+				throw new IllegalStateException("Control frame too long: " + this.length);
+			return true;
+		}
+		long limit = this.limit();
+		long size = this.compressed ? this.length : this.total + this.length;
+		if (this.stream != null)
+		{
+			// Streamed payload is handed on as it arrives, only its total is limited
+			if (size > limit)
+				throw new OverflowException("Message exceeds " + limit + " bytes");
+			if (!this.compressed) this.total += this.length;
+			return true;
+		}
+		// Payload that is kept has to fit into one Array or Message
+		if (size > limit || this.length > this.bufferLimit || this.length > this.budget.capacity() || this.length > Integer.MAX_VALUE - 8)
+			throw new OverflowException("Message exceeds " + limit + " bytes");
+		if (this.held > 0 && this.held + this.length > this.bufferLimit)
+		{
+			this.paused = true;
+			return false;
+		}
+		// Only the first failed attempt leaves a waiter, the budget runs it once
+		if (!this.budget.reserve(this.length, this.paused ? null : this.resumer))
+		{
+			this.paused = true;
+			return false;
+		}
+		this.paused = false;
+		this.held += this.length;
+		if (!this.compressed) this.total += this.length;
+		return true;
+	}
+
+	// Largest message, an assembled one has to fit into the connection's buffer as well
+	private long limit()
+	{
+		return this.assembling() ? Math.min(this.messageLimit, this.bufferLimit) : this.messageLimit;
+	}
+
+	// Whether data frames are assembled into messages
+	private boolean assembling()
+	{
+		return this.messaging && this.stream == null;
+	}
+
+	// Gives back held bytes once they were consumed
+	private void free(long n)
+	{
+		if (n <= 0) return;
+		this.held -= n;
+		this.budget.release(n);
+		if (this.paused) this.resume();
+	}
+
+	// Lets a paused connection try to read again
+	private void resume()
+	{
+		if (!this.paused) return;
+		this.paused = false;
+		this.wake();
+	}
+
+	// Makes whoever reads the connection look at it again
+	private void wake()
+	{
+		Thread parked = this.parked;
+		if (parked != null) LockSupport.unpark(parked);
+		Runnable wakeup = this.wakeup;
+		if (wakeup != null) wakeup.run();
+	}
+
+	// Runs on the timer thread, sends the next ping or gives up on the last one
+	private void keepalive()
+	{
+		long interval = this.pingInterval;
+		long timeout = this.pingTimeout;
+		if (interval == 0) return;
+		long now = System.nanoTime();
+		long pinged = this.pinged;
+		// Without a timeout a late pong is simply replaced by the next ping
+		boolean waiting = pinged != 0 && timeout > 0;
+		if (waiting && now - pinged >= timeout)
+		{
+			this.timeout("Keepalive timeout");
+			return;
+		}
+		if (!waiting && now - this.pingAt >= interval)
+		{
+			boolean due;
+			this.queuing.lock();
+			try
+			{
+				if (!this.writing) return;
+				// The payload tells our pong apart from unsolicited ones, 0 is taken by no ping
+				this.pinged = pinged = now | 1;
+				this.pingAt = now;
+				this.KB.clear();
+				this.KB.putLong(pinged);
+				this.KB.flip();
+				this.QB[0] = this.KB;
+				due = this.enqueue(WebSocket.MASK_FIN | WebSocket.OPC_PING, this.QB, 0, 1, 8);
+			}
+			finally
+			{
+				this.QB[0] = null;
+				this.queuing.unlock();
+			}
+			if (due) this.drain();
+			waiting = timeout > 0;
+		}
+		long next = this.pingAt + interval - now;
+		if (waiting)
+		{
+			long left = pinged + timeout - now;
+			next = next > 0 ? Math.min(next, left) : left;
+		}
+		this.schedule(WebSocket.TIMER_KEEPALIVE, this::keepalive, next);
+	}
+
+	// Takes the round trip from the pong of the outstanding keepalive ping
+	private void ponged(ByteBuffer buf)
+	{
+		long pinged = this.pinged;
+		if (pinged == 0 || buf.remaining() != 8 || buf.getLong(buf.position()) != pinged) return;
+		this.rtt = System.nanoTime() - this.pingAt;
+		this.pinged = 0;
+	}
+
+	// Runs on the timer thread, checks again when the last frame is idleTimeout old
+	private void idle()
+	{
+		long timeout = this.idleTimeout;
+		if (timeout == 0 || this.status < WebSocket.STAT_CONNECTED) return;
+		long left = this.heard + timeout - System.nanoTime();
+		if (left <= 0) this.timeout("Idle timeout");
+		else this.schedule(WebSocket.TIMER_IDLE, this::idle, left);
+	}
+
+	// Fails the connection from the timer thread: whoever reads it next throws SocketTimeoutException,
+	// so it is torn down by its reader like on any other error
+	private void timeout(String reason)
+	{
+		this.lapsed = reason;
+		this.wake();
+		for (Selector waiter : this.waiters)
+		{
+			if (waiter != null) waiter.wakeup();
+		}
+	}
+
+	private void lapsed() throws SocketTimeoutException
+	{
+		String reason = this.lapsed;
+		if (reason != null) throw new SocketTimeoutException(reason);
+	}
+
+	private void schedule(int timer, Runnable task, long nanos)
+	{
+		TimerWheel.Timeout previous = this.timers.getAndSet(timer, TimerWheel.SHARED.schedule(task, nanos, TimeUnit.NANOSECONDS));
+		if (previous != null) previous.cancel();
+	}
+
+	private void cancel(int timer)
+	{
+		TimerWheel.Timeout previous = this.timers.getAndSet(timer, null);
+		if (previous != null) previous.cancel();
 	}
 
-	private static void masking(byte[] masking, byte[] payload)
+	// Whether a new message may be read, otherwise the connection starves until demand()
+	private boolean credited()
 	{
-		for (int i = 0; i < payload.length; i++)
+		if (this.credit.get() == 0)
 		{
-			payload[i] = ((byte) (payload[i] ^ masking[i & 3]));
+			this.starved = true;
+			// Demand that came in before starved was set did not wake anyone
+			if (this.credit.get() == 0) return false;
 		}
+		this.starved = false;
+		return true;
+	}
+
+	// A message goes to the application, its bytes are no longer held
+	private void taken(Message message)
+	{
+		this.free(message.length());
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.delivery(System.nanoTime() - message.arrival);
 	}
 
-	private static ByteBuffer expand(ByteBuffer buf, long limit)
+	private void framed()
 	{
-		int oldCap = buf.capacity();
-		if (oldCap <= limit) return buf;
-		while (oldCap < limit)
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.frameIn(this.opcode, this.length);
+	}
+
+	// Hands queued messages to the listener as far as the demand goes
+	private void backlog()
+	{
+		if (this.listener == null) return;
+		Message message;
+		while (this.credit.get() != 0 && (message = this.messages.poll()) != null)
 		{
-			oldCap <<= 1;
+			if (this.credit.get() > 0) this.credit.decrementAndGet();
+			this.taken(message);
+			this.received(message);
 		}
-		return ByteBuffer.allocate(oldCap);
 	}
 
-	private void transfer(ByteBuffer buffer) throws IOException
+	// Checks the next chunk of a text message, a null buffer marks the end of the message
+	private void validate(ByteBuffer buf, int pos, int len)
+	{
+		if (buf != null) this.utf8 = Utf8.validate(this.utf8, buf, pos, len);
+		else if (this.utf8 != Utf8.ACCEPT) this.utf8 = Utf8.REJECT;
+		if (this.utf8 == Utf8.REJECT)
+			throw new IllegalStateException("Invalid UTF-8 in text message");
+	}
+
+	private int transfer(ByteBuffer buffer) throws IOException
 	{
-		int read = socket.read(buffer);
-		while (buffer.hasRemaining() && read != -1 && blocking)
+		int read = this.input(buffer);
+		// Blocking readers sleep until the rest arrives, up to the deadline of the read
+		while (buffer.hasRemaining() && read != -1 && this.blocking && this.key == null && this.readable(this.deadline, false))
 		{
-			int read0 = socket.read(buffer);
+			int read0 = this.input(buffer);
 			if (read0 == -1) read = -1;
 			else read += read0;
 		}
-		if (read == -1)
+		if (read == -1) this.lost();
+		return read;
+	}
+
+	private int input(ByteBuffer buffer) throws IOException
+	{
+		return this.input(buffer, true);
+	}
+
+	private int input(ByteBuffer buffer, boolean bulk) throws IOException
+	{
+		// Small reads go through IB so one syscall can serve several frame headers
+		if (bulk && !this.IB.hasRemaining() && buffer.remaining() < this.IB.capacity())
+		{
+			int read = this.fill();
+			if (read <= 0) return read;
+		}
+		if (!this.IB.hasRemaining())
+			return this.channelRead(buffer);
+		int len = Math.min(this.IB.remaining(), buffer.remaining());
+		buffer.put(this.IB.array(), this.IB.arrayOffset() + this.IB.position(), len);
+		this.IB.position(this.IB.position() + len);
+		return len;
+	}
+
+	// Appends as much of buf as the inbound buffer has room for, as if it was read from the channel.
+	// Lets the frame benchmark decode without syscalls
+	int inbound(ByteBuffer buf)
+	{
+		this.locking[WebSocket.READING].lock();
+		try
+		{
+			this.IB.compact();
+			int n = Math.min(this.IB.remaining(), buf.remaining());
+			int limit = buf.limit();
+			buf.limit(buf.position() + n);
+			this.IB.put(buf);
+			buf.limit(limit);
+			this.IB.flip();
+			return n;
+		}
+		finally
 		{
-			this.locking[WebSocket.READING].lock();
-			this.reading = false;
 			this.locking[WebSocket.READING].unlock();
 		}
 	}
 
+	private int fill() throws IOException
+	{
+		this.IB.compact();
+		try
+		{
+			return this.channelRead(this.IB);
+		}
+		finally
+		{
+			this.IB.flip();
+		}
+	}
+
+	// Channel I/O, through the TLS engine on secure connections
+	private int channelRead(ByteBuffer buf) throws IOException
+	{
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.read();
+		Tls tls = this.tls;
+		if (tls == null) return this.socket.read(buf);
+		int read = tls.read(buf);
+		// Reading may have wrapped records the channel did not take, the writer role finishes them
+		if (tls.unflushed()) this.drain();
+		return read;
+	}
+
+	private int channelWrite(ByteBuffer buf) throws IOException
+	{
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.write();
+		return this.tls != null ? this.tls.write(buf) : this.socket.write(buf);
+	}
+
+	private long channelWrite(ByteBuffer[] bufs, int offset, int count) throws IOException
+	{
+		WebSocketMetrics metrics = this.metrics;
+		if (metrics != null) metrics.write();
+		return this.tls != null ? this.tls.write(bufs, offset, count) : this.socket.write(bufs, offset, count);
+	}
+
+	// TLS records wrapped but not written yet
+	private boolean channelFlushed() throws IOException
+	{
+		return this.tls == null || this.tls.flushed();
+	}
+
+	boolean buffered()
+	{
+		return this.IB.hasRemaining() || (this.tls != null && this.tls.buffered());
+	}
+
+	Tls tls()
+	{
+		return this.tls;
+	}
+
+	// Secures an accepted connection before its HTTP handshake
+	void secure(SSLContext context)
+	{
+		try
+		{
+			this.tls = Tls.server(context, this.socket);
+			this.secure = true;
+		}
+		catch (IOException e)
+		{
+			JavaVM.exception(e);
+		}
+	}
+
+	SocketChannel channel()
+	{
+		return this.socket;
+	}
+
+	private static Array array(BufferPool pool, long limit)
+	{
+		Array array = new Array(pool);
+		array.limit((int) Math.min(limit, 1 << 30));
+		return array;
+	}
+
 	public static String key(Random random)
 	{
 		byte[] buffer = new byte[16];
@@ -773,6 +3448,15 @@ public class WebSocket
 		return Base64.getEncoder().encodeToString(buffer);
 	}
 
+	// Copy of the remaining bytes of buf that outlives it, buf is left as it was
+	private static ByteBuffer copy(ByteBuffer buf)
+	{
+		ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+		copy.put(buf.duplicate());
+		copy.flip();
+		return copy;
+	}
+
 	public static String accept(String key)
 	{
 		key += "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
@@ -788,4 +3472,84 @@ public class WebSocket
 		}
 		return key;
 	}
+
+	// Callbacks of a connection, called one at a time in the order the frames arrived
+	public interface Listener
+	{
+		default void onOpen(WebSocket socket)
+		{
+		}
+
+		// The listener owns the message and releases it when done
+		default void onText(WebSocket socket, Message message)
+		{
+			message.release();
+		}
+
+		default void onBinary(WebSocket socket, Message message)
+		{
+			message.release();
+		}
+
+		// The payload is a copy the listener may keep, the pong has been handed to the writer already
+		default void onPing(WebSocket socket, ByteBuffer payload)
+		{
+		}
+
+		default void onPong(WebSocket socket, ByteBuffer payload)
+		{
+		}
+
+		// The close frame of the peer, CLOSE_ABNORMAL when the connection ended without one
+		default void onClose(WebSocket socket, int code, String reason)
+		{
+		}
+
+		// Reading stopped on a protocol error, or a callback threw
+		default void onError(WebSocket socket, Throwable error)
+		{
+		}
+	}
+
+	// Future of a queued frame, done once the bytes before its end were written. The mark is relative to
+	// the buffer holding the frame until the writer takes that buffer
+	private static class Sending extends CompletableFuture<Void>
+	{
+		private long mark;
+
+		private Sending(long mark)
+		{
+			this.mark = mark;
+		}
+	}
+
+	// A message of sendAsync() still to be framed from payload, or frames set aside ahead of one
+	private static class Entry
+	{
+		private final ByteBuffer payload;
+		private final boolean compress;
+		private final Sending sending;
+		private ByteBuffer frames;
+		private final ArrayDeque<Sending> held;
+		// A fragment was framed already, the rest are continuations
+		private boolean started = false;
+
+		private Entry(ByteBuffer payload, boolean compress, Sending sending)
+		{
+			this.payload = payload;
+			this.compress = compress;
+			this.sending = sending;
+			this.frames = null;
+			this.held = null;
+		}
+
+		private Entry(ByteBuffer frames, ArrayDeque<Sending> held)
+		{
+			this.payload = null;
+			this.compress = false;
+			this.sending = null;
+			this.frames = frames;
+			this.held = held;
+		}
+	}
 }
@@ -0,0 +1,328 @@
+package org.mve.ws;
+
+import org.mve.JavaVM;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WebSocketEventLoop
+{
+	// Frames received per readiness event before yielding to other connections
+	public static final int RECEIVE_BUDGET = 16;
+
+	private final Worker[] workers;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public WebSocketEventLoop(int threads)
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException("Thread count must be positive");
+		this.workers = new Worker[threads];
+		try
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				this.workers[i] = new Worker(Selector.open());
+			}
+		}
+		catch (IOException e)
+		{
+			this.close();
+			JavaVM.exception(e);
+		}
+		for (int i = 0; i < threads; i++)
+		{
+			Thread thread = new Thread(this.workers[i], "WebSocketEventLoop-" + i);
+			thread.setDaemon(true);
+			this.workers[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	public WebSocketEventLoop()
+	{
+		this(1);
+	}
+
+	// Loop of the async API when none is given, a thread per processor started on first use
+	public static WebSocketEventLoop shared()
+	{
+		return Shared.LOOP;
+	}
+
+	public void register(WebSocket socket)
+	{
+		if (!this.running)
+			throw new IllegalStateException("Event loop closed");
+		Worker worker = this.workers[Math.floorMod(this.next.getAndIncrement(), this.workers.length)];
+		worker.pending.offer(socket);
+		worker.selector.wakeup();
+	}
+
+	// Runs task on a loop thread once channel takes bytes again, for connections no loop serves.
+	// A channel is always watched by the same worker, which keeps its key between stalls
+	void writable(SocketChannel channel, Runnable task)
+	{
+		if (!this.running)
+			throw new IllegalStateException("Event loop closed");
+		Worker worker = this.workers[Math.floorMod(System.identityHashCode(channel), this.workers.length)];
+		worker.watches.offer(new Watch(channel, task));
+		worker.selector.wakeup();
+	}
+
+	public int threads()
+	{
+		return this.workers.length;
+	}
+
+	public boolean running()
+	{
+		return this.running;
+	}
+
+	public void close()
+	{
+		this.running = false;
+		for (Worker worker : this.workers)
+		{
+			if (worker == null) continue;
+			worker.selector.wakeup();
+			if (worker.thread == null)
+			{
+				try
+				{
+					worker.selector.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+	}
+
+	static int interest(WebSocket socket)
+	{
+		Tls tls = socket.tls();
+		if (tls != null && !tls.done())
+			return tls.interest();
+		switch (socket.status())
+		{
+			case WebSocket.STAT_CONNECTING:
+				return SelectionKey.OP_CONNECT;
+			case WebSocket.STAT_HANDSHAKE1:
+				return SelectionKey.OP_WRITE;
+			default:
+				// Stalled writes are finished by the loop once the channel takes bytes again,
+				// paused reads once the connection is resumed
+				int ops = socket.paused() ? 0 : SelectionKey.OP_READ;
+				return socket.stalled() ? ops | SelectionKey.OP_WRITE : ops;
+		}
+	}
+
+	private class Worker implements Runnable
+	{
+		private final Selector selector;
+		private final Queue<WebSocket> pending = new ConcurrentLinkedQueue<>();
+		// Connections with input left in their buffer after the receive budget ran out
+		private final Queue<SelectionKey> ready = new ArrayDeque<>();
+		// Connections that may read again after pausing for memory
+		private final Queue<SelectionKey> resumed = new ConcurrentLinkedQueue<>();
+		// Channels of other connections waiting for OP_WRITE, see writable()
+		private final Queue<Watch> watches = new ConcurrentLinkedQueue<>();
+		private Thread thread;
+
+		private Worker(Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (WebSocketEventLoop.this.running)
+				{
+					if (this.ready.isEmpty()) this.selector.select();
+					else this.selector.selectNow();
+					this.accept();
+					this.watch();
+					SelectionKey resumed;
+					while ((resumed = this.resumed.poll()) != null)
+					{
+						if (resumed.isValid()) this.process(resumed);
+					}
+					for (int i = this.ready.size(); i > 0; i--)
+						this.process(this.ready.poll());
+					Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+					while (iterator.hasNext())
+					{
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						this.process(key);
+					}
+				}
+			}
+			catch (IOException ignored)
+			{
+			}
+			finally
+			{
+				for (SelectionKey key : this.selector.keys())
+				{
+					if (key.attachment() instanceof WebSocket)
+						((WebSocket) key.attachment()).reset();
+				}
+				WebSocket socket;
+				while ((socket = this.pending.poll()) != null)
+				{
+					socket.reset();
+				}
+				try
+				{
+					this.selector.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+
+		private void accept()
+		{
+			WebSocket socket;
+			while ((socket = this.pending.poll()) != null)
+			{
+				try
+				{
+					socket.blocking(false);
+					socket.finish();
+					SocketChannel channel = socket.channel();
+					if (channel == null || !channel.isOpen())
+					{
+						socket.reset();
+						continue;
+					}
+					SelectionKey key = channel.register(this.selector, WebSocketEventLoop.interest(socket), socket);
+					socket.attach(key, () -> this.resume(key));
+					if (socket.status() >= WebSocket.STAT_CONNECTED)
+						this.process(key);
+				}
+				catch (Throwable t)
+				{
+					socket.reset();
+				}
+			}
+		}
+
+		private void watch()
+		{
+			Watch watch;
+			while ((watch = this.watches.poll()) != null)
+			{
+				try
+				{
+					SelectionKey key = watch.channel.keyFor(this.selector);
+					if (key == null) watch.channel.register(this.selector, SelectionKey.OP_WRITE, watch.task);
+					else
+					{
+						key.attach(watch.task);
+						key.interestOps(SelectionKey.OP_WRITE);
+					}
+				}
+				catch (ClosedChannelException | CancelledKeyException ignored)
+				{
+					// Closed meanwhile, the writer finds out on its next write
+				}
+			}
+		}
+
+		private void process(SelectionKey key)
+		{
+			if (key.attachment() instanceof Runnable)
+			{
+				// One wake-up per watch, the task watches again if the channel fills up once more
+				if (key.isValid() && key.isWritable())
+				{
+					key.interestOps(0);
+					((Runnable) key.attachment()).run();
+				}
+				return;
+			}
+			WebSocket socket = (WebSocket) key.attachment();
+			try
+			{
+				if (!key.isValid())
+				{
+					socket.reset();
+					return;
+				}
+				if (socket.status() < WebSocket.STAT_CONNECTED)
+				{
+					if (!socket.finish())
+					{
+						key.interestOps(WebSocketEventLoop.interest(socket));
+						return;
+					}
+				}
+				if (key.isWritable() && socket.stalled())
+					socket.outbound();
+				int budget = WebSocketEventLoop.RECEIVE_BUDGET;
+				while (budget-- > 0 && socket.reading() && socket.receive());
+				if (!socket.reading())
+				{
+					key.cancel();
+					socket.close();
+					if (socket.status() != WebSocket.STAT_CLOSED)
+						socket.reset();
+					return;
+				}
+				key.interestOps(WebSocketEventLoop.interest(socket));
+				// A sender may have stalled after the interest was computed
+				if (socket.stalled())
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				if (socket.buffered() && !socket.paused() && !this.ready.contains(key))
+					this.ready.offer(key);
+			}
+			catch (Throwable t)
+			{
+				key.cancel();
+				socket.reset();
+			}
+		}
+
+		// Called from any thread
+		private void resume(SelectionKey key)
+		{
+			this.resumed.offer(key);
+			this.selector.wakeup();
+		}
+	}
+
+	private static class Watch
+	{
+		private final SocketChannel channel;
+		private final Runnable task;
+
+		private Watch(SocketChannel channel, Runnable task)
+		{
+			this.channel = channel;
+			this.task = task;
+		}
+	}
+
+	private static class Shared
+	{
+		private static final WebSocketEventLoop LOOP = new WebSocketEventLoop(Runtime.getRuntime().availableProcessors());
+	}
+}
@@ -0,0 +1,374 @@
+package org.mve.ws;
+
+import org.mve.Histogram;
+import org.mve.JavaVM;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of every connection recording into it, striped so the hot path only adds to a cell of its own.
+// Connections record into SHARED, published as org.mve.ws:type=WebSocketMetrics,name=shared, unless given
+// another instance or null. Running with -Dorg.mve.ws.metrics=false makes null the default
+public class WebSocketMetrics implements WebSocketMetricsMBean
+{
+	public static final boolean ENABLED = !"false".equals(System.getProperty("org.mve.ws.metrics"));
+	public static final WebSocketMetrics SHARED = new WebSocketMetrics();
+
+	static
+	{
+		if (WebSocketMetrics.ENABLED)
+		{
+			try
+			{
+				WebSocketMetrics.SHARED.register("shared");
+			}
+			catch (RuntimeException ignored)
+			{
+				// Another class loader published its own, or there is no JMX
+			}
+		}
+	}
+
+	private final LongAdder[] framesIn = WebSocketMetrics.adders(16);
+	private final LongAdder[] framesOut = WebSocketMetrics.adders(16);
+	private final LongAdder[] bytesIn = WebSocketMetrics.adders(16);
+	private final LongAdder[] bytesOut = WebSocketMetrics.adders(16);
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder partialReads = new LongAdder();
+	private final LongAdder readGrowths = new LongAdder();
+	private final LongAdder writeGrowths = new LongAdder();
+	private final LongAdder arrayGrowths = new LongAdder();
+	// Largest capacity seen
+	private final LongAccumulator readCapacity = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator writeCapacity = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator arrayCapacity = new LongAccumulator(Math::max, 0);
+	// Bytes in the send queues right now
+	private final LongAdder queued = new LongAdder();
+	private final Histogram handshakes = new Histogram();
+	// From the first frame of a message arriving to the application taking it
+	private final Histogram deliveries = new Histogram();
+	private ObjectName name = null;
+
+	// The default for new connections, null when metrics are off
+	static WebSocketMetrics defaults()
+	{
+		return WebSocketMetrics.ENABLED ? WebSocketMetrics.SHARED : null;
+	}
+
+	// Publishes this instance over JMX, for a connection or group of connections of its own
+	public synchronized WebSocketMetrics register(String name)
+	{
+		try
+		{
+			ObjectName object = new ObjectName("org.mve.ws:type=WebSocketMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, object);
+			this.name = object;
+		}
+		catch (JMException e)
+		{
+			JavaVM.exception(new IllegalStateException(e));
+		}
+		return this;
+	}
+
+	public synchronized void unregister()
+	{
+		if (this.name == null) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			server.unregisterMBean(this.name);
+		}
+		catch (JMException ignored)
+		{
+		}
+		this.name = null;
+	}
+
+	void frameIn(int opcode, long length)
+	{
+		this.framesIn[opcode & 0xF].increment();
+		this.bytesIn[opcode & 0xF].add(length);
+	}
+
+	void frameOut(int opcode, long length)
+	{
+		this.framesOut[opcode & 0xF].increment();
+		this.bytesOut[opcode & 0xF].add(length);
+	}
+
+	void read()
+	{
+		this.reads.increment();
+	}
+
+	void write()
+	{
+		this.writes.increment();
+	}
+
+	void partial()
+	{
+		this.partialReads.increment();
+	}
+
+	void readBuffer(int capacity)
+	{
+		this.readGrowths.increment();
+		this.readCapacity.accumulate(capacity);
+	}
+
+	void writeBuffer(int capacity)
+	{
+		this.writeGrowths.increment();
+		this.writeCapacity.accumulate(capacity);
+	}
+
+	void array(int capacity)
+	{
+		this.arrayGrowths.increment();
+		this.arrayCapacity.accumulate(capacity);
+	}
+
+	void queued(long delta)
+	{
+		this.queued.add(delta);
+	}
+
+	void handshake(long nanos)
+	{
+		this.handshakes.record(nanos);
+	}
+
+	void delivery(long nanos)
+	{
+		this.deliveries.record(nanos);
+	}
+
+	@Override
+	public long getFramesIn()
+	{
+		return WebSocketMetrics.sum(this.framesIn);
+	}
+
+	@Override
+	public long getFramesOut()
+	{
+		return WebSocketMetrics.sum(this.framesOut);
+	}
+
+	@Override
+	public long getBytesIn()
+	{
+		return WebSocketMetrics.sum(this.bytesIn);
+	}
+
+	@Override
+	public long getBytesOut()
+	{
+		return WebSocketMetrics.sum(this.bytesOut);
+	}
+
+	@Override
+	public long[] getFramesInByOpcode()
+	{
+		return WebSocketMetrics.sums(this.framesIn);
+	}
+
+	@Override
+	public long[] getFramesOutByOpcode()
+	{
+		return WebSocketMetrics.sums(this.framesOut);
+	}
+
+	@Override
+	public long[] getBytesInByOpcode()
+	{
+		return WebSocketMetrics.sums(this.bytesIn);
+	}
+
+	@Override
+	public long[] getBytesOutByOpcode()
+	{
+		return WebSocketMetrics.sums(this.bytesOut);
+	}
+
+	@Override
+	public long getReads()
+	{
+		return this.reads.sum();
+	}
+
+	@Override
+	public long getWrites()
+	{
+		return this.writes.sum();
+	}
+
+	@Override
+	public long getPartialReads()
+	{
+		return this.partialReads.sum();
+	}
+
+	@Override
+	public long getReadBufferGrowths()
+	{
+		return this.readGrowths.sum();
+	}
+
+	@Override
+	public long getWriteBufferGrowths()
+	{
+		return this.writeGrowths.sum();
+	}
+
+	@Override
+	public long getArrayGrowths()
+	{
+		return this.arrayGrowths.sum();
+	}
+
+	@Override
+	public long getReadBufferCapacity()
+	{
+		return this.readCapacity.get();
+	}
+
+	@Override
+	public long getWriteBufferCapacity()
+	{
+		return this.writeCapacity.get();
+	}
+
+	@Override
+	public long getArrayCapacity()
+	{
+		return this.arrayCapacity.get();
+	}
+
+	@Override
+	public long getQueuedBytes()
+	{
+		return this.queued.sum();
+	}
+
+	@Override
+	public long getHandshakes()
+	{
+		return this.handshakes.count();
+	}
+
+	@Override
+	public double getHandshakeMean()
+	{
+		return this.handshakes.mean();
+	}
+
+	@Override
+	public long getHandshakeP50()
+	{
+		return this.handshakes.percentile(0.5);
+	}
+
+	@Override
+	public long getHandshakeP99()
+	{
+		return this.handshakes.percentile(0.99);
+	}
+
+	@Override
+	public long getHandshakeMax()
+	{
+		return this.handshakes.max();
+	}
+
+	@Override
+	public long getDeliveries()
+	{
+		return this.deliveries.count();
+	}
+
+	@Override
+	public double getDeliveryMean()
+	{
+		return this.deliveries.mean();
+	}
+
+	@Override
+	public long getDeliveryP50()
+	{
+		return this.deliveries.percentile(0.5);
+	}
+
+	@Override
+	public long getDeliveryP99()
+	{
+		return this.deliveries.percentile(0.99);
+	}
+
+	@Override
+	public long getDeliveryP999()
+	{
+		return this.deliveries.percentile(0.999);
+	}
+
+	@Override
+	public long getDeliveryMax()
+	{
+		return this.deliveries.max();
+	}
+
+	// Starts the counters over, the queued bytes gauge is left as it is
+	@Override
+	public void reset()
+	{
+		for (int i = 0; i < 16; i++)
+		{
+			this.framesIn[i].reset();
+			this.framesOut[i].reset();
+			this.bytesIn[i].reset();
+			this.bytesOut[i].reset();
+		}
+		this.reads.reset();
+		this.writes.reset();
+		this.partialReads.reset();
+		this.readGrowths.reset();
+		this.writeGrowths.reset();
+		this.arrayGrowths.reset();
+		this.readCapacity.reset();
+		this.writeCapacity.reset();
+		this.arrayCapacity.reset();
+		this.handshakes.reset();
+		this.deliveries.reset();
+	}
+
+	private static LongAdder[] adders(int n)
+	{
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+	private static long sum(LongAdder[] adders)
+	{
+		long sum = 0;
+		for (LongAdder adder : adders)
+			sum += adder.sum();
+		return sum;
+	}
+
+	private static long[] sums(LongAdder[] adders)
+	{
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++)
+			sums[i] = adders[i].sum();
+		return sums;
+	}
+}
@@ -0,0 +1,66 @@
+package org.mve.ws;
+
+// Attributes of WebSocketMetrics over JMX, byte counts are payload bytes and times are nanoseconds
+public interface WebSocketMetricsMBean
+{
+	long getFramesIn();
+
+	long getFramesOut();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	// Indexed by opcode
+	long[] getFramesInByOpcode();
+
+	long[] getFramesOutByOpcode();
+
+	long[] getBytesInByOpcode();
+
+	long[] getBytesOutByOpcode();
+
+	long getReads();
+
+	long getWrites();
+
+	long getPartialReads();
+
+	long getReadBufferGrowths();
+
+	long getWriteBufferGrowths();
+
+	long getArrayGrowths();
+
+	long getReadBufferCapacity();
+
+	long getWriteBufferCapacity();
+
+	long getArrayCapacity();
+
+	long getQueuedBytes();
+
+	long getHandshakes();
+
+	double getHandshakeMean();
+
+	long getHandshakeP50();
+
+	long getHandshakeP99();
+
+	long getHandshakeMax();
+
+	long getDeliveries();
+
+	double getDeliveryMean();
+
+	long getDeliveryP50();
+
+	long getDeliveryP99();
+
+	long getDeliveryP999();
+
+	long getDeliveryMax();
+
+	void reset();
+}
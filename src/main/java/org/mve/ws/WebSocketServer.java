@@ -0,0 +1,306 @@
+package org.mve.ws;
+
+import org.mve.BufferPool;
+import org.mve.JavaVM;
+import org.mve.MemoryBudget;
+import org.mve.TimerWheel;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class WebSocketServer
+{
+	// Connections accepted per readiness event before selecting again
+	public static final int ACCEPT_BATCH = 64;
+	public static final int BACKLOG = 1024;
+	// Accepting pauses this long after a failure such as descriptor exhaustion
+	public static final long ACCEPT_BACKOFF = 100;
+
+	private final ServerSocketChannel server;
+	private final WebSocketEventLoop loop;
+	private final Consumer<WebSocket> handler;
+	private final Acceptor[] acceptors;
+	private volatile boolean running = true;
+	private volatile PerMessageDeflate deflate = null;
+	private volatile SSLContext context = null;
+	private volatile BufferPool buffers = BufferPool.SHARED;
+	private volatile MemoryBudget budget = MemoryBudget.SHARED;
+	private volatile WebSocketMetrics metrics = WebSocketMetrics.defaults();
+	private volatile long messageLimit = WebSocket.MESSAGE_LIMIT;
+	private volatile long bufferLimit = WebSocket.BUFFER_LIMIT;
+	private volatile long handshakeTimeout = 0;
+	private volatile long pingInterval = 0;
+	private volatile long pingTimeout = 0;
+	private volatile long idleTimeout = 0;
+
+	public WebSocketServer(SocketAddress address, WebSocketEventLoop loop, int acceptors, Consumer<WebSocket> handler)
+	{
+		if (acceptors <= 0)
+			throw new IllegalArgumentException("Acceptor count must be positive");
+		this.loop = loop;
+		this.handler = handler;
+		this.acceptors = new Acceptor[acceptors];
+		ServerSocketChannel server = null;
+		try
+		{
+			server = ServerSocketChannel.open();
+			server.bind(address, WebSocketServer.BACKLOG);
+			server.configureBlocking(false);
+			for (int i = 0; i < acceptors; i++)
+			{
+				Selector selector = Selector.open();
+				this.acceptors[i] = new Acceptor(selector, server.register(selector, SelectionKey.OP_ACCEPT));
+			}
+		}
+		catch (IOException e)
+		{
+			this.running = false;
+			for (Acceptor acceptor : this.acceptors)
+			{
+				if (acceptor == null) continue;
+				try
+				{
+					acceptor.selector.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+			if (server != null)
+			{
+				try
+				{
+					server.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+			JavaVM.exception(e);
+		}
+		this.server = server;
+		for (int i = 0; i < acceptors; i++)
+		{
+			Thread thread = new Thread(this.acceptors[i], "WebSocketServer-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public WebSocketServer(SocketAddress address, WebSocketEventLoop loop, Consumer<WebSocket> handler)
+	{
+		this(address, loop, 1, handler);
+	}
+
+	public SocketAddress address()
+	{
+		try
+		{
+			return this.server.getLocalAddress();
+		}
+		catch (IOException e)
+		{
+			JavaVM.exception(e);
+		}
+		return null;
+	}
+
+	// Compression accepted from clients connecting after this call, null disables it
+	public void deflate(PerMessageDeflate deflate)
+	{
+		this.deflate = deflate;
+	}
+
+	// Serves wss with this context for clients connecting after this call, null serves plain ws
+	public void tls(SSLContext context)
+	{
+		this.context = context;
+	}
+
+	// Pool the buffers of connections accepted after this call are borrowed from
+	public void buffers(BufferPool pool)
+	{
+		this.buffers = pool;
+	}
+
+	// Inbound limits of connections accepted after this call, see WebSocket.limits()
+	public void limits(long message, long buffer)
+	{
+		if (message <= 0 || buffer <= 0)
+			throw new IllegalArgumentException("Limits must be positive");
+		this.messageLimit = message;
+		this.bufferLimit = buffer;
+	}
+
+	// Budget the connections accepted after this call reserve inbound payload from
+	public void budget(MemoryBudget budget)
+	{
+		this.budget = budget;
+	}
+
+	// Counters the connections accepted after this call record into, null records nothing
+	public void metrics(WebSocketMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	// Connections accepted after this call that have not finished the handshake within millis are
+	// dropped, 0 waits as long as the client likes
+	public void handshakeTimeout(long millis)
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		this.handshakeTimeout = millis;
+	}
+
+	// Keepalive and idle timeout of connections accepted after this call, see WebSocket.keepalive()
+	public void keepalive(long intervalMillis, long timeoutMillis)
+	{
+		if (intervalMillis < 0 || timeoutMillis < 0)
+			throw new IllegalArgumentException("Keepalive cannot be negative");
+		this.pingInterval = intervalMillis;
+		this.pingTimeout = timeoutMillis;
+	}
+
+	public void idleTimeout(long millis)
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		this.idleTimeout = millis;
+	}
+
+	public boolean running()
+	{
+		return this.running;
+	}
+
+	public void close()
+	{
+		this.running = false;
+		for (Acceptor acceptor : this.acceptors)
+			acceptor.selector.wakeup();
+		try
+		{
+			this.server.close();
+		}
+		catch (IOException ignored)
+		{
+		}
+	}
+
+	// False when accepting failed, such as on descriptor exhaustion
+	private boolean accept()
+	{
+		for (int i = 0; i < WebSocketServer.ACCEPT_BATCH; i++)
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = this.server.accept();
+			}
+			catch (IOException e)
+			{
+				return false;
+			}
+			if (channel == null) return true;
+			try
+			{
+				WebSocket socket = new WebSocket(channel);
+				socket.open = this.handler;
+				socket.deflate(this.deflate);
+				socket.buffers(this.buffers);
+				socket.limits(this.messageLimit, this.bufferLimit);
+				socket.budget(this.budget);
+				socket.metrics(this.metrics);
+				SSLContext context = this.context;
+				if (context != null) socket.secure(context);
+				socket.keepalive(this.pingInterval, this.pingTimeout);
+				socket.idleTimeout(this.idleTimeout);
+				long handshake = this.handshakeTimeout;
+				if (handshake > 0) socket.opening(handshake, "Handshake timeout");
+				this.loop.register(socket);
+			}
+			catch (Throwable t)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+		return true;
+	}
+
+	private class Acceptor implements Runnable
+	{
+		private final Selector selector;
+		private final SelectionKey key;
+		// Set by the timer once the back-off is over, the interest is only changed on the acceptor thread
+		private volatile boolean resume = false;
+
+		private Acceptor(Selector selector, SelectionKey key)
+		{
+			this.selector = selector;
+			this.key = key;
+		}
+
+		private void resume()
+		{
+			this.resume = true;
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (WebSocketServer.this.running)
+				{
+					this.selector.select();
+					if (this.resume && this.key.isValid())
+					{
+						this.resume = false;
+						this.key.interestOps(SelectionKey.OP_ACCEPT);
+					}
+					Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+					while (iterator.hasNext())
+					{
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						if (key.isValid() && key.isAcceptable() && !WebSocketServer.this.accept())
+						{
+							// The pending connection stays acceptable, selecting again right away would spin
+							key.interestOps(0);
+							TimerWheel.SHARED.schedule(this::resume, WebSocketServer.ACCEPT_BACKOFF, TimeUnit.MILLISECONDS);
+						}
+					}
+				}
+			}
+			catch (IOException ignored)
+			{
+			}
+			finally
+			{
+				try
+				{
+					this.selector.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+	}
+}
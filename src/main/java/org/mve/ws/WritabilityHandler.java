@@ -0,0 +1,7 @@
+package org.mve.ws;
+
+public interface WritabilityHandler
+{
+	// Called when the send queue reaches the high watermark and again when it falls to the low one
+	void writability(WebSocket socket, boolean writable);
+}
@@ -1,11 +1,182 @@
 package org.mve;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Random;
+
 public class ArrayTest
 {
 	@Test
 	public void test0()
 	{
+		// Capacities are rounded up to powers of two and fully usable
+		Assertions.assertEquals(1, new Array(0).capacity());
+		Assertions.assertEquals(16, new Array(9).capacity());
+		Array array = new Array(16);
+		Assertions.assertEquals(16, array.capacity());
+		for (int i = 0; i < 16; i++)
+			array.put(i);
+		Assertions.assertEquals(16, array.capacity());
+		Assertions.assertEquals(16, array.length());
+		Assertions.assertEquals(0, array.front());
+		Assertions.assertEquals(5, array.get(5));
+		Assertions.assertEquals(-1, array.get(16));
+		array.put(3, 0x80);
+		Assertions.assertEquals((byte) 0x80, array.get(3));
+		for (int i = 0; i < 16; i++)
+			Assertions.assertEquals(i == 3 ? 0x80 : i, array.get());
+		Assertions.assertEquals(-1, array.get());
+		Assertions.assertEquals(-1, array.front());
+		Assertions.assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.put(0, 1));
+	}
+
+	@Test
+	public void test1()
+	{
+		// Bulk copies across the wrap point and growth of wrapped content
+		Array array = new Array(8);
+		array.put(new byte[]{1, 2, 3, 4, 5, 6});
+		byte[] buf = new byte[4];
+		array.get(buf);
+		Assertions.assertArrayEquals(new byte[]{1, 2, 3, 4}, buf);
+		array.put(new byte[]{7, 8, 9, 10, 11}, 0, 5);
+		Assertions.assertEquals(8, array.capacity());
+		Assertions.assertEquals(7, array.length());
+		Assertions.assertEquals(5, array.get(0));
+		array.put(new byte[]{12, 13, 14});
+		Assertions.assertEquals(16, array.capacity());
+		Assertions.assertEquals(0, array.position());
+		ByteBuffer out = ByteBuffer.allocate(20);
+		array.get(out);
+		out.flip();
+		for (int i = 5; i <= 14; i++)
+			Assertions.assertEquals(i, out.get());
+		Assertions.assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.get(new byte[1]));
+
+		array.put(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+		array.trim(2);
+		Assertions.assertEquals(3, array.length());
+		array.skip(1);
+		Assertions.assertEquals(2, array.get());
+		Assertions.assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.skip(2));
+	}
+
+	@Test
+	public void test2()
+	{
+		// Integers in one piece and split by the wrap point
+		for (boolean direct : new boolean[]{false, true})
+		{
+			Array array = new Array(16, direct);
+			Assertions.assertEquals(direct, array.direct());
+			for (int shift = 0; shift < 16; shift++)
+			{
+				for (int len = 0; len <= 8; len++)
+				{
+					array.put(new byte[shift]);
+					array.get(new byte[shift]);
+					long val = 0x0102030405060708L;
+					array.integer(val, len);
+					Assertions.assertEquals(len, array.length());
+					long mask = len == 8 ? -1 : (1L << (len * 8)) - 1;
+					Assertions.assertEquals(val & mask, array.integer(len));
+				}
+			}
+			array.integer(0xFFFFFFFFL, 4);
+			Assertions.assertEquals(0xFFFFFFFFL, array.integer(4));
+			array.integer(0xFFFF, 2);
+			Assertions.assertEquals(0xFFFF, array.integer(2));
+			Assertions.assertThrows(IllegalArgumentException.class, () -> array.integer(0, 9));
+			Assertions.assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.integer(1));
+		}
+	}
+
+	@Test
+	public void test3() throws Throwable
+	{
+		// Channels read into and write out of the ring without a copy
+		Pipe pipe = Pipe.open();
+		Array array = new Array(16, true);
+		array.put(new byte[12]);
+		array.get(new byte[12]);
+		byte[] data = new byte[10];
+		new Random(0).nextBytes(data);
+		array.put(data);
+		ByteBuffer[] views = array.readable();
+		Assertions.assertEquals(4, views[0].remaining());
+		Assertions.assertEquals(6, views[1].remaining());
+		Assertions.assertEquals(10, array.write(pipe.sink()));
+		Assertions.assertEquals(0, array.length());
+		Assertions.assertEquals(0, array.write(pipe.sink()));
+
+		views = array.writable();
+		Assertions.assertEquals(10, views[0].remaining());
+		Assertions.assertEquals(6, views[1].remaining());
+		Assertions.assertEquals(10, array.read(pipe.source(), 1));
+		Assertions.assertEquals(16, array.capacity());
+		byte[] read = new byte[10];
+		array.get(read);
+		Assertions.assertArrayEquals(data, read);
+
+		// Reading asks for room first
+		pipe.sink().write(ByteBuffer.wrap(data));
+		array.put(new byte[16]);
+		Assertions.assertEquals(10, array.read(pipe.source(), 10));
+		Assertions.assertEquals(32, array.capacity());
+		array.get(new byte[16]);
+		array.get(read);
+		Assertions.assertArrayEquals(data, read);
+
+		// Bytes written into writable() appear once committed
+		views = array.writable();
+		views[0].put((byte) 42);
+		array.commit(1);
+		Assertions.assertEquals(42, array.get());
+		Assertions.assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.commit(33));
+		pipe.sink().close();
+		pipe.source().close();
+	}
+
+	@Test
+	public void test4()
+	{
+		// Pooled arrays hold no store while empty
+		BufferPool pool = new BufferPool(2, 4);
+		Array array = new Array(pool);
+		Assertions.assertEquals(0, array.capacity());
+		Assertions.assertEquals(-1, array.get());
+		array.integer(0x1234, 2);
+		Assertions.assertEquals(BufferPool.MIN_SIZE, array.capacity());
+		Assertions.assertEquals(BufferPool.MIN_SIZE, pool.outstanding());
+		array.recycle();
+		Assertions.assertEquals(BufferPool.MIN_SIZE, pool.outstanding());
+		byte[] large = new byte[BufferPool.MIN_SIZE];
+		array.put(large);
+		Assertions.assertEquals(BufferPool.MIN_SIZE * 2, array.capacity());
+		Assertions.assertEquals(BufferPool.MIN_SIZE * 2, pool.outstanding());
+		Assertions.assertEquals(0x1234, array.integer(2));
+		array.get(large);
+		array.recycle();
+		Assertions.assertEquals(0, array.capacity());
+		Assertions.assertEquals(0, pool.outstanding());
+		Assertions.assertEquals(0, array.length());
+	}
+
+	@Test
+	public void test5()
+	{
+		// Growth stops at the limit
+		Array array = new Array(4);
+		array.limit(16);
+		Assertions.assertEquals(16, array.limit());
+		array.put(new byte[16]);
+		Assertions.assertThrows(OverflowException.class, () -> array.put(1));
+		Assertions.assertEquals(16, array.length());
+		array.get(new byte[8]);
+		array.put(new byte[8]);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> array.limit(-1));
 	}
 }
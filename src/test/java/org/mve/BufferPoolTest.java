@@ -0,0 +1,93 @@
+package org.mve;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest
+{
+	@Test
+	public void test0()
+	{
+		BufferPool pool = new BufferPool(2, 4);
+		ByteBuffer a = pool.acquire(100);
+		Assertions.assertEquals(BufferPool.MIN_SIZE, a.capacity());
+		Assertions.assertFalse(a.isDirect());
+		ByteBuffer b = pool.acquire(BufferPool.MIN_SIZE + 1);
+		Assertions.assertEquals(BufferPool.MIN_SIZE * 2, b.capacity());
+		Assertions.assertEquals(2, pool.misses());
+		Assertions.assertEquals(BufferPool.MIN_SIZE * 3, pool.outstanding());
+
+		// Released buffers come back cleared from the thread cache
+		a.put((byte) 1);
+		pool.release(a);
+		Assertions.assertSame(a, pool.acquire(10));
+		Assertions.assertEquals(0, a.position());
+		Assertions.assertEquals(1, pool.hits());
+		Assertions.assertEquals(1.0 / 3, pool.hitRate(), 1e-9);
+
+		// Growing keeps the content and gives the old buffer back
+		b.put(new byte[]{1, 2, 3});
+		ByteBuffer c = pool.grow(b, BufferPool.MIN_SIZE * 3);
+		Assertions.assertEquals(BufferPool.MIN_SIZE * 4, c.capacity());
+		Assertions.assertEquals(3, c.position());
+		Assertions.assertEquals(3, c.get(2));
+		Assertions.assertSame(c, pool.grow(c, 10));
+		Assertions.assertSame(b, pool.acquire(BufferPool.MIN_SIZE * 2));
+
+		// Oversized and foreign buffers are not pooled
+		ByteBuffer large = pool.acquire(BufferPool.MAX_SIZE + 1);
+		Assertions.assertEquals(BufferPool.MAX_SIZE + 1, large.capacity());
+		pool.release(large);
+		Assertions.assertNotSame(large, pool.acquire(BufferPool.MAX_SIZE + 1));
+
+		// Past the largest class a buffer grows at least twofold
+		ByteBuffer larger = pool.acquire(BufferPool.MAX_SIZE + 1).put((byte) 1);
+		larger = pool.grow(larger, BufferPool.MAX_SIZE + 2);
+		Assertions.assertEquals(2 * (BufferPool.MAX_SIZE + 1), larger.capacity());
+		Assertions.assertEquals(1, larger.position());
+		Assertions.assertEquals(1, larger.get(0));
+		Assertions.assertEquals(BufferPool.MAX_SIZE * 5, pool.grow(larger, BufferPool.MAX_SIZE * 5).capacity());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> pool.acquire(-1));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new BufferPool(-1, 0));
+	}
+
+	@Test
+	public void test1() throws Throwable
+	{
+		// A thread cache of one, the rest overflows to the shared stacks
+		BufferPool pool = new BufferPool(1, 8);
+		ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.acquire(BufferPool.MIN_SIZE);
+		for (ByteBuffer buf : buffers)
+			pool.release(buf);
+		Assertions.assertEquals(0, pool.outstanding());
+		ByteBuffer[] taken = new ByteBuffer[2];
+		Thread other = new Thread(() ->
+		{
+			taken[0] = pool.acquire(BufferPool.MIN_SIZE);
+			taken[1] = pool.acquire(BufferPool.MIN_SIZE);
+		});
+		other.start();
+		other.join();
+		Assertions.assertSame(buffers[2], taken[0]);
+		Assertions.assertSame(buffers[1], taken[1]);
+		Assertions.assertEquals(2, pool.hits());
+
+		// Direct buffers are slices of one slab
+		long allocations = pool.allocations();
+		ByteBuffer a = pool.acquire(BufferPool.MIN_SIZE, true);
+		ByteBuffer b = pool.acquire(BufferPool.MIN_SIZE, true);
+		Assertions.assertTrue(a.isDirect());
+		Assertions.assertTrue(b.isDirect());
+		Assertions.assertEquals(BufferPool.MIN_SIZE, b.capacity());
+		Assertions.assertEquals(allocations + 1, pool.allocations());
+		Assertions.assertEquals(BufferPool.SLAB_SIZE, pool.allocated() - BufferPool.MIN_SIZE * 3);
+		a.put(0, (byte) 1);
+		Assertions.assertEquals(0, b.get(0));
+		pool.release(a);
+		Assertions.assertSame(a, pool.acquire(1, true));
+	}
+}
@@ -0,0 +1,35 @@
+package org.mve;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HistogramTest
+{
+	@Test
+	public void test0()
+	{
+		Histogram histogram = new Histogram();
+		Assertions.assertEquals(0, histogram.percentile(0.5));
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		Assertions.assertEquals(1000, histogram.count());
+		Assertions.assertEquals(1000000, histogram.max());
+		Assertions.assertEquals(500500, histogram.mean(), 0.001);
+		// Percentiles are bucket bounds within 12.5% of the exact value
+		long p50 = histogram.percentile(0.5);
+		long p99 = histogram.percentile(0.99);
+		Assertions.assertTrue(p50 >= 500000 && p50 <= 562500, String.valueOf(p50));
+		Assertions.assertTrue(p99 >= 990000 && p99 <= 1000000, String.valueOf(p99));
+		Assertions.assertEquals(1000000, histogram.percentile(1));
+
+		// Small values are exact, negative ones count as 0
+		histogram.reset();
+		histogram.record(-5);
+		histogram.record(3);
+		histogram.record(Long.MAX_VALUE);
+		Assertions.assertEquals(0, histogram.percentile(0.3));
+		Assertions.assertEquals(3, histogram.percentile(0.5));
+		Assertions.assertEquals(Long.MAX_VALUE, histogram.percentile(1));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> histogram.percentile(2));
+	}
+}
@@ -0,0 +1,45 @@
+package org.mve;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MemoryBudgetTest
+{
+	@Test
+	public void test0()
+	{
+		MemoryBudget budget = new MemoryBudget(100);
+		Assertions.assertTrue(budget.reserve(60));
+		Assertions.assertFalse(budget.reserve(50));
+		Assertions.assertEquals(60, budget.used());
+		Assertions.assertEquals(40, budget.available());
+
+		// Arrived data is charged past the capacity
+		budget.charge(50);
+		Assertions.assertEquals(110, budget.used());
+		Assertions.assertEquals(0, budget.available());
+		budget.release(110);
+		Assertions.assertEquals(0, budget.used());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> budget.reserve(-1));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new MemoryBudget(0));
+	}
+
+	@Test
+	public void test1()
+	{
+		// Waiters run once, on the first release after they were left
+		MemoryBudget budget = new MemoryBudget(100);
+		AtomicInteger runs = new AtomicInteger();
+		Assertions.assertTrue(budget.reserve(80, runs::incrementAndGet));
+		Assertions.assertFalse(budget.reserve(40, runs::incrementAndGet));
+		Assertions.assertEquals(0, runs.get());
+		budget.release(30);
+		Assertions.assertEquals(1, runs.get());
+		Assertions.assertTrue(budget.reserve(40));
+		budget.release(10);
+		Assertions.assertEquals(1, runs.get());
+		Assertions.assertEquals(80, budget.used());
+	}
+}
@@ -0,0 +1,67 @@
+package org.mve;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimerWheelTest
+{
+	@Test
+	public void test0() throws InterruptedException
+	{
+		// Tasks run in deadline order, not before their delay, and cancelled ones never
+		TimerWheel wheel = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 8);
+		List<Integer> order = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+		// Tasks are made first, the first lambda takes long enough to upset the deadlines
+		Runnable first = () -> order.add(1);
+		Runnable second = () -> order.add(2);
+		Runnable third = () -> order.add(3);
+		Runnable never = () -> order.add(-1);
+		long start = System.nanoTime();
+		wheel.schedule(third, 30, TimeUnit.MILLISECONDS);
+		wheel.schedule(first, 5, TimeUnit.MILLISECONDS);
+		TimerWheel.Timeout cancelled = wheel.schedule(never, 10, TimeUnit.MILLISECONDS);
+		wheel.schedule(second, 20, TimeUnit.MILLISECONDS);
+		wheel.schedule(done::countDown, 40, TimeUnit.MILLISECONDS);
+		Assertions.assertTrue(cancelled.cancel());
+		Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+		Assertions.assertEquals(3, order.size());
+		Assertions.assertEquals(1, (int) order.get(0));
+		Assertions.assertEquals(2, (int) order.get(1));
+		Assertions.assertEquals(3, (int) order.get(2));
+		Assertions.assertTrue(cancelled.cancelled());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new TimerWheel(1, 6));
+	}
+
+	@Test
+	public void test1() throws InterruptedException
+	{
+		// Delays spanning several turns of a small wheel, and many timeouts in the same bucket
+		TimerWheel wheel = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 4);
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(10000);
+		for (int i = 0; i < 10000; i++)
+		{
+			wheel.schedule(() ->
+			{
+				runs.incrementAndGet();
+				done.countDown();
+			}, i % 50, TimeUnit.MILLISECONDS);
+		}
+		TimerWheel.Timeout late = wheel.schedule(() -> runs.addAndGet(1000000), 200, TimeUnit.MILLISECONDS);
+		Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assertions.assertEquals(10000, runs.get());
+		Assertions.assertFalse(late.expired());
+		Thread.sleep(400);
+		Assertions.assertTrue(late.expired());
+		Assertions.assertFalse(late.cancel());
+		Assertions.assertEquals(1010000, runs.get());
+	}
+}
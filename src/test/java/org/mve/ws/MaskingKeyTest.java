@@ -0,0 +1,91 @@
+package org.mve.ws;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+public class MaskingKeyTest
+{
+	private static byte[] expected(byte[] mask, byte[] data, int from)
+	{
+		byte[] result = data.clone();
+		for (int i = 0; i < result.length; i++)
+			result[i] ^= mask[(from + i) & 3];
+		return result;
+	}
+
+	@Test
+	public void test0()
+	{
+		// Partial chunks keep the rotating key offset
+		Random random = new Random(0);
+		byte[] data = new byte[1031];
+		random.nextBytes(data);
+		MaskingKey key = new MaskingKey();
+		key.next(random);
+		key.having = true;
+		byte[] masked = data.clone();
+		int off = 0;
+		for (int len : new int[]{1, 3, 8, 13, 64, 2, 940})
+		{
+			key.masking(masked, off, len);
+			off += len;
+		}
+		Assertions.assertEquals(data.length, off);
+		Assertions.assertArrayEquals(MaskingKeyTest.expected(key.value(), data, 0), masked);
+		Assertions.assertEquals(data.length & 3, key.position());
+	}
+
+	@Test
+	public void test1()
+	{
+		// Heap and direct buffers in both byte orders, in place and copying
+		Random random = new Random(1);
+		byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		for (int size : new int[]{0, 1, 7, 8, 9, 100, 4099})
+		{
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			for (int start = 0; start < 4; start++)
+			{
+				byte[] expected = MaskingKeyTest.expected(mask, data, start);
+				for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+				{
+					for (boolean direct : new boolean[]{false, true})
+					{
+						MaskingKey key = new MaskingKey();
+						key.set(mask);
+						key.having = true;
+						key.masking(new byte[start]);
+						ByteBuffer buf = (direct ? ByteBuffer.allocateDirect(size + 3) : ByteBuffer.allocate(size + 3)).order(order);
+						buf.position(3);
+						buf.put(data);
+						buf.position(3);
+						key.masking(buf);
+						Assertions.assertEquals(3, buf.position());
+						byte[] actual = new byte[size];
+						buf.get(actual);
+						Assertions.assertArrayEquals(expected, actual);
+
+						key = new MaskingKey();
+						key.set(mask);
+						key.having = true;
+						key.masking(new byte[start]);
+						ByteBuffer src = ByteBuffer.wrap(data).order(order);
+						ByteBuffer dst = (direct ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size)).order(ByteOrder.LITTLE_ENDIAN);
+						key.masking(src, dst);
+						Assertions.assertFalse(src.hasRemaining());
+						Assertions.assertFalse(dst.hasRemaining());
+						dst.flip();
+						dst.get(actual);
+						Assertions.assertArrayEquals(expected, actual);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.mve.ws;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class PerMessageDeflateTest
+{
+	@Test
+	public void test0()
+	{
+		// Client side
+		PerMessageDeflate extension = new PerMessageDeflate(0, 6, true, false);
+		Assertions.assertEquals("permessage-deflate; client_max_window_bits; client_no_context_takeover", extension.offer());
+		Deflate deflate = extension.accept("permessage-deflate; server_no_context_takeover; server_max_window_bits=10");
+		Assertions.assertTrue(deflate.compress);
+		Assertions.assertTrue(deflate.deflateReset);
+		Assertions.assertTrue(deflate.inflateReset);
+		deflate = new PerMessageDeflate().accept("permessage-deflate; client_max_window_bits=\"12\"");
+		Assertions.assertFalse(deflate.compress);
+		Assertions.assertFalse(deflate.deflateReset);
+		Assertions.assertFalse(deflate.inflateReset);
+		Assertions.assertThrows(IllegalStateException.class, () -> extension.accept("x-webkit-deflate-frame"));
+		Assertions.assertThrows(IllegalStateException.class, () -> extension.accept("permessage-deflate; client_max_window_bits=16"));
+		Assertions.assertThrows(IllegalStateException.class, () -> extension.accept("permessage-deflate; unknown"));
+		Assertions.assertThrows(IllegalStateException.class, () -> extension.accept("permessage-deflate, permessage-deflate"));
+	}
+
+	@Test
+	public void test1()
+	{
+		// Server side, the first acceptable offer wins
+		PerMessageDeflate extension = new PerMessageDeflate();
+		Assertions.assertNull(extension.negotiate("x-webkit-deflate-frame"));
+		Deflate deflate = extension.negotiate("permessage-deflate; unknown, permessage-deflate; client_max_window_bits; server_no_context_takeover");
+		Assertions.assertNotNull(deflate);
+		Assertions.assertEquals("permessage-deflate; server_no_context_takeover", deflate.header);
+		Assertions.assertTrue(deflate.compress);
+		Assertions.assertTrue(deflate.deflateReset);
+		Assertions.assertFalse(deflate.inflateReset);
+		deflate = extension.negotiate("permessage-deflate; server_max_window_bits=9");
+		Assertions.assertEquals("permessage-deflate; server_max_window_bits=9", deflate.header);
+		Assertions.assertFalse(deflate.compress);
+		Assertions.assertNull(extension.negotiate("permessage-deflate; server_max_window_bits=7"));
+		Assertions.assertNull(extension.negotiate("permessage-deflate; client_no_context_takeover; client_no_context_takeover"));
+		deflate = new PerMessageDeflate(256, 1, true, false).negotiate("permessage-deflate");
+		Assertions.assertEquals("permessage-deflate; client_no_context_takeover", deflate.header);
+		Assertions.assertTrue(deflate.inflateReset);
+	}
+}
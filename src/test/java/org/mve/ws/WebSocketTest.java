@@ -1,15 +1,47 @@
 package org.mve.ws;
 
+import org.mve.BufferPool;
+import org.mve.Flow;
+import org.mve.MemoryBudget;
+import org.mve.OverflowException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.ThrowingSupplier;
 import org.opentest4j.AssertionFailedError;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import javax.management.ObjectName;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class WebSocketTest
 {
@@ -30,12 +62,14 @@ public class WebSocketTest
 	@Test
 	public void test1()
 	{
-		WebSocket ws = new WebSocket("ws://broadcastlv.chat.bilibili.com:2244/sub");
+		EchoServer server = new EchoServer();
+		WebSocket ws = new WebSocket(server.url());
 		while (!ws.finish())
 		{
 			Thread.yield();
 		}
 		ws.close();
+		server.close();
 	}
 
 	@Test
@@ -159,4 +193,1980 @@ public class WebSocketTest
 		client.close();
 		server.close();
 	}
+
+	@Test
+	public void test7() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocketEventLoop loop = new WebSocketEventLoop(2);
+		WebSocket[] sockets = new WebSocket[64];
+		SocketChannel[] clients = new SocketChannel[sockets.length];
+		for (int i = 0; i < sockets.length; i++)
+		{
+			sockets[i] = new WebSocket("ws://127.0.0.1:2244");
+			sockets[i].header(WebSocket.HEADER_SEC_WS_KEY, "H4zkKfpnizOa7DAdcolAeQ==");
+			loop.register(sockets[i]);
+		}
+		String str = "HTTP/1.1 101 Switching Protocols\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Accept: +iT4jCD8ClKUZWP3snmTS9I+4Vw=\r\n\r\n";
+		for (int i = 0; i < clients.length; i++)
+		{
+			clients[i] = server.accept();
+			ByteBuffer buf = ByteBuffer.wrap(str.getBytes());
+			while (buf.hasRemaining())
+				clients[i].write(buf);
+			buf = ByteBuffer.allocate(6);
+			buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY));
+			buf.put((byte) 4);
+			buf.putInt(i);
+			buf.flip();
+			while (buf.hasRemaining())
+				clients[i].write(buf);
+		}
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+		{
+			for (WebSocket ws : sockets)
+			{
+				while (ws.status() != WebSocket.STAT_CONNECTED)
+					Thread.sleep(1);
+			}
+		});
+		int sum = 0;
+		byte[] data = new byte[4];
+		for (WebSocket ws : sockets)
+		{
+			int off = 0;
+			long end = System.currentTimeMillis() + 10000;
+			while (off < 4 && System.currentTimeMillis() < end)
+				off += ws.read(data, off, 4 - off);
+			Assertions.assertEquals(4, off);
+			sum += ByteBuffer.wrap(data).getInt();
+		}
+		Assertions.assertEquals(sockets.length * (sockets.length - 1) / 2, sum);
+		loop.close();
+		for (SocketChannel client : clients)
+			client.close();
+		server.close();
+	}
+
+	@Test
+	public void test8() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop(2);
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, 2, accepted::offer);
+		int port = ((InetSocketAddress) server.address()).getPort();
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + port + "/echo");
+		Assertions.assertTrue(Assertions.assertTimeout(Duration.ofSeconds(2), (ThrowingSupplier<Boolean>) ws::finish));
+		WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (accepted.isEmpty())
+				Thread.sleep(1);
+			return accepted.poll();
+		});
+		Assertions.assertFalse(peer.client());
+		Assertions.assertEquals("/echo", peer.path);
+		byte[] data = "Hello WebSocket".getBytes();
+		ws.write(data, 0, data.length);
+		byte[] buf = new byte[data.length];
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			int off = 0;
+			while (off < buf.length)
+				off += peer.read(buf, off, buf.length - off);
+		});
+		Assertions.assertArrayEquals(data, buf);
+		peer.write(buf, 0, buf.length);
+		Arrays.fill(buf, (byte) 0);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			int off = 0;
+			while (off < buf.length)
+				off += ws.read(buf, off, buf.length - off);
+		});
+		Assertions.assertArrayEquals(data, buf);
+		ws.close();
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test9() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, socket -> {});
+		SocketChannel client = SocketChannel.open(server.address());
+		String str = "GET / HTTP/1.1\r\n" +
+			"Host: 127.0.0.1\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: keep-alive, Upgrade\r\n" +
+			"Sec-WebSocket-Version: 13\r\n" +
+			"Sec-WebSocket-Key: H4zkKfpnizOa7DAdcolAeQ==\r\n\r\n";
+		ByteBuffer buf = ByteBuffer.wrap(str.getBytes());
+		while (buf.hasRemaining())
+			client.write(buf);
+		String resp = "HTTP/1.1 101 Switching Protocols\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Accept: +iT4jCD8ClKUZWP3snmTS9I+4Vw=\r\n\r\n";
+		buf = ByteBuffer.allocate(resp.length());
+		while (buf.hasRemaining())
+			client.read(buf);
+		Assertions.assertEquals(resp, new String(buf.array()));
+		// Client frames must be masked
+		buf = ByteBuffer.allocate(3);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY));
+		buf.put((byte) 1);
+		buf.put((byte) 0x7F);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		buf.clear();
+		ByteBuffer finalBuf = buf;
+		int read = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			int r;
+			do
+			{
+				finalBuf.clear();
+				r = client.read(finalBuf);
+			}
+			while (r >= 0);
+			return r;
+		});
+		Assertions.assertEquals(-1, read);
+		client.close();
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test10() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		ws.header(WebSocket.HEADER_SEC_WS_KEY, "H4zkKfpnizOa7DAdcolAeQ==");
+		ws.blocking(false);
+		Assertions.assertFalse(ws.finish());
+		SocketChannel client = server.accept();
+		// Header split across writes, early frame sent together with the terminator
+		String str1 = "HTTP/1.1 101 Switching Protocols\r\n" +
+			"upgrade: WebSocket\r\n" +
+			"Connection: Up";
+		String str2 = "grade\r\n" +
+			"Sec-WebSocket-Accept:+iT4jCD8ClKUZWP3snmTS9I+4Vw=  \r\n\r\n";
+		ByteBuffer buf = ByteBuffer.wrap(str1.getBytes());
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertFalse(ws.finish());
+		buf = ByteBuffer.allocate(str2.length() + 8);
+		buf.put(str2.getBytes());
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY));
+		buf.put((byte) 2);
+		buf.put((byte) 'O');
+		buf.put((byte) 'K');
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY));
+		buf.put((byte) 2);
+		buf.put((byte) '!');
+		buf.put((byte) '!');
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		ws.blocking(true);
+		Assertions.assertTrue(Assertions.assertTimeout(Duration.ofSeconds(2), (ThrowingSupplier<Boolean>) ws::finish));
+		client.close();
+		byte[] data = new byte[4];
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			int off = 0;
+			while (off < data.length)
+				off += ws.read(data, off, data.length - off);
+		});
+		Assertions.assertArrayEquals("OK!!".getBytes(), data);
+		ws.reset();
+		server.close();
+	}
+
+	private static SocketChannel handshake(ServerSocketChannel server, WebSocket ws) throws Throwable
+	{
+		return WebSocketTest.handshake(server, ws, "");
+	}
+
+	private static SocketChannel handshake(ServerSocketChannel server, WebSocket ws, String headers) throws Throwable
+	{
+		ws.header(WebSocket.HEADER_SEC_WS_KEY, "H4zkKfpnizOa7DAdcolAeQ==");
+		ws.blocking(false);
+		Assertions.assertFalse(ws.finish());
+		SocketChannel client = server.accept();
+		String str = "HTTP/1.1 101 Switching Protocols\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Accept: +iT4jCD8ClKUZWP3snmTS9I+4Vw=\r\n" +
+			headers + "\r\n";
+		ByteBuffer buf = ByteBuffer.wrap(str.getBytes());
+		while (buf.hasRemaining())
+			client.write(buf);
+		ws.blocking(true);
+		Assertions.assertTrue(Assertions.assertTimeout(Duration.ofSeconds(2), (ThrowingSupplier<Boolean>) ws::finish));
+		buf = ByteBuffer.allocate(1);
+		int a = 0, b = 0, c = 0, d = 0;
+		while (a != '\r' || b != '\n' || c != '\r' || d != '\n')
+		{
+			a = b;
+			b = c;
+			c = d;
+			buf.clear();
+			while (buf.hasRemaining())
+				client.read(buf);
+			d = buf.get(0);
+		}
+		return client;
+	}
+
+	private static byte[] frame(SocketChannel client, int opcode) throws Throwable
+	{
+		return WebSocketTest.fragment(client, WebSocket.MASK_FIN | opcode);
+	}
+
+	private static byte[] fragment(SocketChannel client, int first) throws Throwable
+	{
+		ByteBuffer head = ByteBuffer.allocate(2);
+		while (head.hasRemaining())
+			client.read(head);
+		Assertions.assertEquals(first, head.get(0) & 0xFF);
+		Assertions.assertEquals(WebSocket.MASK_MSK, head.get(1) & WebSocket.MASK_MSK);
+		long length = head.get(1) & WebSocket.MASK_LEN;
+		ByteBuffer ext = ByteBuffer.allocate(length == 126 ? 2 : length == 127 ? 8 : 0);
+		while (ext.hasRemaining())
+			client.read(ext);
+		if (length == 126) length = ext.getShort(0) & 0xFFFF;
+		else if (length == 127) length = ext.getLong(0);
+		ByteBuffer mask = ByteBuffer.allocate(4);
+		while (mask.hasRemaining())
+			client.read(mask);
+		ByteBuffer payload = ByteBuffer.allocate((int) length);
+		while (payload.hasRemaining())
+			client.read(payload);
+		byte[] data = payload.array();
+		for (int i = 0; i < data.length; i++)
+			data[i] ^= mask.get(i & 3);
+		return data;
+	}
+
+	// Reads a frame of any kind, returning its opcode
+	private static int skip(SocketChannel client) throws Throwable
+	{
+		ByteBuffer head = ByteBuffer.allocate(14);
+		head.limit(2);
+		while (head.hasRemaining())
+			client.read(head);
+		long length = head.get(1) & WebSocket.MASK_LEN;
+		head.limit(2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + 4);
+		while (head.hasRemaining())
+			client.read(head);
+		if (length == 126) length = head.getShort(2) & 0xFFFF;
+		else if (length == 127) length = head.getLong(2);
+		ByteBuffer payload = ByteBuffer.allocate((int) length);
+		while (payload.hasRemaining())
+			client.read(payload);
+		return head.get(0) & WebSocket.MASK_OPC;
+	}
+
+	@Test
+	public void test11() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		Random random = new Random(0);
+		for (int size : new int[]{10, 125, 126, 300, 65535, 65536, 200000})
+		{
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			// Split into a heap and a direct buffer to exercise the gathering path
+			ByteBuffer direct = ByteBuffer.allocateDirect(size / 3);
+			direct.put(data, size - size / 3, size / 3);
+			direct.flip();
+			ByteBuffer[] bufs = {ByteBuffer.wrap(data, 0, size - size / 3), direct};
+			Thread writer = new Thread(() -> ws.write(bufs));
+			writer.start();
+			Assertions.assertArrayEquals(data, WebSocketTest.frame(client, WebSocket.OPC_BINARY));
+			writer.join();
+			Assertions.assertFalse(bufs[0].hasRemaining());
+			Assertions.assertFalse(bufs[1].hasRemaining());
+		}
+		ByteBuffer small = ByteBuffer.allocate(16);
+		ws.write(new byte[10], 0, 10);
+		while (small.hasRemaining())
+			client.read(small);
+		Assertions.assertEquals(WebSocket.MASK_MSK | 10, small.get(1) & 0xFF);
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test12() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) server.address()).getPort());
+		Assertions.assertTrue(ws.finish());
+		WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (accepted.isEmpty())
+				Thread.sleep(1);
+			return accepted.poll();
+		});
+		byte[] data = new byte[100000];
+		new Random(0).nextBytes(data);
+		Thread writer = new Thread(() ->
+		{
+			ws.write(data, 0, 60000);
+			ws.write(data, 60000, 40000);
+		});
+		writer.start();
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+		{
+			while (direct.hasRemaining())
+				Assertions.assertTrue(peer.read(direct) >= 0);
+		});
+		writer.join();
+		direct.flip();
+		byte[] echo = new byte[data.length];
+		direct.get(echo);
+		Assertions.assertArrayEquals(data, echo);
+		direct.flip();
+		writer = new Thread(() -> peer.write(direct));
+		writer.start();
+		ByteBuffer heap = ByteBuffer.allocate(data.length + 16);
+		heap.position(16);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+		{
+			while (heap.position() < heap.capacity())
+				Assertions.assertTrue(ws.read(heap, 1000) >= 0);
+		});
+		writer.join();
+		Assertions.assertArrayEquals(data, Arrays.copyOfRange(heap.array(), 16, heap.capacity()));
+		ws.close();
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test13() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		MessagePool pool = new MessagePool(4, 65536, false);
+		ws.pool(pool);
+		ws.messaging(true);
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		// Fragmented text message with a ping in between, then a binary message
+		buf.put((byte) WebSocket.OPC_TEXT).put((byte) 3).put("Hel".getBytes());
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_PING)).put((byte) 0);
+		buf.put((byte) WebSocket.OPC_CONTINUE).put((byte) 3).put("lo ".getBytes());
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE)).put((byte) 5).put("World".getBytes());
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 2).put((byte) 1).put((byte) 2);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Message message = ws.readMessage(2000);
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals(WebSocket.OPC_TEXT, message.opcode());
+		Assertions.assertEquals(11, message.length());
+		byte[] text = new byte[message.length()];
+		message.payload().get(text);
+		Assertions.assertEquals("Hello World", new String(text));
+		message.release();
+		Assertions.assertThrows(IllegalStateException.class, message::release);
+		Message binary = ws.readMessage(2000);
+		Assertions.assertSame(message, binary);
+		Assertions.assertEquals(WebSocket.OPC_BINARY, binary.opcode());
+		Assertions.assertEquals(2, binary.length());
+		Assertions.assertEquals(1, binary.payload().get(0));
+		Assertions.assertEquals(2, binary.payload().get(1));
+		binary.release();
+		Assertions.assertEquals(1, pool.size());
+		Assertions.assertArrayEquals(new byte[0], WebSocketTest.frame(client, WebSocket.OPC_PONG));
+
+		ConcurrentLinkedQueue<Message> received = new ConcurrentLinkedQueue<>();
+		ws.handler((socket, msg) -> received.offer(msg));
+		buf.clear();
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 0);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		ws.blocking(false);
+		Assertions.assertNull(ws.readMessage(200));
+		Assertions.assertEquals(1, received.size());
+		Assertions.assertEquals(0, received.peek().length());
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test14() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		ws.sendText("Hello");
+		Assertions.assertArrayEquals("Hello".getBytes(StandardCharsets.UTF_8), WebSocketTest.frame(client, WebSocket.OPC_TEXT));
+		String multi = "h\u00e9llo \u20ac \ud834\udd1e";
+		ws.sendText(multi);
+		Assertions.assertArrayEquals(multi.getBytes(StandardCharsets.UTF_8), WebSocketTest.frame(client, WebSocket.OPC_TEXT));
+		ws.sendText("");
+		Assertions.assertArrayEquals(new byte[0], WebSocketTest.frame(client, WebSocket.OPC_TEXT));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> ws.sendText("a\ud800"));
+		Assertions.assertTrue(ws.writing());
+
+		// Large text is fragmented, the non-ASCII tail goes through the encoder
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 100000)
+			large.append("{\"key\":\"value\"},");
+		large.append("\u00e9\u20ac");
+		Thread writer = new Thread(() -> ws.sendText(large));
+		writer.start();
+		byte[] first = WebSocketTest.fragment(client, WebSocket.OPC_TEXT);
+		byte[] last = WebSocketTest.fragment(client, WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE);
+		writer.join();
+		Assertions.assertEquals(WebSocket.WRITE_CHUNK, first.length);
+		byte[] expected = large.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] actual = Arrays.copyOf(first, first.length + last.length);
+		System.arraycopy(last, 0, actual, first.length, last.length);
+		Assertions.assertArrayEquals(expected, actual);
+
+		// Multibyte sequence split across fragments
+		ws.messaging(true);
+		ws.blocking(false);
+		byte[] data = multi.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.put((byte) WebSocket.OPC_TEXT).put((byte) 2).put(data, 0, 2);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE)).put((byte) (data.length - 2)).put(data, 2, data.length - 2);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Message message = ws.readMessage(2000);
+		Assertions.assertNotNull(message);
+		CharBuffer chars = CharBuffer.allocate(64);
+		Assertions.assertSame(chars, message.text(chars));
+		Assertions.assertEquals(multi, chars.toString());
+		Assertions.assertEquals(0, message.payload().position());
+		message.release();
+
+		// Truncated sequence at the end of the message
+		buf.clear();
+		buf.put((byte) WebSocket.OPC_TEXT).put((byte) 1).put((byte) 'a');
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE)).put((byte) 1).put((byte) 0xC3);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertThrows(IllegalStateException.class, () ->
+		{
+			while (ws.readMessage(2000) == null)
+				Thread.yield();
+		});
+		Assertions.assertFalse(ws.reading());
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test15() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		server.deflate(new PerMessageDeflate());
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) server.address()).getPort());
+		ws.deflate(new PerMessageDeflate(64, 6, false, false));
+		Assertions.assertTrue(ws.finish());
+		WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (accepted.isEmpty())
+				Thread.sleep(1);
+			return accepted.poll();
+		});
+		Assertions.assertTrue(ws.compression());
+		Assertions.assertTrue(peer.compression());
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; json.length() < 200000; i++)
+			json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"price\":").append(i * 7 % 1000).append("},");
+		byte[] data = json.toString().getBytes(StandardCharsets.UTF_8);
+		// Twice to exercise context takeover, then once below the threshold
+		for (int len : new int[]{data.length, data.length, 10})
+		{
+			Thread writer = new Thread(() -> ws.write(data, 0, len));
+			writer.start();
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+			{
+				while (buf.hasRemaining())
+					Assertions.assertTrue(peer.read(buf) >= 0);
+			});
+			writer.join();
+			Assertions.assertArrayEquals(Arrays.copyOf(data, len), buf.array());
+		}
+		ws.messaging(true);
+		peer.sendText(json);
+		Message message = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> ws.readMessage(5000));
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals(json.toString(), message.text(null).toString());
+		message.release();
+		ws.close();
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test16() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		ws.deflate(new PerMessageDeflate());
+		SocketChannel client = WebSocketTest.handshake(server, ws, "Sec-WebSocket-Extensions: permessage-deflate; client_no_context_takeover\r\n");
+		Assertions.assertTrue(ws.compression());
+		byte[] data = new byte[300000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + i % 7);
+		byte[][] payloads = new byte[2][];
+		for (int i = 0; i < payloads.length; i++)
+		{
+			Thread writer = new Thread(() -> ws.write(data, 0, data.length));
+			writer.start();
+			payloads[i] = WebSocketTest.frame(client, WebSocket.MASK_RSV1 | WebSocket.OPC_BINARY);
+			writer.join();
+		}
+		// Without context takeover every message compresses the same way
+		Assertions.assertArrayEquals(payloads[0], payloads[1]);
+		Assertions.assertTrue(payloads[0].length < data.length / 100);
+		byte[] input = Arrays.copyOf(payloads[0], payloads[0].length + 4);
+		input[input.length - 2] = (byte) 0xFF;
+		input[input.length - 1] = (byte) 0xFF;
+		Inflater inflater = new Inflater(true);
+		inflater.setInput(input);
+		byte[] inflated = new byte[data.length];
+		Assertions.assertEquals(data.length, inflater.inflate(inflated));
+		Assertions.assertArrayEquals(data, inflated);
+		inflater.end();
+		// trySend deflates into the queue while the writer role is free
+		Assertions.assertTrue(ws.trySend(data, 0, data.length));
+		ws.flush();
+		Assertions.assertArrayEquals(payloads[0], WebSocketTest.frame(client, WebSocket.MASK_RSV1 | WebSocket.OPC_BINARY));
+		// Text whose encoded bound reaches the threshold is compressed, not only sent past the queue
+		char[] chars = new char[100];
+		Arrays.fill(chars, 'a');
+		ws.sendText(new String(chars));
+		byte[] deflated = WebSocketTest.frame(client, WebSocket.MASK_RSV1 | WebSocket.OPC_TEXT);
+		input = Arrays.copyOf(deflated, deflated.length + 4);
+		input[input.length - 2] = (byte) 0xFF;
+		input[input.length - 1] = (byte) 0xFF;
+		inflater = new Inflater(true);
+		inflater.setInput(input);
+		Assertions.assertEquals(chars.length, inflater.inflate(inflated));
+		inflater.end();
+		// sendAsync leaves deflating to the writer, a frame queued after the message stays behind it
+		CompletableFuture<Void> sent = ws.sendAsync(ByteBuffer.wrap(data));
+		CompletableFuture<Void> after = ws.sendAsync(ByteBuffer.wrap(new byte[]{7}));
+		deflated = WebSocketTest.frame(client, WebSocket.MASK_RSV1 | WebSocket.OPC_BINARY);
+		Assertions.assertArrayEquals(new byte[]{7}, WebSocketTest.frame(client, WebSocket.OPC_BINARY));
+		sent.get(2, TimeUnit.SECONDS);
+		after.get(2, TimeUnit.SECONDS);
+		input = Arrays.copyOf(deflated, deflated.length + 4);
+		input[input.length - 2] = (byte) 0xFF;
+		input[input.length - 1] = (byte) 0xFF;
+		inflater = new Inflater(true);
+		inflater.setInput(input);
+		Assertions.assertEquals(data.length, inflater.inflate(inflated));
+		Assertions.assertArrayEquals(data, inflated);
+		inflater.end();
+
+		// Compressed text split over two fragments with the tail removed
+		byte[] text = "compressed text, compressed text, compressed text".getBytes(StandardCharsets.UTF_8);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(text);
+		byte[] compressed = new byte[128];
+		int len = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH) - 4;
+		deflater.end();
+		ByteBuffer buf = ByteBuffer.allocate(len + 4);
+		buf.put((byte) (WebSocket.MASK_RSV1 | WebSocket.OPC_TEXT)).put((byte) (len / 2)).put(compressed, 0, len / 2);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE)).put((byte) (len - len / 2)).put(compressed, len / 2, len - len / 2);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		ByteBuffer received = ByteBuffer.allocate(text.length);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (received.hasRemaining())
+				Assertions.assertTrue(ws.read(received, 1000) >= 0);
+		});
+		Assertions.assertArrayEquals(text, received.array());
+
+		// RSV1 is only valid on the first frame of a message
+		buf.clear();
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.MASK_RSV1 | WebSocket.OPC_PING)).put((byte) 0);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertThrows(IllegalStateException.class, () -> ws.read(received, 1000));
+		Assertions.assertFalse(ws.reading());
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	private static SSLContext tls() throws Throwable
+	{
+		// Self-signed certificate for localhost and 127.0.0.1, trusted by both ends
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		try (InputStream in = WebSocketTest.class.getResourceAsStream("/localhost.p12"))
+		{
+			store.load(in, "changeit".toCharArray());
+		}
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(store, "changeit".toCharArray());
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(store);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+		return context;
+	}
+
+	@Test
+	public void test17() throws Throwable
+	{
+		SSLContext context = WebSocketTest.tls();
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		server.tls(context);
+		WebSocket ws = new WebSocket("wss://127.0.0.1:" + ((InetSocketAddress) server.address()).getPort() + "/secure");
+		ws.tls(context);
+		byte[] data = new byte[100000];
+		new Random(0).nextBytes(data);
+		// The second connection resumes the session cached by the first
+		for (int i = 0; i < 2; i++)
+		{
+			Assertions.assertTrue(Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), (ThrowingSupplier<Boolean>) ws::finish));
+			WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+			{
+				while (accepted.isEmpty())
+					Thread.sleep(1);
+				return accepted.poll();
+			});
+			Assertions.assertEquals("/secure", peer.path);
+			Assertions.assertTrue(ws.handshakeTime() > 0);
+			Assertions.assertEquals(i == 1, ws.resumed());
+			Assertions.assertNotNull(ws.session());
+			Thread writer = new Thread(() -> ws.write(data, 0, data.length));
+			writer.start();
+			ByteBuffer buf = ByteBuffer.allocate(data.length);
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+			{
+				while (buf.hasRemaining())
+					Assertions.assertTrue(peer.read(buf) >= 0);
+			});
+			writer.join();
+			Assertions.assertArrayEquals(data, buf.array());
+			buf.flip();
+			writer = new Thread(() -> peer.write(buf));
+			writer.start();
+			byte[] echo = new byte[data.length];
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+			{
+				int off = 0;
+				while (off < echo.length)
+					off += ws.read(echo, off, echo.length - off, 1000);
+			});
+			writer.join();
+			Assertions.assertArrayEquals(data, echo);
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> ws.close());
+			Assertions.assertEquals(WebSocket.STAT_CLOSED, ws.status());
+		}
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test18() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) server.address()).getPort());
+		Assertions.assertTrue(ws.finish());
+		WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (accepted.isEmpty())
+				Thread.sleep(1);
+			return accepted.poll();
+		});
+		peer.messaging(true);
+
+		// Concurrent senders share writes, nothing calls flush() under a delay policy
+		ws.policy(FlushPolicy.delay(2, TimeUnit.MILLISECONDS));
+		WebSocketMetrics metrics = new WebSocketMetrics();
+		ws.metrics(metrics);
+		int producers = 4;
+		int count = 500;
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++)
+		{
+			int id = p;
+			threads[p] = new Thread(() ->
+			{
+				ByteBuffer buf = ByteBuffer.allocate(50);
+				for (int i = 0; i < count; i++)
+				{
+					buf.clear();
+					buf.putInt(id).putInt(i);
+					while (buf.hasRemaining())
+						buf.put((byte) (id + i));
+					buf.flip();
+					ws.write(buf);
+				}
+			});
+			threads[p].start();
+		}
+		int[] next = new int[producers];
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+		{
+			for (int n = 0; n < producers * count; n++)
+			{
+				Message message = peer.readMessage(2000);
+				Assertions.assertNotNull(message);
+				ByteBuffer payload = message.payload();
+				Assertions.assertEquals(50, payload.remaining());
+				int id = payload.getInt();
+				Assertions.assertEquals(next[id]++, payload.getInt());
+				while (payload.hasRemaining())
+					Assertions.assertEquals((byte) (id + next[id] - 1), payload.get());
+				message.release();
+			}
+		});
+		for (Thread thread : threads)
+			thread.join();
+		for (int p = 0; p < producers; p++)
+			Assertions.assertEquals(count, next[p]);
+		Assertions.assertTrue(metrics.getWrites() < producers * count / 2, "writes: " + metrics.getWrites());
+
+		// A byte limit holds small messages until flush()
+		ws.policy(FlushPolicy.bytes(1 << 20));
+		ws.write(new byte[]{1, 2, 3}, 0, 3);
+		ws.sendText("queued");
+		Assertions.assertNull(peer.readMessage(200));
+		ws.flush();
+		Message message = peer.readMessage(2000);
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals(3, message.length());
+		message.release();
+		message = peer.readMessage(2000);
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals("queued", message.text(null).toString());
+		message.release();
+
+		// Large messages go after the queued ones
+		byte[] large = new byte[WebSocket.COALESCE_LIMIT + 1];
+		ws.write(new byte[]{4}, 0, 1);
+		ws.write(large, 0, large.length);
+		message = peer.readMessage(2000);
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals(1, message.length());
+		message.release();
+		message = peer.readMessage(2000);
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals(large.length, message.length());
+		message.release();
+		ws.close();
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test19() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_RCVBUF, 8192);
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		// Without an event loop the shared one finishes the stalled queue, with one its own loop, both on OP_WRITE
+		for (int round = 0; round < 2; round++)
+		{
+			WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+			SocketChannel client = WebSocketTest.handshake(server, ws);
+			// A fixed send buffer, autotuning would let the channel take the frame write() has to wait for
+			ws.channel().setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+			if (round == 1)
+			{
+				loop.register(ws);
+				Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+				{
+					// The loop switches the connection to non-blocking before it registers it
+					while (ws.blocking())
+						Thread.sleep(1);
+					Thread.sleep(10);
+				});
+			}
+			ConcurrentLinkedQueue<Boolean> changes = new ConcurrentLinkedQueue<>();
+			ws.writability((socket, writable) -> changes.offer(writable));
+			ws.watermarks(16384, 65536);
+			Assertions.assertThrows(IllegalArgumentException.class, () -> ws.watermarks(10, 10));
+			ByteBuffer buf = ByteBuffer.allocate(1000);
+			int[] sent = new int[1];
+			// The peer does not read, the channel fills and the queue grows to the high watermark
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+			{
+				while (true)
+				{
+					buf.clear();
+					buf.putInt(0, sent[0]);
+					if (!ws.trySend(buf)) break;
+					sent[0]++;
+				}
+			});
+			Assertions.assertFalse(ws.writable());
+			// The channel may have taken a little more since, the queue stays above the low watermark
+			Assertions.assertTrue(ws.queued() > 16384);
+			Assertions.assertEquals(Boolean.FALSE, changes.poll());
+			Assertions.assertNull(changes.poll());
+
+			// write() waits for the queue to drain instead of failing
+			Thread writer = new Thread(() ->
+			{
+				ByteBuffer last = ByteBuffer.allocate(1000);
+				last.putInt(0, -1);
+				ws.write(last);
+			});
+			writer.start();
+			writer.join(100);
+			Assertions.assertTrue(writer.isAlive());
+
+			int count = sent[0];
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+			{
+				for (int i = 0; i < count; i++)
+				{
+					byte[] payload = WebSocketTest.frame(client, WebSocket.OPC_BINARY);
+					Assertions.assertEquals(1000, payload.length);
+					Assertions.assertEquals(i, ByteBuffer.wrap(payload).getInt());
+				}
+				Assertions.assertEquals(-1, ByteBuffer.wrap(WebSocketTest.frame(client, WebSocket.OPC_BINARY)).getInt());
+				writer.join();
+			});
+			Assertions.assertTrue(ws.writable());
+			Assertions.assertEquals(Boolean.TRUE, changes.poll());
+			Assertions.assertEquals(0, ws.queued());
+			ws.reset();
+			client.close();
+		}
+		loop.close();
+		server.close();
+	}
+
+	@Test
+	public void test20() throws Throwable
+	{
+		// Both ends borrow from one pool and give everything back once closed
+		BufferPool pool = new BufferPool(4, 64);
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		server.buffers(pool);
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) server.address()).getPort());
+		ws.buffers(pool);
+		Assertions.assertSame(pool, ws.buffers());
+		Assertions.assertEquals(0, pool.outstanding());
+		Assertions.assertTrue(ws.finish());
+		WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (accepted.isEmpty())
+				Thread.sleep(1);
+			return accepted.poll();
+		});
+		Assertions.assertTrue(pool.outstanding() > 0);
+		byte[] data = new byte[100000];
+		new Random(0).nextBytes(data);
+		for (int i = 0; i < 2; i++)
+		{
+			Thread writer = new Thread(() -> ws.write(data, 0, data.length));
+			writer.start();
+			ByteBuffer buf = ByteBuffer.allocate(data.length);
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+			{
+				while (buf.hasRemaining())
+					Assertions.assertTrue(peer.read(buf) >= 0);
+			});
+			writer.join();
+			Assertions.assertArrayEquals(data, buf.array());
+			buf.flip();
+			peer.write(buf);
+			byte[] echo = new byte[data.length];
+			Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+			{
+				int off = 0;
+				while (off < echo.length)
+					off += ws.read(echo, off, echo.length - off, 1000);
+			});
+			Assertions.assertArrayEquals(data, echo);
+		}
+		// The second round is served from the pool
+		Assertions.assertTrue(pool.hits() > 0);
+
+		// Switching pools gives the held buffers back to the one they came from
+		BufferPool other = new BufferPool(4, 64);
+		long held = pool.outstanding();
+		ws.buffers(other);
+		Assertions.assertTrue(other.outstanding() > 0);
+		Assertions.assertEquals(held - other.outstanding(), pool.outstanding());
+		peer.write(data, 0, 10);
+		Assertions.assertEquals(10, ws.read(new byte[10], 0, 10, 1000));
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> ws.close());
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+		{
+			while (peer.status() != WebSocket.STAT_CLOSED)
+				Thread.sleep(1);
+		});
+		Assertions.assertEquals(0, pool.outstanding());
+		Assertions.assertEquals(0, other.outstanding());
+		server.close();
+		loop.close();
+	}
+
+	@Test
+	public void test21() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		Assertions.assertThrows(IllegalArgumentException.class, () -> ws.limits(0, 1));
+		ws.limits(1000, 4096);
+		Assertions.assertEquals(1000, ws.messageLimit());
+		Assertions.assertEquals(4096, ws.bufferLimit());
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		// Fragments add up past the message limit, the first one is still delivered
+		ByteBuffer buf = ByteBuffer.allocate(1300);
+		buf.put((byte) WebSocket.OPC_BINARY).put((byte) 126).putShort((short) 600).put(new byte[600]);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE)).put((byte) 126).putShort((short) 600).put(new byte[600]);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		ByteBuffer read = ByteBuffer.allocate(2000);
+		Assertions.assertEquals(600, ws.read(read, 2000));
+		Assertions.assertEquals(0, ws.held());
+		Assertions.assertThrows(OverflowException.class, () -> ws.read(read, 2000));
+		Assertions.assertArrayEquals(new byte[]{0x03, (byte) 0xF1}, WebSocketTest.frame(client, WebSocket.OPC_CLOSE));
+		Assertions.assertEquals(WebSocket.STAT_CLOSED, ws.status());
+		client.close();
+
+		// A single frame larger than the connection may hold, announced with a 64-bit length
+		ws.limits(Long.MAX_VALUE, 4096);
+		client = WebSocketTest.handshake(server, ws);
+		buf.clear();
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 127).putLong(1L << 40);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertThrows(OverflowException.class, () -> ws.read(read, 2000));
+		Assertions.assertArrayEquals(new byte[]{0x03, (byte) 0xF1}, WebSocketTest.frame(client, WebSocket.OPC_CLOSE));
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test22() throws Throwable
+	{
+		// Connections sharing a budget pause while it is used up and resume once messages are taken
+		MemoryBudget budget = new MemoryBudget(3000);
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		int port = ((InetSocketAddress) server.address()).getPort();
+		WebSocketEventLoop reader = new WebSocketEventLoop();
+		WebSocket[] clients = new WebSocket[2];
+		WebSocket[] peers = new WebSocket[2];
+		for (int i = 0; i < 2; i++)
+		{
+			WebSocket ws = clients[i] = new WebSocket("ws://127.0.0.1:" + port);
+			ws.budget(budget);
+			Assertions.assertSame(budget, ws.budget());
+			ws.limits(10000, 3000);
+			ws.messaging(true);
+			Assertions.assertTrue(ws.finish());
+			peers[i] = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+			{
+				while (accepted.isEmpty())
+					Thread.sleep(1);
+				return accepted.poll();
+			});
+			reader.register(ws);
+		}
+		byte[] data = new byte[2000];
+		peers[0].write(data, 0, data.length);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (clients[0].held() != 2000)
+				Thread.sleep(1);
+		});
+		peers[1].write(data, 0, data.length);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (!clients[1].paused())
+				Thread.sleep(1);
+		});
+		Assertions.assertEquals(2000, budget.used());
+		Assertions.assertEquals(0, clients[1].held());
+		Message message = clients[0].readMessage(2000);
+		Assertions.assertEquals(2000, message.length());
+		message.release();
+		message = clients[1].readMessage(2000);
+		Assertions.assertNotNull(message);
+		Assertions.assertEquals(2000, message.length());
+		message.release();
+		Assertions.assertEquals(0, budget.used());
+
+		// The second message does not fit next to the first one on the same connection
+		peers[0].write(data, 0, data.length);
+		peers[0].write(data, 0, data.length);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (!clients[0].paused())
+				Thread.sleep(1);
+		});
+		Assertions.assertEquals(2000, clients[0].held());
+		for (int i = 0; i < 2; i++)
+		{
+			message = clients[0].readMessage(2000);
+			Assertions.assertNotNull(message);
+			message.release();
+		}
+		Assertions.assertFalse(clients[0].paused());
+		for (WebSocket ws : clients)
+			ws.reset();
+		Assertions.assertEquals(0, budget.used());
+		server.close();
+		reader.close();
+		loop.close();
+	}
+
+	@Test
+	public void test23() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2244));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2244");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		// Streamed frames are limited by the message limit only
+		ws.limits(Long.MAX_VALUE, 4096);
+		ConcurrentLinkedQueue<Object[]> chunks = new ConcurrentLinkedQueue<>();
+		long[] received = new long[1];
+		ws.stream((socket, opcode, chunk, last) ->
+		{
+			Assertions.assertTrue(chunk.remaining() <= WebSocket.READ_CHUNK);
+			byte[] data = new byte[chunk.remaining()];
+			chunk.get(data);
+			chunks.offer(new Object[]{opcode, data, last});
+			received[0] += data.length;
+		});
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		loop.register(ws);
+
+		byte[] data = new byte[200000];
+		new Random(0).nextBytes(data);
+		ByteBuffer buf = ByteBuffer.allocate(data.length + 32);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 127).putLong(data.length).put(data);
+		buf.put((byte) WebSocket.OPC_TEXT).put((byte) 3).put("Hel".getBytes());
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CONTINUE)).put((byte) 2).put("lo".getBytes());
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+		{
+			while (received[0] < data.length + 5)
+				Thread.sleep(1);
+		});
+		ByteBuffer binary = ByteBuffer.allocate(data.length);
+		Object[] chunk;
+		while (binary.hasRemaining())
+		{
+			chunk = chunks.poll();
+			Assertions.assertEquals(WebSocket.OPC_BINARY, chunk[0]);
+			binary.put((byte[]) chunk[1]);
+			Assertions.assertEquals(!binary.hasRemaining(), chunk[2]);
+		}
+		Assertions.assertArrayEquals(data, binary.array());
+		StringBuilder text = new StringBuilder();
+		while ((chunk = chunks.poll()) != null)
+		{
+			Assertions.assertEquals(WebSocket.OPC_TEXT, chunk[0]);
+			text.append(new String((byte[]) chunk[1], StandardCharsets.UTF_8));
+			Assertions.assertEquals(text.length() == 5, chunk[2]);
+		}
+		Assertions.assertEquals("Hello", text.toString());
+		Assertions.assertEquals(0, ws.held());
+
+		// A frame past 4 GB is delivered as it arrives
+		received[0] = 0;
+		buf.clear();
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 127).putLong((1L << 32) + 5).put(data);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+		{
+			while (received[0] < data.length)
+				Thread.sleep(1);
+		});
+		while ((chunk = chunks.poll()) != null)
+			Assertions.assertEquals(Boolean.FALSE, chunk[2]);
+		Assertions.assertTrue(ws.reading());
+		loop.close();
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test24() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2245));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2245");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		// A quiet connection puts the reader to sleep until the timeout
+		byte[] buf = new byte[16];
+		long cpu = threads.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		Assertions.assertEquals(0, ws.read(buf, 0, buf.length, 300));
+		Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(290));
+		Assertions.assertTrue(threads.getCurrentThreadCpuTime() - cpu < TimeUnit.MILLISECONDS.toNanos(100));
+
+		// Non-blocking reads without a timeout return at once
+		ws.blocking(false);
+		start = System.nanoTime();
+		Assertions.assertEquals(0, ws.read(buf, 0, buf.length));
+		Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+		ws.blocking(true);
+
+		// A header split across writes wakes the blocked reader up twice
+		ws.messaging(true);
+		long[] used = new long[1];
+		Message[] received = new Message[1];
+		Thread reader = new Thread(() ->
+		{
+			long begin = threads.getCurrentThreadCpuTime();
+			received[0] = ws.readMessage();
+			used[0] = threads.getCurrentThreadCpuTime() - begin;
+		});
+		reader.start();
+		Thread.sleep(200);
+		client.write(ByteBuffer.wrap(new byte[]{(byte) (WebSocket.MASK_FIN | WebSocket.OPC_TEXT)}));
+		Thread.sleep(200);
+		client.write(ByteBuffer.wrap(new byte[]{5, 'H', 'e', 'l', 'l', 'o'}));
+		reader.join(2000);
+		Assertions.assertFalse(reader.isAlive());
+		byte[] text = new byte[received[0].length()];
+		received[0].payload().get(text);
+		Assertions.assertEquals("Hello", new String(text));
+		Assertions.assertTrue(used[0] < TimeUnit.MILLISECONDS.toNanos(100));
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test25() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2246));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2246");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<>();
+		CountDownLatch closed = new CountDownLatch(1);
+		ws.listener(new WebSocket.Listener()
+		{
+			@Override
+			public void onText(WebSocket socket, Message message)
+			{
+				byte[] text = new byte[message.length()];
+				message.payload().get(text);
+				message.release();
+				events.offer(Thread.currentThread().getName().startsWith("WebSocketEventLoop") + " text " + new String(text));
+			}
+
+			@Override
+			public void onBinary(WebSocket socket, Message message)
+			{
+				events.offer("binary " + message.length());
+				message.release();
+				throw new IllegalStateException("binary");
+			}
+
+			@Override
+			public void onPing(WebSocket socket, ByteBuffer payload)
+			{
+				events.offer("ping " + StandardCharsets.UTF_8.decode(payload));
+			}
+
+			@Override
+			public void onPong(WebSocket socket, ByteBuffer payload)
+			{
+				events.offer("pong " + StandardCharsets.UTF_8.decode(payload));
+			}
+
+			@Override
+			public void onClose(WebSocket socket, int code, String reason)
+			{
+				events.offer("close " + code + " " + reason);
+				closed.countDown();
+			}
+
+			@Override
+			public void onError(WebSocket socket, Throwable error)
+			{
+				events.offer("error " + error.getMessage());
+			}
+		});
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		loop.register(ws);
+
+		// Callbacks run on the loop thread, in the order the frames arrived
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_TEXT)).put((byte) 2).put("Hi".getBytes());
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_PING)).put((byte) 1).put((byte) 'p');
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 2).put((byte) 1).put((byte) 2);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_PONG)).put((byte) 1).put((byte) 'q');
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CLOSE)).put((byte) 5).putShort((short) 1000).put("bye".getBytes());
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+		Assertions.assertTrue(closed.await(2, TimeUnit.SECONDS));
+		Assertions.assertArrayEquals(new String[]{"true text Hi", "ping p", "binary 2", "error binary", "pong q", "close 1000 bye"}, events.toArray());
+		loop.close();
+		ws.reset();
+		client.close();
+
+		// Offloaded callbacks keep the order of each connection, a slow one does not hold up the other
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		WebSocket[] sockets = new WebSocket[2];
+		SocketChannel[] clients = new SocketChannel[2];
+		ConcurrentLinkedQueue<Integer> slow = new ConcurrentLinkedQueue<>();
+		ConcurrentLinkedQueue<Integer> fast = new ConcurrentLinkedQueue<>();
+		CountDownLatch lost = new CountDownLatch(2);
+		for (int i = 0; i < 2; i++)
+		{
+			sockets[i] = new WebSocket("ws://127.0.0.1:2246");
+			clients[i] = WebSocketTest.handshake(server, sockets[i]);
+			ConcurrentLinkedQueue<Integer> order = i == 0 ? slow : fast;
+			sockets[i].listener(new WebSocket.Listener()
+			{
+				@Override
+				public void onBinary(WebSocket socket, Message message)
+				{
+					if (Thread.currentThread().getName().startsWith("WebSocketEventLoop"))
+						order.offer(-1);
+					else if (order == slow && order.isEmpty())
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(500));
+					order.offer((int) message.payload().get());
+					message.release();
+				}
+
+				@Override
+				public void onClose(WebSocket socket, int code, String reason)
+				{
+					if (code == WebSocket.CLOSE_ABNORMAL) lost.countDown();
+				}
+			}, executor);
+		}
+		loop = new WebSocketEventLoop();
+		loop.register(sockets[0]);
+		loop.register(sockets[1]);
+		buf = ByteBuffer.allocate(100 * 3);
+		for (int i = 0; i < 100; i++)
+			buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 1).put((byte) i);
+		for (SocketChannel channel : clients)
+		{
+			buf.flip();
+			while (buf.hasRemaining())
+				channel.write(buf);
+		}
+		long start = System.nanoTime();
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (fast.size() < 100)
+				Thread.sleep(1);
+		});
+		Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (slow.size() < 100)
+				Thread.sleep(1);
+		});
+		Integer[] expected = new Integer[100];
+		for (int i = 0; i < 100; i++)
+			expected[i] = i;
+		Assertions.assertArrayEquals(expected, slow.toArray());
+		Assertions.assertArrayEquals(expected, fast.toArray());
+
+		// Losing the connection without a close frame is reported as 1006
+		clients[0].close();
+		clients[1].close();
+		Assertions.assertTrue(lost.await(2, TimeUnit.SECONDS));
+		loop.close();
+		executor.shutdown();
+		server.close();
+	}
+
+	@Test
+	public void test26() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		ConcurrentLinkedQueue<WebSocket> accepted = new ConcurrentLinkedQueue<>();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, accepted::offer);
+		int port = ((InetSocketAddress) server.address()).getPort();
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + port);
+		Assertions.assertSame(ws, ws.connectAsync(loop).get(2, TimeUnit.SECONDS));
+		Assertions.assertEquals(WebSocket.STAT_CONNECTED, ws.status());
+		WebSocket peer = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (accepted.isEmpty())
+				Thread.sleep(1);
+			return accepted.poll();
+		});
+
+		// Messages are taken in order by chained receives while the sends complete on their own
+		ConcurrentLinkedQueue<Integer> received = new ConcurrentLinkedQueue<>();
+		CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+		for (int i = 0; i < 100; i++)
+		{
+			chain = chain.thenCompose(v -> peer.receiveAsync()).thenAccept(message ->
+			{
+				received.offer((int) message.payload().get());
+				message.release();
+			});
+		}
+		CompletableFuture<?>[] sends = new CompletableFuture<?>[100];
+		for (int i = 0; i < 100; i++)
+			sends[i] = ws.sendAsync(ByteBuffer.wrap(new byte[]{(byte) i}));
+		CompletableFuture.allOf(sends).get(2, TimeUnit.SECONDS);
+		chain.get(2, TimeUnit.SECONDS);
+		Integer[] expected = new Integer[100];
+		for (int i = 0; i < 100; i++)
+			expected[i] = i;
+		Assertions.assertArrayEquals(expected, received.toArray());
+
+		// A message too large to queue is framed from the buffer by the writer, a fragment at a time
+		CompletableFuture<Message> large = peer.receiveAsync();
+		CompletableFuture<Void> sent = ws.sendAsync(ByteBuffer.allocate(1 << 20));
+		Message message = large.get(2, TimeUnit.SECONDS);
+		Assertions.assertEquals(1 << 20, message.payload().remaining());
+		message.release();
+		sent.get(2, TimeUnit.SECONDS);
+		Assertions.assertEquals(0, ws.queued());
+
+		// Nothing to receive once the peer closed
+		CompletableFuture<Message> pending = ws.receiveAsync();
+		peer.close();
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> pending.get(2, TimeUnit.SECONDS));
+		Assertions.assertTrue(e.getCause() instanceof ClosedChannelException);
+		server.close();
+		loop.close();
+
+		// A refused connection fails the future
+		WebSocket refused = new WebSocket("ws://127.0.0.1:" + port);
+		e = Assertions.assertThrows(ExecutionException.class, () -> refused.connectAsync().get(2, TimeUnit.SECONDS));
+		Assertions.assertNotNull(e.getCause());
+	}
+
+	@Test
+	public void test27() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2247));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2247");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+
+		// The peer never reads, more is queued than the socket buffers can take
+		BufferPool pool = new BufferPool(0, 0);
+		ws.buffers(pool);
+		CompletableFuture<Void> stuck = null;
+		for (int i = 0; i < 8192; i++)
+			stuck = ws.sendAsync(ByteBuffer.allocate(WebSocket.COALESCE_LIMIT));
+		Assertions.assertFalse(stuck.isDone());
+		// Past the high watermark the frames wait in the caller's buffers, not copied into the queue
+		Assertions.assertTrue(ws.queued() > 8192L * WebSocket.COALESCE_LIMIT / 2);
+		Assertions.assertTrue(pool.outstanding() < 1 << 20);
+		CompletableFuture<Void> timed = ws.sendAsync(ByteBuffer.allocate(16), 100);
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> timed.get(2, TimeUnit.SECONDS));
+		Assertions.assertTrue(e.getCause() instanceof TimeoutException);
+		CompletableFuture<Void> cancelled = ws.sendAsync(ByteBuffer.allocate(16));
+		Assertions.assertTrue(cancelled.cancel(false));
+		Assertions.assertTrue(cancelled.isCancelled());
+
+		// Frames still queued fail with the connection
+		ws.reset();
+		e = Assertions.assertThrows(ExecutionException.class, stuck::get);
+		Assertions.assertTrue(e.getCause() instanceof ClosedChannelException);
+		Assertions.assertTrue(ws.sendAsync(ByteBuffer.allocate(1)).isCompletedExceptionally());
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test28() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2248));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2248");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		ConcurrentLinkedQueue<Integer> received = new ConcurrentLinkedQueue<>();
+		Flow.Subscription[] subscription = new Flow.Subscription[1];
+		CountDownLatch completed = new CountDownLatch(1);
+		new MessagePublisher(ws).subscribe(new Flow.Subscriber<Message>()
+		{
+			@Override
+			public void onSubscribe(Flow.Subscription s)
+			{
+				subscription[0] = s;
+				s.request(2);
+			}
+
+			@Override
+			public void onNext(Message message)
+			{
+				received.offer((int) message.payload().get());
+				message.release();
+			}
+
+			@Override
+			public void onError(Throwable throwable)
+			{
+			}
+
+			@Override
+			public void onComplete()
+			{
+				completed.countDown();
+			}
+		});
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		loop.register(ws);
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		for (int i = 0; i < 10; i++)
+			buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY)).put((byte) 1).put((byte) i);
+		buf.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CLOSE)).put((byte) 0);
+		buf.flip();
+		while (buf.hasRemaining())
+			client.write(buf);
+
+		// Only what was requested is read, then the connection waits for demand
+		Thread.sleep(200);
+		Assertions.assertEquals(2, received.size());
+		Assertions.assertTrue(ws.paused());
+		subscription[0].request(3);
+		Thread.sleep(200);
+		Assertions.assertEquals(5, received.size());
+		subscription[0].request(Long.MAX_VALUE);
+		Assertions.assertTrue(completed.await(2, TimeUnit.SECONDS));
+		Assertions.assertArrayEquals(new Integer[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, received.toArray());
+		loop.close();
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test29() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2249));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2249");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+
+		// Buffers are asked for one at a time as the queue has room
+		ConcurrentLinkedQueue<Long> requests = new ConcurrentLinkedQueue<>();
+		int[] emitted = new int[1];
+		Flow.Publisher<ByteBuffer> publisher = subscriber -> subscriber.onSubscribe(new Flow.Subscription()
+		{
+			@Override
+			public void request(long n)
+			{
+				requests.offer(n);
+				if (emitted[0] == 50) return;
+				ByteBuffer buf = ByteBuffer.allocate(100);
+				buf.put(0, (byte) emitted[0]++);
+				subscriber.onNext(buf);
+				if (emitted[0] == 50) subscriber.onComplete();
+			}
+
+			@Override
+			public void cancel()
+			{
+			}
+		});
+		publisher.subscribe(new MessageSubscriber(ws));
+		for (long n : requests)
+			Assertions.assertEquals(1, n);
+
+		// Client frames carry a masking key
+		ByteBuffer buf = ByteBuffer.allocate(106);
+		for (int i = 0; i < 50; i++)
+		{
+			buf.clear();
+			while (buf.hasRemaining())
+				client.read(buf);
+			Assertions.assertEquals((byte) (WebSocket.MASK_FIN | WebSocket.OPC_BINARY), buf.get(0));
+			Assertions.assertEquals(100 | WebSocket.MASK_MSK, buf.get(1) & 0xFF);
+		}
+		// Completing sends the close frame
+		buf.clear();
+		buf.limit(1);
+		while (buf.hasRemaining())
+			client.read(buf);
+		Assertions.assertEquals((byte) (WebSocket.MASK_FIN | WebSocket.OPC_CLOSE), buf.get(0));
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test30() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2250));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2250");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		Assertions.assertEquals(-1, ws.rtt());
+		ws.keepalive(100, 300);
+
+		// The peer answers the first ping with its payload, the reader takes the round trip from the pong
+		ByteBuffer ping = ByteBuffer.allocate(14);
+		while (ping.hasRemaining())
+			client.read(ping);
+		Assertions.assertEquals((byte) (WebSocket.MASK_FIN | WebSocket.OPC_PING), ping.get(0));
+		Assertions.assertEquals(8 | WebSocket.MASK_MSK, ping.get(1) & 0xFF);
+		ByteBuffer pong = ByteBuffer.allocate(10);
+		pong.put((byte) (WebSocket.MASK_FIN | WebSocket.OPC_PONG));
+		pong.put((byte) 8);
+		for (int i = 0; i < 8; i++)
+			pong.put((byte) (ping.get(6 + i) ^ ping.get(2 + (i & 3))));
+		pong.flip();
+		client.write(pong);
+		byte[] buf = new byte[16];
+		Assertions.assertEquals(0, ws.read(buf, 0, buf.length, 200));
+		Assertions.assertTrue(ws.rtt() > 0);
+
+		// The next ping is left unanswered, the blocked reader gives up with the connection
+		long start = System.nanoTime();
+		Throwable t = Assertions.assertThrows(SocketTimeoutException.class, () -> ws.read(buf, 0, buf.length, 5000));
+		Assertions.assertEquals("Keepalive timeout", t.getMessage());
+		Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		Assertions.assertFalse(ws.reading());
+		ws.reset();
+		client.close();
+
+		// Nothing arrives for the idle timeout
+		WebSocket idle = new WebSocket("ws://127.0.0.1:2250");
+		client = WebSocketTest.handshake(server, idle);
+		idle.idleTimeout(200);
+		start = System.nanoTime();
+		t = Assertions.assertThrows(SocketTimeoutException.class, () -> idle.read(buf, 0, buf.length, 5000));
+		Assertions.assertEquals("Idle timeout", t.getMessage());
+		Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+		idle.reset();
+		client.close();
+
+		// The peer never answers our close frame
+		WebSocket closing = new WebSocket("ws://127.0.0.1:2250");
+		client = WebSocketTest.handshake(server, closing);
+		closing.closeTimeout(200);
+		closing.shutdown(false);
+		t = Assertions.assertThrows(SocketTimeoutException.class, () -> closing.read(buf, 0, buf.length, 5000));
+		Assertions.assertEquals("Close timeout", t.getMessage());
+		closing.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test31() throws Throwable
+	{
+		// A client that never sends its handshake is dropped by the server
+		WebSocketEventLoop loop = new WebSocketEventLoop();
+		WebSocketServer server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0), loop, socket -> {});
+		server.handshakeTimeout(200);
+		int port = ((InetSocketAddress) server.address()).getPort();
+		try (Socket silent = new Socket("127.0.0.1", port))
+		{
+			silent.setSoTimeout(5000);
+			long start = System.nanoTime();
+			Assertions.assertEquals(-1, silent.getInputStream().read());
+			Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+		}
+		server.close();
+
+		// A server that never answers fails the connect
+		ServerSocketChannel mute = ServerSocketChannel.open();
+		mute.bind(new InetSocketAddress("127.0.0.1", 0));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:" + ((InetSocketAddress) mute.getLocalAddress()).getPort());
+		CompletableFuture<WebSocket> future = ws.connectAsync(loop, 200);
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(e.getCause() instanceof SocketTimeoutException);
+		Assertions.assertEquals(WebSocket.STAT_CLOSED, ws.status());
+		mute.close();
+		loop.close();
+	}
+
+	@Test
+	public void test32() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2251));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2251");
+		WebSocketMetrics metrics = new WebSocketMetrics().register("test32");
+		ws.metrics(metrics);
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		Assertions.assertEquals(1, metrics.getHandshakes());
+		Assertions.assertTrue(metrics.getHandshakeMax() > 0);
+
+		// Two text messages and a ping in, the second message split over two writes
+		ws.messaging(true);
+		client.write(ByteBuffer.wrap(new byte[]{(byte) 0x81, 2, 'h', 'i', (byte) 0x89, 0}));
+		Message message = ws.readMessage();
+		Assertions.assertEquals(2, message.length());
+		message.release();
+		client.write(ByteBuffer.wrap(new byte[]{(byte) 0x81, 5, 'h', 'e'}));
+		Assertions.assertNull(ws.readMessage(100));
+		client.write(ByteBuffer.wrap(new byte[]{'l', 'l', 'o'}));
+		message = ws.readMessage();
+		Assertions.assertEquals(5, message.length());
+		message.release();
+		Assertions.assertEquals(3, metrics.getFramesIn());
+		Assertions.assertEquals(2, metrics.getFramesInByOpcode()[WebSocket.OPC_TEXT]);
+		Assertions.assertEquals(1, metrics.getFramesInByOpcode()[WebSocket.OPC_PING]);
+		Assertions.assertEquals(7, metrics.getBytesIn());
+		Assertions.assertTrue(metrics.getPartialReads() >= 1);
+		Assertions.assertEquals(2, metrics.getDeliveries());
+		Assertions.assertTrue(metrics.getDeliveryMax() >= TimeUnit.MILLISECONDS.toNanos(90));
+
+		// The pong and a binary frame out
+		ws.write(new byte[300], 0, 300);
+		Assertions.assertEquals(2, metrics.getFramesOut());
+		Assertions.assertEquals(1, metrics.getFramesOutByOpcode()[WebSocket.OPC_PONG]);
+		Assertions.assertEquals(300, metrics.getBytesOutByOpcode()[WebSocket.OPC_BINARY]);
+		Assertions.assertTrue(metrics.getReads() >= 3);
+		Assertions.assertTrue(metrics.getWrites() >= 2);
+		Assertions.assertEquals(0, metrics.getQueuedBytes());
+
+		// Published over JMX, and nothing is recorded without metrics
+		ObjectName name = new ObjectName("org.mve.ws:type=WebSocketMetrics,name=\"test32\"");
+		Assertions.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "FramesIn"));
+		ws.metrics(null);
+		client.write(ByteBuffer.wrap(new byte[]{(byte) 0x81, 0}));
+		ws.readMessage().release();
+		Assertions.assertEquals(3, metrics.getFramesIn());
+		metrics.unregister();
+		Assertions.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test33() throws Throwable
+	{
+		// Text and binary come back as they went
+		EchoServer echo = new EchoServer();
+		WebSocket ws = new WebSocket(echo.url());
+		Assertions.assertTrue(ws.finish());
+		ws.messaging(true);
+		ws.sendText("echo");
+		Message message = ws.readMessage();
+		Assertions.assertEquals(WebSocket.OPC_TEXT, message.opcode());
+		Assertions.assertEquals("echo", message.text(null).toString());
+		message.release();
+		byte[] data = new byte[70000];
+		new Random(33).nextBytes(data);
+		ws.write(data, 0, data.length);
+		message = ws.readMessage();
+		Assertions.assertEquals(ByteBuffer.wrap(data), message.payload());
+		message.release();
+		ws.close();
+		echo.close();
+
+		// The firehose keeps sending stamped messages of its size
+		EchoServer firehose = new EchoServer(new InetSocketAddress("127.0.0.1", 0), 1, EchoServer.FIREHOSE, 64);
+		ws = new WebSocket(firehose.url());
+		Assertions.assertTrue(ws.finish());
+		ws.messaging(true);
+		for (int i = 0; i < 1000; i++)
+		{
+			message = ws.readMessage();
+			Assertions.assertEquals(64, message.length());
+			Assertions.assertTrue(message.payload().getLong(0) <= System.nanoTime());
+			message.release();
+		}
+		ws.reset();
+		firehose.close();
+
+		// Closed loop and paced runs against a peer of their own
+		LoadGenerator generator = new LoadGenerator(null).clients(4).size(16).window(2).threads(1);
+		generator.run(100, 300, null);
+		Assertions.assertTrue(generator.received() > 0);
+		Assertions.assertEquals(generator.received(), generator.latency().count());
+		Assertions.assertTrue(generator.latency().percentile(0.99) > 0);
+		Assertions.assertTrue(generator.report().contains("p999="));
+		generator = new LoadGenerator(null).clients(2).size(4).rate(1000).threads(1);
+		generator.run(100, 300, null);
+		Assertions.assertTrue(generator.received() > 300, String.valueOf(generator.received()));
+		Assertions.assertEquals(0, generator.dropped());
+	}
+
+	@Test
+	public void test34() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2252));
+		// A fixed receive buffer, the kernel would otherwise grow it as the peer reads
+		server.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2252");
+		SocketChannel client = WebSocketTest.handshake(server, ws);
+		ws.messaging(true);
+
+		// A pong is sent right away, its payload read apart from the data buffers
+		client.write(ByteBuffer.wrap(new byte[]{(byte) 0x89, 3, 'o', 'n', 'e'}));
+		Assertions.assertNull(ws.readMessage(100));
+		Assertions.assertArrayEquals("one".getBytes(), WebSocketTest.frame(client, WebSocket.OPC_PONG));
+
+		// A writer blocked on a full channel does not hold the reader up, the pings arriving meanwhile get one pong
+		// for the last of them, sent after the frame being written and before the frames queued behind it
+		CompletableFuture<Void> writing = CompletableFuture.runAsync(() -> ws.write(ByteBuffer.allocate(32 << 20)));
+		Thread.sleep(100);
+		ws.sendAsync(ByteBuffer.allocate(10));
+		byte[] payload = new byte[125];
+		ByteBuffer pings = ByteBuffer.allocate(3 * 127);
+		for (int i = 0; i < 3; i++)
+		{
+			payload[0] = (byte) ('a' + i);
+			pings.put(new byte[]{(byte) 0x89, 125}).put(payload);
+		}
+		pings.flip();
+		client.write(pings);
+		Assertions.assertNull(ws.readMessage(200));
+		Assertions.assertFalse(writing.isDone());
+		CompletableFuture<String> read = CompletableFuture.supplyAsync(() ->
+		{
+			// Opcodes of the frames until the text frame that ends the test, and the first byte of each pong
+			StringBuilder frames = new StringBuilder();
+			ByteBuffer head = ByteBuffer.allocate(14);
+			ByteBuffer data = ByteBuffer.allocate(65536);
+			try
+			{
+				while (true)
+				{
+					head.clear();
+					head.limit(2);
+					while (head.hasRemaining()) client.read(head);
+					int opcode = head.get(0) & WebSocket.MASK_OPC;
+					long length = head.get(1) & WebSocket.MASK_LEN;
+					head.limit(2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + 4);
+					while (head.hasRemaining()) client.read(head);
+					if (length == 126) length = head.getShort(2) & 0xFFFF;
+					else if (length == 127) length = head.getLong(2);
+					frames.append(opcode);
+					while (length > 0)
+					{
+						data.clear();
+						data.limit((int) Math.min(length, data.capacity()));
+						length -= client.read(data);
+					}
+					if (opcode == WebSocket.OPC_PONG) frames.append((char) (data.get(0) ^ head.get(head.limit() - 4)));
+					if (opcode == WebSocket.OPC_TEXT) return frames.toString();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		});
+		writing.get(10, TimeUnit.SECONDS);
+		ws.flush();
+		ws.sendText("end");
+		Assertions.assertEquals("2" + WebSocket.OPC_PONG + "c21", read.get(10, TimeUnit.SECONDS));
+
+		// A batch of frames flushed together is let in as the peer reads, the pong goes out at the end of the frame
+		// being written rather than after the whole batch, and ahead of the close frame queued behind it
+		int queued = 0;
+		while (ws.queued() == 0)
+		{
+			ws.sendAsync(ByteBuffer.allocate(WebSocket.COALESCE_LIMIT));
+			queued++;
+		}
+		ws.policy(FlushPolicy.bytes(Integer.MAX_VALUE));
+		for (int i = 0; i < 900; i++)
+			ws.sendAsync(ByteBuffer.allocate(WebSocket.COALESCE_LIMIT));
+		queued += 900;
+		int binary = 0;
+		for (; binary < 256; binary++)
+			Assertions.assertEquals(WebSocket.OPC_BINARY, WebSocketTest.skip(client));
+		Thread.sleep(100);
+		client.write(ByteBuffer.wrap(new byte[]{(byte) 0x89, 1, 'z'}));
+		Assertions.assertNull(ws.readMessage(200));
+		CompletableFuture<Void> closing = CompletableFuture.runAsync(() ->
+		{
+			try
+			{
+				ws.shutdown(false);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		});
+		// Binary frames read before the pong
+		int pong = -1;
+		int opcode;
+		while ((opcode = WebSocketTest.skip(client)) != WebSocket.OPC_CLOSE)
+		{
+			if (opcode == WebSocket.OPC_PONG) pong = binary;
+			else binary++;
+		}
+		closing.get(10, TimeUnit.SECONDS);
+		Assertions.assertEquals(queued, binary);
+		Assertions.assertTrue(pong >= 0 && pong < binary, pong + " of " + binary);
+		Assertions.assertEquals(0, ws.queued());
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test35() throws Throwable
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("0.0.0.0", 2253));
+		WebSocket ws = new WebSocket("ws://127.0.0.1:2253");
+		ws.deflate(new PerMessageDeflate());
+		SocketChannel client = WebSocketTest.handshake(server, ws, "Sec-WebSocket-Extensions: permessage-deflate\r\n");
+		Assertions.assertTrue(ws.compression());
+
+		// Buffers from a publisher are compressed like written ones, each its own message
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + i % 7);
+		int[] emitted = new int[1];
+		Flow.Publisher<ByteBuffer> publisher = subscriber -> subscriber.onSubscribe(new Flow.Subscription()
+		{
+			@Override
+			public void request(long n)
+			{
+				if (emitted[0] == 3) return;
+				emitted[0]++;
+				subscriber.onNext(ByteBuffer.wrap(data));
+				if (emitted[0] == 3) subscriber.onComplete();
+			}
+
+			@Override
+			public void cancel()
+			{
+			}
+		});
+		publisher.subscribe(new MessageSubscriber(ws));
+		// Context takeover carries the window from one message to the next
+		Inflater inflater = new Inflater(true);
+		for (int i = 0; i < 3; i++)
+		{
+			byte[] payload = WebSocketTest.frame(client, WebSocket.MASK_RSV1 | WebSocket.OPC_BINARY);
+			Assertions.assertTrue(payload.length < data.length);
+			byte[] input = Arrays.copyOf(payload, payload.length + 4);
+			input[input.length - 2] = (byte) 0xFF;
+			input[input.length - 1] = (byte) 0xFF;
+			inflater.setInput(input);
+			byte[] inflated = new byte[data.length];
+			Assertions.assertEquals(data.length, inflater.inflate(inflated));
+			Assertions.assertArrayEquals(data, inflated);
+		}
+		Assertions.assertArrayEquals(new byte[]{0x03, (byte) 0xE8}, WebSocketTest.frame(client, WebSocket.OPC_CLOSE));
+		ws.reset();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test36() throws Throwable
+	{
+		WebSocketEventLoop loop = new WebSocketEventLoop(1);
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 2254));
+		byte[] request = ("GET / HTTP/1.1\r\n" +
+			"Host: 127.0.0.1\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Version: 13\r\n" +
+			"Sec-WebSocket-Key: H4zkKfpnizOa7DAdcolAeQ==\r\n\r\n").getBytes();
+
+		// A response larger than the socket buffers waits for OP_WRITE while its client does not read
+		SocketChannel slow = SocketChannel.open(server.getLocalAddress());
+		WebSocket stuck = new WebSocket(server.accept());
+		char[] pad = new char[16 << 20];
+		Arrays.fill(pad, 'x');
+		stuck.header("X-Pad", new String(pad));
+		loop.register(stuck);
+		slow.write(ByteBuffer.wrap(request));
+		Thread.sleep(100);
+
+		// The only loop thread goes on with other connections meanwhile
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		WebSocket other = new WebSocket(server.accept());
+		loop.register(other);
+		client.write(ByteBuffer.wrap(request));
+		ByteBuffer status = ByteBuffer.allocate(12);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (status.hasRemaining())
+				client.read(status);
+		});
+		Assertions.assertEquals("HTTP/1.1 101", new String(status.array()));
+		Assertions.assertTrue(stuck.status() < WebSocket.STAT_CONNECTED);
+
+		// Reading the response lets the handshake finish
+		ByteBuffer buf = ByteBuffer.allocate(65536);
+		long read = 0;
+		int last = 0;
+		while (last != 0x0D0A0D0A)
+		{
+			buf.clear();
+			int n = slow.read(buf);
+			for (int i = 0; i < n; i++)
+				last = last << 8 | buf.get(i) & 0xFF;
+			read += n;
+		}
+		Assertions.assertTrue(read > pad.length);
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(2), () ->
+		{
+			while (stuck.status() != WebSocket.STAT_CONNECTED)
+				Thread.sleep(1);
+		});
+		stuck.reset();
+		other.reset();
+		slow.close();
+		client.close();
+		server.close();
+		loop.close();
+	}
 }